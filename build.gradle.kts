@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "org.example"
@@ -21,4 +22,9 @@ dependencies {
 tasks.test {
     useJUnitPlatform()
 }
-// Update
\ No newline at end of file
+// Update
+
+// Run with: gradle jmh   (allocation rates are reported by the gc profiler)
+jmh {
+    profilers.add("gc")
+}
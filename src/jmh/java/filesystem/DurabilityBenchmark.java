@@ -0,0 +1,79 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Write-and-close cost under each <code>DurabilityMode</code> with several
+ * writers. Sample mode reports both the throughput and the latency
+ * percentiles, showing what each mode trades: <code>NONE</code> and
+ * <code>PERIODIC</code> never wait for the device,
+ * <code>PER_OPERATION</code> pays a force per close and
+ * <code>GROUP_COMMIT</code> shares forces between concurrent closes.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+public class DurabilityBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Volume {
+        @Param({"NONE", "PER_OPERATION", "PERIODIC", "GROUP_COMMIT"})
+        public DurabilityMode mode;
+
+        FileSystem fileSystem;
+        Disk disk;
+        AtomicInteger nextWriter = new AtomicInteger();
+
+        @Setup
+        public void setUp() throws IOException {
+            disk = new Disk("DurabilityBenchmark.dsk");
+            fileSystem = new FileSystem(disk);
+            fileSystem.setDurabilityMode(mode, 10);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            fileSystem.sync();
+            disk.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        String fileName;
+        String data = new String(new char[Disk.BLOCK_SIZE * 2]).replace('\0', 'D');
+
+        @Setup
+        public void setUp(Volume volume) throws IOException {
+            fileName = "writer" + volume.nextWriter.getAndIncrement() + ".txt";
+            volume.fileSystem.close(volume.fileSystem.create(fileName));
+        }
+    }
+
+    @Benchmark
+    public void writeAndClose(Volume volume, Writer writer) throws IOException {
+        int fd = volume.fileSystem.open(writer.fileName);
+        volume.fileSystem.write(fd, writer.data);
+        volume.fileSystem.close(fd);
+    }
+}
@@ -0,0 +1,127 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the <code>Disk</code> and <code>FileSystem</code> data paths.
+ * Run with the gc profiler (<code>gradle jmh</code>); the reused-buffer
+ * benchmarks should report close to zero bytes allocated per operation,
+ * while the <code>String</code> and <code>byte[]</code> variants show the
+ * allocation they replace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HotPathBenchmark {
+    private static final int FILE_BLOCKS = 4;
+
+    private FileSystem fileSystem;
+    private Disk disk;
+    private int fileDescriptor;
+    private int dataBlock;
+
+    private INode reusedINode;
+    private INodeView inodeView;
+    private byte[] fileNameBytes;
+    private ByteBuffer block;
+    private ByteBuffer fileData;
+    private String fileString;
+
+    @Setup
+    public void setUp() throws IOException {
+        disk = new Disk("HotPathBenchmark.dsk");
+        fileSystem = new FileSystem(disk);
+
+        fileString = new String(new char[Disk.BLOCK_SIZE * FILE_BLOCKS - 100]).replace('\0', 'B');
+        fileDescriptor = fileSystem.create("benchmark.txt");
+        fileSystem.write(fileDescriptor, fileString);
+        dataBlock = disk.readInode(fileDescriptor).getBlockPointer(0);
+
+        reusedINode = new INode();
+        inodeView = disk.getINodeTable().newView();
+        fileNameBytes = "benchmark.txt".getBytes();
+        block = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE);
+        fileData = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE * FILE_BLOCKS);
+        fileData.put(fileString.getBytes()).flip();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        disk.close();
+    }
+
+    @Benchmark
+    public INode readInodeReused() throws IOException {
+        disk.readInode(fileDescriptor, reusedINode);
+        return reusedINode;
+    }
+
+    @Benchmark
+    public INode readInodeAllocating() throws IOException {
+        return disk.readInode(fileDescriptor);
+    }
+
+    @Benchmark
+    public boolean inodeViewInPlace() {
+        INodeView view = inodeView.at(fileDescriptor);
+        return view.fileNameEquals(fileNameBytes) && view.getBlockPointer(0) == dataBlock;
+    }
+
+    @Benchmark
+    public ByteBuffer readDataBlockReused() throws IOException {
+        block.clear();
+        disk.readDataBlock(dataBlock, block);
+        return block;
+    }
+
+    @Benchmark
+    public byte[] readDataBlockAllocating() throws IOException {
+        return disk.readDataBlock(dataBlock);
+    }
+
+    @Benchmark
+    public void writeDataBlockReused() throws IOException {
+        block.clear();
+        disk.writeDataBlock(block, dataBlock);
+    }
+
+    @Benchmark
+    public int readFileReused() throws IOException {
+        fileData.clear();
+        return fileSystem.read(fileDescriptor, fileData);
+    }
+
+    @Benchmark
+    public String readFileString() throws IOException {
+        return fileSystem.read(fileDescriptor);
+    }
+
+    @Benchmark
+    public void writeFileReused() throws IOException {
+        fileData.position(0).limit(fileString.length());
+        fileSystem.write(fileDescriptor, fileData);
+    }
+
+    @Benchmark
+    public void writeFileString() throws IOException {
+        fileSystem.write(fileDescriptor, fileString);
+    }
+}
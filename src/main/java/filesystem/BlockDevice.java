@@ -0,0 +1,318 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+
+/**
+ * A device holding the free block list, the inode table and the data
+ * blocks, laid out as described by the constants in <code>Disk</code>.
+ * <code>Disk</code> keeps them in a file; <code>MemoryDisk</code> keeps
+ * them in memory. Every implementation must behave identically, so a
+ * <code>FileSystem</code> cannot tell which one it is running on.
+ *
+ * Only the reused-buffer operations have to be implemented; the
+ * allocating variants are built on them.
+ */
+public interface BlockDevice {
+
+    /***
+     * Initialize a new, empty device
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void format() throws IOException;
+
+    /***
+     * Returns the inode table, for reading inodes in place through an
+     * <code>INodeView</code>
+     *
+     * @return The inode table of the formatted device
+     */
+    INodeTable getINodeTable();
+
+    /***
+     * Brings the table returned by <code>getINodeTable</code> up to date
+     * with inodes written by other users of a shared device. Devices with
+     * a single user have nothing to do.
+     *
+     * @return Returns true if any inode of the table changed
+     * @throws IOException If an I/O error occurs
+     */
+    default boolean refreshINodeTable() throws IOException {
+        return false;
+    }
+
+    /***
+     * Waits until no other user of a shared device holds its metadata
+     * lock and takes it, then brings the table returned by
+     * <code>getINodeTable</code> up to date. Devices with a single user
+     * have nothing to do.
+     *
+     * @return Returns true if any inode of the table changed
+     * @throws IOException If an I/O error occurs
+     */
+    default boolean lockMetadata() throws IOException {
+        return false;
+    }
+
+    /***
+     * Releases the metadata lock once every write made while holding it
+     * has reached the device, so the next holder sees them
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    default void unlockMetadata() throws IOException {
+    }
+
+    /***
+     * Forces every write made so far to stable storage
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void sync() throws IOException;
+
+    /***
+     * Releases the resources held by the device
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void close() throws IOException;
+
+    /***
+     * Reads the free block list into a caller supplied array
+     *
+     * @param freeList Array of <code>BYTES_IN_FREE_SPACE_LIST</code> bytes to fill
+     * @throws IOException If an I/O error occurs
+     */
+    void readFreeBlockList(byte[] freeList) throws IOException;
+
+    /***
+     * Writes the free block list
+     *
+     * @param freeBlockList Array of bytes representing an updated free
+     *                      byte list
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the list is not
+     *                                  <code>BYTES_IN_FREE_SPACE_LIST</code> bytes long
+     */
+    void writeFreeBlockList(byte[] freeBlockList) throws IOException, IllegalArgumentException;
+
+    /***
+     * Write an <code>INode</code> instance to the appropriate position
+     *
+     * @param inode The Inode to be written
+     * @param whichInode  The position to which the inode is to be written
+     * @throws IOException If an I/O error occurs
+     */
+    void writeInode(INode inode, int whichInode) throws IOException;
+
+    /***
+     * Read an <code>INode</code> into a caller supplied instance
+     *
+     * @param whichInode The <code>INode</code> position to be read
+     * @param inode The instance to fill
+     * @throws IOException If an I/O error occurs
+     */
+    void readInode(int whichInode, INode inode) throws IOException;
+
+    /***
+     * Reads a block of data into a caller supplied buffer
+     *
+     * @param whichBlock The position of the data block to be read
+     * @param blockData Buffer receiving <code>BLOCK_SIZE</code> bytes at its
+     *                  position, which is advanced past them
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If fewer than <code>BLOCK_SIZE</code> bytes remain
+     *                                  in <code>blockData</code>
+     */
+    void readDataBlock(int whichBlock, ByteBuffer blockData) throws IOException, IllegalArgumentException;
+
+    /***
+     * Writes a block of data from a caller supplied buffer
+     *
+     * @param blockData Buffer holding <code>BLOCK_SIZE</code> bytes at its
+     *                  position, which is advanced past them
+     * @param whichBlock Block position in the file system
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If fewer than <code>BLOCK_SIZE</code> bytes remain
+     *                                  in <code>blockData</code>
+     */
+    void writeDataBlock(ByteBuffer blockData, int whichBlock) throws IOException, IllegalArgumentException;
+
+    /***
+     * Retrieve the free block list
+     *
+     * @return Returns an array of bytes representing the free block list
+     * @throws IOException If an I/O error occurs
+     */
+    default byte[] readFreeBlockList() throws IOException {
+        byte[] freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+
+        readFreeBlockList(freeList);
+
+        return freeList;
+    }
+
+    /***
+     * Read an <code>INode</code> instance from the appropriate position in the file system
+     *
+     * @param whichInode The <code>INode</code> position in the file system to be read
+     * @return An instance of INode read from the device.
+     * @throws IOException If an I/O error occurs
+     */
+    default INode readInode(int whichInode) throws IOException {
+        INode inode = new INode();
+        readInode(whichInode, inode);
+        return inode;
+    }
+
+    /***
+     * Reads a block of data
+     *
+     * @param whichBlock The position of the data block to be read
+     * @return A block of data at position <code>whichBlock</code>
+     * @throws IOException If an I/O error occurs
+     */
+    default byte[] readDataBlock(int whichBlock) throws IOException {
+        byte[] blockData = new byte[Disk.BLOCK_SIZE];
+
+        readDataBlock(whichBlock, ByteBuffer.wrap(blockData));
+
+        return blockData;
+    }
+
+    /***
+     * Writes a block of data
+     *
+     * @param blockData Array of bytes to be written to <code>whichBlock</code>
+     * @param whichBlock Block position in the file system
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+     *                                  to the length of a data block size
+     */
+    default void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        if (blockData.length != Disk.BLOCK_SIZE) {
+            throw new IllegalArgumentException("BlockDevice::writeDataBlock:  " +
+                    "storing block of size " + blockData.length +
+                    "when it should be of size " + Disk.BLOCK_SIZE);
+        }
+
+        writeDataBlock(ByteBuffer.wrap(blockData), whichBlock);
+    }
+
+    /***
+     * Reads several data blocks. Implementations backed by more than one
+     * device may service the blocks in parallel.
+     *
+     * @param whichBlocks The positions of the data blocks to be read
+     * @return The blocks of data, in the same order as <code>whichBlocks</code>
+     * @throws IOException If an I/O error occurs
+     */
+    default byte[][] readDataBlocks(int[] whichBlocks) throws IOException {
+        byte[] allBlocks = new byte[whichBlocks.length * Disk.BLOCK_SIZE];
+        byte[][] blocks = new byte[whichBlocks.length][];
+
+        readDataBlocks(whichBlocks, whichBlocks.length, ByteBuffer.wrap(allBlocks));
+        for (int i = 0; i < whichBlocks.length; i++) {
+            blocks[i] = Arrays.copyOfRange(allBlocks, i * Disk.BLOCK_SIZE, (i + 1) * Disk.BLOCK_SIZE);
+        }
+
+        return blocks;
+    }
+
+    /***
+     * Reads the first <code>numBlocks</code> blocks of <code>whichBlocks</code>
+     * one after another into a caller supplied buffer
+     *
+     * @param whichBlocks The positions of the data blocks to be read
+     * @param numBlocks How many entries of <code>whichBlocks</code> to read
+     * @param blockData Buffer receiving the blocks at its position, which is
+     *                  advanced past them
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If <code>blockData</code> cannot hold the blocks
+     */
+    default void readDataBlocks(int[] whichBlocks, int numBlocks, ByteBuffer blockData)
+            throws IOException, IllegalArgumentException {
+        Disk.checkRemaining("BlockDevice::readDataBlocks", blockData, numBlocks);
+
+        for (int i = 0; i < numBlocks; i++) {
+            readDataBlock(whichBlocks[i], blockData);
+        }
+    }
+
+    /***
+     * Writes several data blocks. Implementations backed by more than one
+     * device may service the blocks in parallel.
+     *
+     * @param blockData The blocks of data to be written
+     * @param whichBlocks The position each block of <code>blockData</code> is written to
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the arrays differ in length or a block is
+     *                                  not the length of a data block
+     */
+    default void writeDataBlocks(byte[][] blockData, int[] whichBlocks) throws IOException, IllegalArgumentException {
+        if (blockData.length != whichBlocks.length) {
+            throw new IllegalArgumentException("BlockDevice::writeDataBlocks:  " +
+                    blockData.length + " blocks given for " +
+                    whichBlocks.length + " positions");
+        }
+
+        ByteBuffer allBlocks = ByteBuffer.allocate(whichBlocks.length * Disk.BLOCK_SIZE);
+        for (byte[] block : blockData) {
+            if (block.length != Disk.BLOCK_SIZE) {
+                throw new IllegalArgumentException("BlockDevice::writeDataBlocks:  " +
+                        "storing block of size " + block.length +
+                        "when it should be of size " + Disk.BLOCK_SIZE);
+            }
+            allBlocks.put(block);
+        }
+        allBlocks.flip();
+
+        writeDataBlocks(allBlocks, whichBlocks, whichBlocks.length);
+    }
+
+    /***
+     * Writes consecutive blocks from a caller supplied buffer to the first
+     * <code>numBlocks</code> positions of <code>whichBlocks</code>
+     *
+     * @param blockData Buffer holding the blocks at its position, which is
+     *                  advanced past them
+     * @param whichBlocks The position each block is written to
+     * @param numBlocks How many blocks to write
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If <code>blockData</code> holds fewer than
+     *                                  <code>numBlocks</code> blocks
+     */
+    default void writeDataBlocks(ByteBuffer blockData, int[] whichBlocks, int numBlocks)
+            throws IOException, IllegalArgumentException {
+        Disk.checkRemaining("BlockDevice::writeDataBlocks", blockData, numBlocks);
+
+        for (int i = 0; i < numBlocks; i++) {
+            writeDataBlock(blockData, whichBlocks[i]);
+        }
+    }
+
+    /***
+     * Sends the first <code>numBlocks</code> blocks of <code>whichBlocks</code>
+     * one after another to <code>target</code>. Devices kept in files
+     * override this to move the blocks with <code>FileChannel.transferTo</code>
+     * instead of copying them through a buffer.
+     *
+     * @param whichBlocks The positions of the data blocks to be sent
+     * @param numBlocks How many entries of <code>whichBlocks</code> to send
+     * @param target Blocking channel receiving the blocks
+     * @throws IOException If an I/O error occurs
+     */
+    default void transferDataBlocks(int[] whichBlocks, int numBlocks, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer blockData = ByteBuffer.allocate(numBlocks * Disk.BLOCK_SIZE);
+        readDataBlocks(whichBlocks, numBlocks, blockData);
+        blockData.flip();
+        while (blockData.hasRemaining()) {
+            target.write(blockData);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package filesystem;
+
+import java.util.BitSet;
+
+
+/**
+ * Divides the disk into <code>NUM_GROUPS</code> block groups. Group
+ * <code>g</code> owns a slice of <code>INODES_PER_GROUP</code> inodes, a
+ * slice of <code>BLOCKS_PER_GROUP</code> data blocks and the matching
+ * bytes of the free block list. On the device the groups follow one
+ * another, each keeping its free block list slice and inodes in front of
+ * its own data blocks (see <code>Disk.groupOffset</code>), and the device
+ * locks the free block list one group at a time.
+ *
+ * The allocator keeps a file's blocks in the group of its inode, keeps
+ * files in the group of their directory, and spreads new directories
+ * over the groups with the most free space, so unrelated trees do not
+ * interleave. Each search starts in the preferred group and moves on to
+ * the following groups, wrapping around, only when it is full.
+ */
+public final class BlockGroups {
+    public final static int NUM_GROUPS = 16;
+    public final static int BLOCKS_PER_GROUP = Disk.NUM_BLOCKS / NUM_GROUPS;
+    public final static int INODES_PER_GROUP = Disk.NUM_INODES / NUM_GROUPS;
+
+    private final static int BITMAP_BYTES_PER_GROUP = BLOCKS_PER_GROUP / 8;
+
+    private BlockGroups() {
+    }
+
+    public static int groupOfINode(int whichInode) {
+        return whichInode / INODES_PER_GROUP;
+    }
+
+    public static int groupOfBlock(int whichBlock) {
+        return whichBlock / BLOCKS_PER_GROUP;
+    }
+
+    public static int firstBlock(int group) {
+        return group * BLOCKS_PER_GROUP;
+    }
+
+    /**
+     * Returns the number of free data blocks in <code>group</code>
+     *
+     * @param freeList - the free block list of the disk
+     * @param group - group to count
+     */
+    public static int freeBlocks(byte[] freeList, int group) {
+        int used = 0;
+        for (int i = group * BITMAP_BYTES_PER_GROUP; i < (group + 1) * BITMAP_BYTES_PER_GROUP; i++) {
+            used += Integer.bitCount(freeList[i] & 0xFF);
+        }
+        return BLOCKS_PER_GROUP - used;
+    }
+
+    /**
+     * Returns the first free inode of <code>group</code>, or of the groups
+     * after it if it has none
+     *
+     * @param usedINodes - inodes in use
+     * @param group - preferred group
+     * @return Returns the inode, or -1 if every inode is in use
+     */
+    public static int findFreeINode(BitSet usedINodes, int group) {
+        int start = group * INODES_PER_GROUP;
+        int whichInode = usedINodes.nextClearBit(start);
+        if (whichInode < Disk.NUM_INODES) {
+            return whichInode;
+        }
+        whichInode = usedINodes.nextClearBit(0);
+        return whichInode < start ? whichInode : -1;
+    }
+
+    /**
+     * Picks the group for a new directory: of the groups with a free
+     * inode, the one with the most free data blocks
+     *
+     * @param usedINodes - inodes in use
+     * @param freeList - the free block list of the disk
+     * @return Returns the group, or -1 if every inode is in use
+     */
+    public static int spreadGroup(BitSet usedINodes, byte[] freeList) {
+        int best = -1;
+        int bestFree = -1;
+        for (int group = 0; group < NUM_GROUPS; group++) {
+            int firstINode = group * INODES_PER_GROUP;
+            if (usedINodes.nextClearBit(firstINode) >= firstINode + INODES_PER_GROUP) {
+                continue;
+            }
+            int free = freeBlocks(freeList, group);
+            if (free > bestFree) {
+                best = group;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the first free block at or after <code>goal</code>, wrapping
+     * around to the start of the disk
+     *
+     * @param freeList - the free block list of the disk
+     * @param goal - block to start searching from
+     * @return Returns the block, or -1 if no block is free
+     */
+    public static int findFreeBlock(byte[] freeList, int goal) {
+        for (int n = 0; n < Disk.NUM_BLOCKS; n++) {
+            int whichBlock = (goal + n) % Disk.NUM_BLOCKS;
+            if ((freeList[whichBlock / 8] & (1 << (whichBlock % 8))) == 0) {
+                return whichBlock;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first block of the first run of <code>numBlocks</code>
+     * free blocks starting at or after <code>goal</code>, wrapping around to
+     * the start of the disk. Runs do not wrap past the last block.
+     *
+     * @param freeList - the free block list of the disk
+     * @param numBlocks - length of the run
+     * @param goal - block to start searching from
+     * @return Returns the first block of the run, or -1 if no run is long enough
+     */
+    public static int findFreeExtent(byte[] freeList, int numBlocks, int goal) {
+        int extent = findFreeExtent(freeList, numBlocks, goal, Disk.NUM_BLOCKS);
+        if (extent == -1 && goal > 0) {
+            extent = findFreeExtent(freeList, numBlocks, 0, Math.min(goal + numBlocks, Disk.NUM_BLOCKS));
+        }
+        return extent;
+    }
+
+    private static int findFreeExtent(byte[] freeList, int numBlocks, int from, int to) {
+        int runStart = from;
+        for (int i = from; i < to; i++) {
+            if ((freeList[i / 8] & (1 << (i % 8))) != 0) {
+                runStart = i + 1;
+            } else if (i - runStart + 1 >= numBlocks) {
+                return runStart;
+            }
+        }
+        return -1;
+    }
+}
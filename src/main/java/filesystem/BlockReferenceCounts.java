@@ -0,0 +1,57 @@
+package filesystem;
+
+
+public class BlockReferenceCounts {
+    private int[] counts;
+
+    public BlockReferenceCounts() {
+        counts = new int[Disk.NUM_BLOCKS];
+    }
+
+    /**
+     * Returns the number of inodes and snapshots referring to
+     * <code>whichBlock</code>
+     *
+     * @param whichBlock - block to look up
+     * @return Returns the reference count of the block
+     */
+    public int getCount(int whichBlock) {
+        return counts[whichBlock];
+    }
+
+    /**
+     * Returns true if more than one inode or snapshot refers to
+     * <code>whichBlock</code>, in which case the block must be copied
+     * before it is modified
+     *
+     * @param whichBlock - block to look up
+     * @return Returns true if the block is shared
+     */
+    public boolean isShared(int whichBlock) {
+        return counts[whichBlock] > 1;
+    }
+
+    /**
+     * Adds a reference to the block given by <code>whichBlock</code>
+     *
+     * @param whichBlock - block being referenced
+     * @return Returns the new reference count
+     */
+    public int increment(int whichBlock) {
+        return ++counts[whichBlock];
+    }
+
+    /**
+     * Drops a reference to the block given by <code>whichBlock</code>
+     *
+     * @param whichBlock - block no longer referenced
+     * @return Returns the new reference count; zero means the block
+     *         can be returned to the free block list
+     */
+    public int decrement(int whichBlock) {
+        if (counts[whichBlock] > 0) {
+            counts[whichBlock]--;
+        }
+        return counts[whichBlock];
+    }
+}
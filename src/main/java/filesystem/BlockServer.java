@@ -0,0 +1,471 @@
+package filesystem;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Exports a <code>BlockDevice</code> to other processes on the same host
+ * over a loopback socket. <code>RemoteDisk</code> is the matching client,
+ * so a <code>FileSystem</code> in another JVM can use the device unchanged.
+ *
+ * Every request is an opcode followed by its arguments, and every reply
+ * is a status followed by its result, in request order. Clients may send
+ * many requests before reading any reply. Each connection reads as many
+ * requests as have arrived, runs them, and sends all of their replies
+ * with one write. Data blocks read from a <code>Disk</code> go from the
+ * file to the socket with <code>FileChannel.transferTo</code>.
+ *
+ * Every inode written through the server is stamped with a version, so a
+ * client can ask for the inodes other connections wrote since the version
+ * its copy of the inode table reflects.
+ *
+ * One connection at a time may hold the metadata lock, which clients take
+ * around changes to the free block list, inodes and directories. A lock
+ * request waits until the holder releases the lock or disconnects.
+ * Requests are run in order, so the writes a client sends before its
+ * release are applied before the next holder runs anything.
+ */
+public class BlockServer {
+    final static int FORMAT = 1;
+    final static int SYNC = 2;
+    final static int READ_FREE_LIST = 3;
+    final static int WRITE_FREE_LIST = 4;
+    final static int READ_INODE = 5;
+    final static int WRITE_INODE = 6;
+    final static int READ_BLOCKS = 7;
+    final static int WRITE_BLOCKS = 8;
+    final static int INODE_CHANGES = 9;
+    final static int LOCK_METADATA = 10;
+    final static int UNLOCK_METADATA = 11;
+
+    /**
+     * Reply statuses. An error is followed by the length of its message
+     * and the message in UTF-8.
+     */
+    final static int OK = 0;
+    final static int ERROR = 1;
+
+    /**
+     * Most blocks one read or write request may carry, and the size of the
+     * request and reply buffers, which hold the largest request
+     */
+    final static int MAX_REQUEST_BLOCKS = 64;
+    final static int BUFFER_SIZE = 64 * 1024;
+
+    private BlockDevice device;
+    private ServerSocketChannel listener;
+    private Set<SocketChannel> connections;
+    private AtomicInteger nextSessionId;
+
+    /**
+     * The version of the latest inode write, and for every inode the
+     * version and connection of its latest write. Guarded by the device.
+     */
+    private long inodeVersion;
+    private long[] inodeVersions;
+    private int[] inodeWriters;
+
+    /**
+     * The connection holding the metadata lock, or -1. Guarded by
+     * <code>metadataLock</code>.
+     */
+    private Object metadataLock;
+    private int metadataOwner;
+
+    /**
+     * @param device Formatted device to export
+     */
+    public BlockServer(BlockDevice device) {
+        this.device = device;
+        this.connections = Collections.synchronizedSet(new HashSet<>());
+        this.nextSessionId = new AtomicInteger();
+        this.inodeVersions = new long[Disk.NUM_INODES];
+        this.inodeWriters = new int[Disk.NUM_INODES];
+        Arrays.fill(inodeWriters, -1);
+        this.metadataLock = new Object();
+        this.metadataOwner = -1;
+    }
+
+    /**
+     * Starts accepting connections on the loopback address
+     *
+     * @param port - port to listen on, or 0 for any free port
+     * @throws IOException If the port cannot be bound
+     */
+    public synchronized void start(int port) throws IOException {
+        if (listener != null) {
+            throw new IOException("BlockServer::start: already listening on port " + getPort());
+        }
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        Thread acceptor = new Thread(this::acceptConnections, "BlockServer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the address clients connect to
+     */
+    public synchronized InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) listener.getLocalAddress();
+    }
+
+    public int getPort() throws IOException {
+        return getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones. The device is
+     * left open.
+     */
+    public synchronized void close() throws IOException {
+        if (listener != null) {
+            listener.close();
+            listener = null;
+        }
+        synchronized (connections) {
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            connections.clear();
+        }
+    }
+
+    private void acceptConnections() {
+        ServerSocketChannel server;
+        synchronized (this) {
+            server = listener;
+        }
+        try {
+            while (true) {
+                SocketChannel connection = server.accept();
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(connection);
+
+                Thread handler = new Thread(() -> serve(connection), "BlockServer-connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (ClosedChannelException e) {
+            // The server was closed
+        } catch (IOException e) {
+            System.err.println("BlockServer::acceptConnections: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the requests of one connection until the client disconnects
+     */
+    private void serve(SocketChannel connection) {
+        ByteBuffer requests = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ByteBuffer replies = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        Session session = new Session(nextSessionId.getAndIncrement());
+        try {
+            while (connection.read(requests) >= 0) {
+                requests.flip();
+                int length;
+                while ((length = requestLength(requests)) != -1 && length <= requests.remaining()) {
+                    int end = requests.position() + length;
+                    handle(requests, replies, connection, session);
+                    requests.position(end);
+                }
+                requests.compact();
+                flush(replies, connection);
+            }
+        } catch (ClosedChannelException e) {
+            // The server was closed
+        } catch (IOException e) {
+            System.err.println("BlockServer::serve: " + e.getMessage());
+        } finally {
+            releaseMetadata(session);
+            connections.remove(connection);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already failed
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the request at the position of
+     * <code>requests</code>, or -1 if too little of it has arrived to tell
+     *
+     * @throws IOException If the request is not valid
+     */
+    static int requestLength(ByteBuffer requests) throws IOException {
+        if (requests.remaining() < 4) {
+            return -1;
+        }
+        int start = requests.position();
+        int operation = requests.getInt(start);
+        switch (operation) {
+            case FORMAT:
+            case SYNC:
+            case READ_FREE_LIST:
+            case LOCK_METADATA:
+            case UNLOCK_METADATA:
+                return 4;
+            case WRITE_FREE_LIST:
+                return 4 + Disk.BYTES_IN_FREE_SPACE_LIST;
+            case READ_INODE:
+                return 8;
+            case INODE_CHANGES:
+                return 12;
+            case WRITE_INODE:
+                return 8 + INode.ENCODED_SIZE;
+            case READ_BLOCKS:
+            case WRITE_BLOCKS:
+                if (requests.remaining() < 8) {
+                    return -1;
+                }
+                int numBlocks = requests.getInt(start + 4);
+                if (numBlocks < 0 || numBlocks > MAX_REQUEST_BLOCKS) {
+                    throw new IOException("BlockServer::requestLength: request for " + numBlocks +
+                            " blocks, at most " + MAX_REQUEST_BLOCKS + " are allowed");
+                }
+                return 8 + 4 * numBlocks + (operation == WRITE_BLOCKS ? numBlocks * Disk.BLOCK_SIZE : 0);
+            default:
+                throw new IOException("BlockServer::requestLength: unknown operation " + operation);
+        }
+    }
+
+    /**
+     * Runs the complete request at the position of <code>requests</code>
+     * and adds its reply to <code>replies</code>. Data blocks that are read
+     * are sent straight to the connection after the replies before them.
+     */
+    private void handle(ByteBuffer requests, ByteBuffer replies, SocketChannel connection, Session session)
+            throws IOException {
+        int operation = requests.getInt();
+        int numBlocks = 0;
+        try {
+            numBlocks = run(operation, requests, session);
+        } catch (IOException | IllegalArgumentException e) {
+            byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            reserve(replies, 8 + message.length, connection);
+            replies.putInt(ERROR).putInt(message.length).put(message);
+            return;
+        }
+
+        switch (operation) {
+            case READ_FREE_LIST:
+                reserve(replies, 4 + Disk.BYTES_IN_FREE_SPACE_LIST, connection);
+                replies.putInt(OK).put(session.freeList);
+                break;
+            case READ_INODE:
+                reserve(replies, 4 + INode.ENCODED_SIZE, connection);
+                replies.putInt(OK);
+                session.inode.writeTo(replies, replies.position());
+                replies.position(replies.position() + INode.ENCODED_SIZE);
+                break;
+            case READ_BLOCKS:
+                reserve(replies, 4, connection);
+                replies.putInt(OK);
+                flush(replies, connection);
+                device.transferDataBlocks(session.blockNumbers, numBlocks, connection);
+                break;
+            case INODE_CHANGES:
+                reserve(replies, 16, connection);
+                replies.putInt(OK).putLong(session.version).putInt(session.changeCount);
+                flush(replies, connection);
+                while (session.changes.hasRemaining()) {
+                    connection.write(session.changes);
+                }
+                break;
+            default:
+                reserve(replies, 4, connection);
+                replies.putInt(OK);
+        }
+    }
+
+    /**
+     * Runs a request against the device. Requests from different
+     * connections take turns, since the device is not thread safe. A lock
+     * request waits without holding the device, so the holder can go on.
+     *
+     * @return Returns the number of blocks a block request names
+     */
+    private int run(int operation, ByteBuffer requests, Session session) throws IOException {
+        if (operation == LOCK_METADATA) {
+            lockMetadata(session);
+            return 0;
+        }
+        if (operation == UNLOCK_METADATA) {
+            if (!releaseMetadata(session)) {
+                throw new IOException("BlockServer::run: the connection does not hold the metadata lock");
+            }
+            return 0;
+        }
+
+        int numBlocks = 0;
+        synchronized (device) {
+            switch (operation) {
+                case FORMAT:
+                    device.format();
+                    inodeVersion++;
+                    Arrays.fill(inodeVersions, inodeVersion);
+                    Arrays.fill(inodeWriters, session.id);
+                    break;
+                case SYNC:
+                    device.sync();
+                    break;
+                case READ_FREE_LIST:
+                    device.readFreeBlockList(session.freeList);
+                    break;
+                case WRITE_FREE_LIST:
+                    requests.get(session.freeList);
+                    device.writeFreeBlockList(session.freeList);
+                    break;
+                case READ_INODE:
+                    device.readInode(requests.getInt(), session.inode);
+                    break;
+                case WRITE_INODE:
+                    int whichInode = requests.getInt();
+                    session.inode.readFrom(requests, requests.position());
+                    device.writeInode(session.inode, whichInode);
+                    inodeVersions[whichInode] = ++inodeVersion;
+                    inodeWriters[whichInode] = session.id;
+                    break;
+                case INODE_CHANGES:
+                    collectChanges(requests.getLong(), session);
+                    break;
+                case READ_BLOCKS:
+                case WRITE_BLOCKS:
+                    numBlocks = requests.getInt();
+                    for (int i = 0; i < numBlocks; i++) {
+                        session.blockNumbers[i] = checkBlock(requests.getInt());
+                    }
+                    if (operation == WRITE_BLOCKS) {
+                        device.writeDataBlocks(requests, session.blockNumbers, numBlocks);
+                    }
+                    break;
+            }
+        }
+        return numBlocks;
+    }
+
+    /**
+     * Waits until no connection holds the metadata lock and gives it to
+     * <code>session</code>
+     *
+     * @throws IOException If the session already holds it or the wait is interrupted
+     */
+    private void lockMetadata(Session session) throws IOException {
+        synchronized (metadataLock) {
+            if (metadataOwner == session.id) {
+                throw new IOException("BlockServer::lockMetadata: the connection already holds the metadata lock");
+            }
+            while (metadataOwner != -1) {
+                try {
+                    metadataLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("BlockServer::lockMetadata: interrupted while waiting for the lock");
+                }
+            }
+            metadataOwner = session.id;
+        }
+    }
+
+    /**
+     * Releases the metadata lock if <code>session</code> holds it
+     *
+     * @return Returns true if the session held the lock
+     */
+    private boolean releaseMetadata(Session session) {
+        synchronized (metadataLock) {
+            if (metadataOwner != session.id) {
+                return false;
+            }
+            metadataOwner = -1;
+            metadataLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Copies into the session every inode written since version
+     * <code>since</code> whose latest write came from another connection,
+     * each as its number followed by the encoded inode
+     */
+    private void collectChanges(long since, Session session) throws IOException {
+        if (session.changes == null) {
+            session.changes = ByteBuffer.allocateDirect(Disk.NUM_INODES * (4 + INode.ENCODED_SIZE));
+        }
+        session.changes.clear();
+        session.changeCount = 0;
+        for (int whichInode = 0; whichInode < Disk.NUM_INODES; whichInode++) {
+            if (inodeVersions[whichInode] > since && inodeWriters[whichInode] != session.id) {
+                device.readInode(whichInode, session.inode);
+                session.changes.putInt(whichInode);
+                session.inode.writeTo(session.changes, session.changes.position());
+                session.changes.position(session.changes.position() + INode.ENCODED_SIZE);
+                session.changeCount++;
+            }
+        }
+        session.changes.flip();
+        session.version = inodeVersion;
+    }
+
+    private static int checkBlock(int whichBlock) throws IllegalArgumentException {
+        if (whichBlock < 0 || whichBlock >= Disk.NUM_BLOCKS) {
+            throw new IllegalArgumentException("BlockServer::checkBlock: " +
+                    "block " + whichBlock + " is outside 0.." + (Disk.NUM_BLOCKS - 1));
+        }
+        return whichBlock;
+    }
+
+    /**
+     * Sends the waiting replies if fewer than <code>bytes</code> bytes of
+     * room are left
+     */
+    private static void reserve(ByteBuffer replies, int bytes, SocketChannel connection) throws IOException {
+        if (replies.remaining() < bytes) {
+            flush(replies, connection);
+        }
+    }
+
+    private static void flush(ByteBuffer replies, SocketChannel connection) throws IOException {
+        replies.flip();
+        while (replies.hasRemaining()) {
+            connection.write(replies);
+        }
+        replies.clear();
+    }
+
+    /**
+     * Scratch state of one connection
+     */
+    private static class Session {
+        int id;
+        byte[] freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+        INode inode = new INode();
+        int[] blockNumbers = new int[MAX_REQUEST_BLOCKS];
+
+        /**
+         * Reply to the last <code>INODE_CHANGES</code> request
+         */
+        ByteBuffer changes;
+        int changeCount;
+        long version;
+
+        Session(int id) {
+            this.id = id;
+        }
+    }
+}
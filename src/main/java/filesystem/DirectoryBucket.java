@@ -0,0 +1,128 @@
+package filesystem;
+
+
+/**
+ * One hash bucket of a directory, stored in one data block.
+ *
+ * A directory's data blocks form a hash table of
+ * <code>NUM_BUCKETS</code> buckets. A name is hashed to its home bucket
+ * and, if that bucket is full, placed in the next bucket with room. Each
+ * bucket starts with a header (entry count, overflow flag) followed by
+ * entries of (name hash, inode number). Names themselves live in the
+ * inodes, so a lookup reads one bucket and only the inodes whose hash
+ * matches.
+ */
+public class DirectoryBucket {
+    public final static int NUM_BUCKETS = INode.NUM_BLOCK_POINTERS;
+    public final static int HEADER_SIZE = 8;
+    public final static int ENTRY_SIZE = 8;
+    public final static int ENTRIES_PER_BUCKET = (Disk.BLOCK_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+
+    private byte[] block;
+
+    public DirectoryBucket() {
+        block = new byte[Disk.BLOCK_SIZE];
+    }
+
+    public DirectoryBucket(byte[] block) throws IllegalArgumentException {
+        if (block.length != Disk.BLOCK_SIZE) {
+            throw new IllegalArgumentException("DirectoryBucket:: DirectoryBucket: " +
+                    "bucket of size " + block.length +
+                    " it should be of length " + Disk.BLOCK_SIZE);
+        }
+        this.block = block;
+    }
+
+    public byte[] getBlock() {
+        return block;
+    }
+
+    /**
+     * Returns the hash used to place <code>name</code> in a directory
+     *
+     * @param name - file or directory name, without any path
+     * @return Returns the hash of the name
+     */
+    public static int hash(String name) {
+        return name.hashCode();
+    }
+
+    /**
+     * Returns the bucket a name with hash <code>nameHash</code> is placed
+     * in when the bucket is not full
+     */
+    public static int homeBucket(int nameHash) {
+        return Math.floorMod(nameHash, NUM_BUCKETS);
+    }
+
+    public int getCount() {
+        return getInt(0);
+    }
+
+    public boolean isFull() {
+        return getCount() >= ENTRIES_PER_BUCKET;
+    }
+
+    /**
+     * Returns true if an insert ever passed over this bucket because it was
+     * full, meaning lookups must keep probing past it
+     */
+    public boolean isOverflowed() {
+        return getInt(4) != 0;
+    }
+
+    public void setOverflowed() {
+        putInt(4, 1);
+    }
+
+    public int getHash(int whichEntry) {
+        return getInt(HEADER_SIZE + whichEntry * ENTRY_SIZE);
+    }
+
+    public int getINodeNumber(int whichEntry) {
+        return getInt(HEADER_SIZE + whichEntry * ENTRY_SIZE + 4);
+    }
+
+    /**
+     * Appends an entry to the bucket
+     *
+     * @param nameHash - hash of the entry's name
+     * @param iNodeNumber - inode the entry refers to
+     * @throws IllegalArgumentException If the bucket is full
+     */
+    public void add(int nameHash, int iNodeNumber) throws IllegalArgumentException {
+        int count = getCount();
+        if (count >= ENTRIES_PER_BUCKET) {
+            throw new IllegalArgumentException("DirectoryBucket::add: " +
+                    "bucket already holds " + ENTRIES_PER_BUCKET + " entries");
+        }
+        putInt(HEADER_SIZE + count * ENTRY_SIZE, nameHash);
+        putInt(HEADER_SIZE + count * ENTRY_SIZE + 4, iNodeNumber);
+        putInt(0, count + 1);
+    }
+
+    /**
+     * Removes the entry at <code>whichEntry</code> by moving the last
+     * entry into its place
+     *
+     * @param whichEntry - position of the entry to remove
+     */
+    public void remove(int whichEntry) {
+        int last = getCount() - 1;
+        putInt(HEADER_SIZE + whichEntry * ENTRY_SIZE, getHash(last));
+        putInt(HEADER_SIZE + whichEntry * ENTRY_SIZE + 4, getINodeNumber(last));
+        putInt(0, last);
+    }
+
+    private int getInt(int offset) {
+        return ((block[offset] & 0xFF) << 24) | ((block[offset + 1] & 0xFF) << 16) |
+               ((block[offset + 2] & 0xFF) << 8) | (block[offset + 3] & 0xFF);
+    }
+
+    private void putInt(int offset, int value) {
+        block[offset] = (byte) (value >> 24);
+        block[offset + 1] = (byte) (value >> 16);
+        block[offset + 2] = (byte) (value >> 8);
+        block[offset + 3] = (byte) value;
+    }
+}
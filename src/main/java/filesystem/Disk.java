@@ -1,10 +1,23 @@
 package filesystem;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-
-
-public class Disk {
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A <code>BlockDevice</code> kept in a single raw file. The file is
+ * divided into <code>BlockGroups.NUM_GROUPS</code> groups laid out one
+ * after the other; each group starts with its slice of the free block
+ * list and its slice of the inodes, followed by its data blocks, so a
+ * file's inode and the blocks allocated near it are never further apart
+ * than one group.
+ */
+public class Disk implements BlockDevice {
   public static final  String RAW_DISK_NAME = "RawDevice.dsk";
   public static final int NUM_BLOCKS = 16384;
   public static final int NUM_INODES = 1024;
@@ -16,13 +29,43 @@ public class Disk {
                                        INode.SIZE_FIELD_SIZE +
                                        (INode.NUM_BLOCK_POINTERS * INode.BLOCK_POINTER_SIZE);
 
+  public static final int GROUP_FREE_LIST_BYTES = BYTES_IN_FREE_SPACE_LIST / BlockGroups.NUM_GROUPS;
+  public static final int GROUP_INODE_BYTES = INODE_SIZE * BlockGroups.INODES_PER_GROUP;
+  public static final int GROUP_HEADER_BYTES = GROUP_FREE_LIST_BYTES + GROUP_INODE_BYTES;
+  public static final int GROUP_SIZE = GROUP_HEADER_BYTES + BLOCK_SIZE * BlockGroups.BLOCKS_PER_GROUP;
+  public static final long DISK_SIZE = (long) GROUP_SIZE * BlockGroups.NUM_GROUPS;
+
   private static String RAW_DISK_MODE = "rw";
+  private static String READ_ONLY_MODE = "r";
 
   private String diskFileName;
   private RandomAccessFile rawDisk;
+  private FileChannel rawChannel;
+
+  /**
+   * The inode slices of the raw file mapped into memory, so inodes are
+   * read and written without system calls or heap objects
+   */
+  private INodeTable inodeTable;
+
+  /**
+   * The free block list slice of each group mapped into memory, and the
+   * list as last read or written, so a write can tell which of its bytes
+   * changed and store only those. A group's slice and its part of the
+   * list are only touched while holding the group's lock, so writers
+   * changing different groups do not wait for each other.
+   */
+  private MappedByteBuffer[] freeListSlices;
+  private byte[] freeList;
+  private Object[] groupLocks;
+  private boolean[] dirtyGroups;
 
   public Disk() {
-    this.diskFileName = RAW_DISK_NAME;
+    this(RAW_DISK_NAME);
+  }
+
+  public Disk(String diskFileName) {
+    this.diskFileName = diskFileName;
   }
 
   /***
@@ -32,57 +75,173 @@ public class Disk {
    */
   public void format() throws IOException {
     rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
-    byte[] freeListBytes = new byte[BYTES_IN_FREE_SPACE_LIST];
+    rawChannel = rawDisk.getChannel();
 
+    /**
+     * write an empty free block list slice and empty inodes at the start of
+     * each group, with one request per group
+     */
+    ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER_BYTES);
     INode emptyINode = new INode();
+    for(int i= 0; i < BlockGroups.INODES_PER_GROUP; i++) {
+      emptyINode.writeTo(header, GROUP_FREE_LIST_BYTES + (i * INODE_SIZE));
+    }
+    for (int group= 0; group < BlockGroups.NUM_GROUPS; group++) {
+      writeFully(rawChannel, header.clear(), groupOffset(group));
+    }
 
-    byte[] emptyDiskBlock = new byte[BLOCK_SIZE];
+    formatDataBlocks();
 
-    /**
-     * write an empty free block list
-     */
-    rawDisk.write(freeListBytes);
+    mapMetadata(FileChannel.MapMode.READ_WRITE);
+  }
 
-    /**
-     * write empty inodes
-     */
-    for(int i= 0; i < NUM_INODES; i++) {
-      rawDisk.write(emptyINode.getFileNameBytes());
-      rawDisk.write(emptyINode.getSizeBytes());
+  /***
+   * Opens a disk formatted earlier, keeping its contents, for example to
+   * inspect a volume left behind by another process. Only disks kept in
+   * a single file can be opened.
+   *
+   * @throws IOException If the file is missing or too short to be a disk
+   */
+  public void open() throws IOException {
+    open(RAW_DISK_MODE, FileChannel.MapMode.READ_WRITE);
+  }
 
-      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-        byte[] blockPtr = emptyINode.getBlockPointerBytes(blkPtrIndex);
-        rawDisk.write(blockPtr);
-      }
+  /***
+   * Opens a disk formatted earlier for reading only, so a monitor can
+   * inspect a live volume without being able to change it. The inodes
+   * are mapped read only and follow the file as its owner writes them;
+   * every write to the disk fails.
+   *
+   * @throws IOException If the file is missing or too short to be a disk
+   */
+  public void openReadOnly() throws IOException {
+    open(READ_ONLY_MODE, FileChannel.MapMode.READ_ONLY);
+  }
+
+  private void open(String mode, FileChannel.MapMode mapMode) throws IOException {
+    File file = new File(diskFileName);
+    if (!file.isFile() || file.length() < DISK_SIZE) {
+      throw new IOException("Disk::open: " + diskFileName + " is not a formatted disk");
     }
+    rawDisk = new RandomAccessFile(file, mode);
+    rawChannel = rawDisk.getChannel();
+
+    mapMetadata(mapMode);
+  }
+
+  /**
+   * Maps the free block list slice and the inode slice at the start of
+   * each group of the raw file
+   */
+  private void mapMetadata(FileChannel.MapMode mapMode) throws IOException {
+    freeListSlices = new MappedByteBuffer[BlockGroups.NUM_GROUPS];
+    freeList = new byte[BYTES_IN_FREE_SPACE_LIST];
+    groupLocks = new Object[BlockGroups.NUM_GROUPS];
+    dirtyGroups = new boolean[BlockGroups.NUM_GROUPS];
+    ByteBuffer[] inodeSlices = new ByteBuffer[BlockGroups.NUM_GROUPS];
+    for (int group= 0; group < BlockGroups.NUM_GROUPS; group++) {
+      freeListSlices[group] = rawChannel.map(mapMode, groupOffset(group), GROUP_FREE_LIST_BYTES);
+      freeListSlices[group].get(0, freeList, group * GROUP_FREE_LIST_BYTES, GROUP_FREE_LIST_BYTES);
+      groupLocks[group] = new Object();
+      inodeSlices[group] = rawChannel.map(mapMode,
+                                          groupOffset(group) + GROUP_FREE_LIST_BYTES,
+                                          GROUP_INODE_BYTES);
+    }
+    inodeTable = new INodeTable(inodeSlices);
+    inodeTable.load();
+  }
+
+  /***
+   * Returns the inode table, for reading inodes in place through an
+   * <code>INodeView</code>
+   *
+   * @return The inode table of the formatted disk
+   */
+  public INodeTable getINodeTable() {
+    return inodeTable;
+  }
+
+  /***
+   * Writes the empty data blocks that follow the inodes of each group.
+   * Called by <code>format</code> once the free block list and inodes are
+   * written.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  protected void formatDataBlocks() throws IOException {
+    ByteBuffer emptyGroupBlocks = ByteBuffer.allocate(BLOCK_SIZE * BlockGroups.BLOCKS_PER_GROUP);
 
     /**
-     * write empty disk data blocks
+     * write the empty data blocks of each group with one request
      */
-    for (int blkCount= 0; blkCount < NUM_BLOCKS; blkCount++) {
-      rawDisk.write(emptyDiskBlock);
+    for (int group= 0; group < BlockGroups.NUM_GROUPS; group++) {
+      writeFully(rawChannel, emptyGroupBlocks.clear(), groupOffset(group) + GROUP_HEADER_BYTES);
     }
   }
 
   /***
-   * Retrieve the free block list
+   * Forces every write made so far to stable storage: the changed free
+   * block list slices and inodes, then the data blocks.
+   * File metadata such as modification times is not forced.
    *
-   * @return Returns an array of bytes representing the free block list
-   * @throws IOException If the first byte cannot be read for any reason other than end of file, or if
-   *                     the random access file has been closed, or if some other I/O error occurs
+   * @throws IOException If an I/O error occurs
    */
-  public byte[] readFreeBlockList() throws IOException {
-    byte[] freeList = new byte[BYTES_IN_FREE_SPACE_LIST];
+  public void sync() throws IOException {
+    for (int group= 0; group < BlockGroups.NUM_GROUPS; group++) {
+      synchronized (groupLocks[group]) {
+        if (dirtyGroups[group]) {
+          freeListSlices[group].force();
+          dirtyGroups[group] = false;
+        }
+      }
+    }
+    inodeTable.force();
+    rawChannel.force(false);
+  }
 
-    rawDisk.seek((long)0);
-    rawDisk.read(freeList);
+  /***
+   * Releases the underlying raw file
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void close() throws IOException {
+    if (rawDisk != null) {
+      rawDisk.close();
+      rawDisk = null;
+      rawChannel = null;
+      inodeTable = null;
+      freeListSlices = null;
+    }
+  }
+
+  /***
+   * Reads the free block list into a caller supplied array, copying each
+   * group's slice under that group's lock
+   *
+   * @param freeList Array of <code>BYTES_IN_FREE_SPACE_LIST</code> bytes to fill
+   * @throws IOException If an I/O error occurs
+   */
+  public void readFreeBlockList(byte[] freeList) throws IOException {
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    for (int group= 0; group < BlockGroups.NUM_GROUPS; group++) {
+      int first = group * GROUP_FREE_LIST_BYTES;
+      synchronized (groupLocks[group]) {
+        freeListSlices[group].get(0, this.freeList, first, GROUP_FREE_LIST_BYTES);
+        System.arraycopy(this.freeList, first, freeList, first, GROUP_FREE_LIST_BYTES);
+      }
+    }
 
-    return freeList;
+    commitINodeEvent(event, "readFreeBlockList", -1);
   }
 
 
   /***
-   * Writes free space list to raw disk
+   * Stores the bytes of the free block list that differ from the list as
+   * last read or written, holding only the lock of the group being
+   * compared, so writers that change different groups do not wait for
+   * each other
    *
    * @param freeBlockList Array of bytes representing an updated free
    *                      byte list
@@ -98,8 +257,24 @@ public class Disk {
                                        " bytes long");
     }
 
-    rawDisk.seek((long)0);
-    rawDisk.write(freeBlockList);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    for (int group= 0; group < BlockGroups.NUM_GROUPS; group++) {
+      MappedByteBuffer slice = freeListSlices[group];
+      int first = group * GROUP_FREE_LIST_BYTES;
+      synchronized (groupLocks[group]) {
+        for (int i= first; i < first + GROUP_FREE_LIST_BYTES; i++) {
+          if (freeList[i] != freeBlockList[i]) {
+            freeList[i] = freeBlockList[i];
+            slice.put(i - first, freeBlockList[i]);
+            dirtyGroups[group] = true;
+          }
+        }
+      }
+    }
+
+    commitINodeEvent(event, "writeFreeBlockList", -1);
   }
 
 
@@ -111,119 +286,357 @@ public class Disk {
    * @throws IOException If an I/O error occurs
    */
   public void writeInode(INode inode, int whichInode) throws IOException {
-      byte[] name = inode.getFileNameBytes();
-      byte[] size = inode.getSizeBytes();
-      byte[][] blockPointers = new byte[INode.NUM_BLOCK_POINTERS][];
+      DiskIOEvent event = new DiskIOEvent();
+      event.begin();
 
-      for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPointers[i] = inode.getBlockPointerBytes(i);
-      }
+      inodeTable.write(whichInode, inode);
 
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+      commitINodeEvent(event, "writeInode", whichInode);
+  }
+
+  /***
+   * Read an <code>INode</code> into a caller supplied instance, so that
+   * callers scanning inodes can reuse one object
+   *
+   * @param whichInode The <code>INode</code> position in the file system to be read
+   * @param inode The instance to fill
+   * @throws IOException If an I/O error occurs
+   */
+  public void readInode(int whichInode, INode inode) throws IOException {
+      DiskIOEvent event = new DiskIOEvent();
+      event.begin();
 
       /**
-       * Seek to correct position in the raw file
+       * A null string is all 0's, which the inode reports as an unused inode
        */
-      rawDisk.seek((long)cursor);
+      inodeTable.read(whichInode, inode);
 
-      rawDisk.write(name);
-      rawDisk.write(size);
-      for (int j= 0; j < INode.NUM_BLOCK_POINTERS; j++) {
-        rawDisk.write(blockPointers[j]);
-      }
+      commitINodeEvent(event, "readInode", whichInode);
   }
 
   /***
-   * Read an <code>INode</code> instance from the appropriate position in the file system
+   * Reads a block of data into a caller supplied buffer
    *
-   * @param whichInode The <code>INode</code> position in the file system to be read
-   * @return An instance of INode read from the disk.
-   * @throws IOException If the first byte cannot be read for any reason other than end of file, or if
-   *    *                the random access file has been closed, or if some other I/O error occurs
+   * @param whichBlock The position of the data block to be read
+   * @param blockData Buffer receiving <code>BLOCK_SIZE</code> bytes at its
+   *                  position, which is advanced past them
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If fewer than <code>BLOCK_SIZE</code> bytes remain
+   *                                  in <code>blockData</code>
    */
-  public INode readInode(int whichInode) throws IOException {
-      INode inode = new INode();
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+  public void readDataBlock(int whichBlock, ByteBuffer blockData) throws IOException, IllegalArgumentException {
+    checkBlock("Disk::readDataBlock", whichBlock);
+    long cursor = dataBlockOffset(whichBlock);
 
-      rawDisk.seek((long)cursor);
+    checkRemaining("Disk::readDataBlock", blockData, 1);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
 
-      byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
-      int nameReadLen = rawDisk.read(fileNameBytes);
+    int limit = blockData.limit();
+    blockData.limit(blockData.position() + BLOCK_SIZE);
+    readFully(rawChannel, blockData, cursor);
+    blockData.limit(limit);
 
-      int fileSizeField = rawDisk.readInt();
+    commitBlockEvent(event, "readDataBlock", whichBlock);
+  }
 
-      /**
-       * read each block pointer
-       */
-      int[] blockPtrValues = new int[INode.NUM_BLOCK_POINTERS];
 
-      for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPtrValues[i]= rawDisk.readInt();
-      }
+  /***
+   * Writes a block of data from a caller supplied buffer
+   *
+   * @param blockData Buffer holding <code>BLOCK_SIZE</code> bytes at its
+   *                  position, which is advanced past them
+   * @param whichBlock Block position in the file system
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If fewer than <code>BLOCK_SIZE</code> bytes remain
+   *                                  in <code>blockData</code>
+   */
+  public void writeDataBlock(ByteBuffer blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    checkBlock("Disk::writeDataBlock", whichBlock);
+    long cursor = dataBlockOffset(whichBlock);
 
-      String fileName = new String(fileNameBytes);
+    checkRemaining("Disk::writeDataBlock", blockData, 1);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
 
-      /**
-       * Null string is all 0's but
-       * the conversion makes it the empty string.
-       */
-      int nameSum = 0;
-      for (int index = 0; index < fileNameBytes.length; index++) {
-        nameSum += fileNameBytes[index];
-      }
+    int limit = blockData.limit();
+    blockData.limit(blockData.position() + BLOCK_SIZE);
+    writeFully(rawChannel, blockData, cursor);
+    blockData.limit(limit);
 
-      if ( nameSum <= 0) {
-         inode.setFileName(null);
-      } else {
-        inode.setFileName(fileName);
-      }
-      inode.setSize(fileSizeField);
+    commitBlockEvent(event, "writeDataBlock", whichBlock);
+  }
 
-      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-        inode.setBlockPointer(blkPtrIndex, blockPtrValues[blkPtrIndex]);
-      }
-      
-      return inode;
+  /***
+   * Reads the first <code>numBlocks</code> blocks of <code>whichBlocks</code>,
+   * reading each run of consecutive block numbers with a single request
+   *
+   * @param whichBlocks The positions of the data blocks to be read
+   * @param numBlocks How many entries of <code>whichBlocks</code> to read
+   * @param blockData Buffer receiving the blocks at its position, which is
+   *                  advanced past them
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>blockData</code> cannot hold the blocks
+   */
+  public void readDataBlocks(int[] whichBlocks, int numBlocks, ByteBuffer blockData)
+          throws IOException, IllegalArgumentException {
+    checkBlocks("Disk::readDataBlocks", whichBlocks, numBlocks);
+    checkRemaining("Disk::readDataBlocks", blockData, numBlocks);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    int limit = blockData.limit();
+    for (int i= 0; i < numBlocks; ) {
+      int run = contiguousRun(whichBlocks, i, numBlocks);
+      blockData.limit(blockData.position() + run * BLOCK_SIZE);
+      readFully(rawChannel, blockData, dataBlockOffset(whichBlocks[i]));
+      i += run;
+    }
+    blockData.limit(limit);
+
+    commitBlockEvent(event, "readDataBlocks", whichBlocks, numBlocks);
   }
 
   /***
-   * Reads a block of data from appropriate location in raw file
+   * Writes consecutive blocks from a caller supplied buffer to the first
+   * <code>numBlocks</code> positions of <code>whichBlocks</code>, writing
+   * each run of consecutive block numbers with a single request
    *
-   * @param whichBlock The position of the data block to be read
-   * @return A block of data at position <code>whichBlock</code>
+   * @param blockData Buffer holding the blocks at its position, which is
+   *                  advanced past them
+   * @param whichBlocks The position each block is written to
+   * @param numBlocks How many blocks to write
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>blockData</code> holds fewer than
+   *                                  <code>numBlocks</code> blocks
+   */
+  public void writeDataBlocks(ByteBuffer blockData, int[] whichBlocks, int numBlocks)
+          throws IOException, IllegalArgumentException {
+    checkBlocks("Disk::writeDataBlocks", whichBlocks, numBlocks);
+    checkRemaining("Disk::writeDataBlocks", blockData, numBlocks);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    int limit = blockData.limit();
+    for (int i= 0; i < numBlocks; ) {
+      int run = contiguousRun(whichBlocks, i, numBlocks);
+      blockData.limit(blockData.position() + run * BLOCK_SIZE);
+      writeFully(rawChannel, blockData, dataBlockOffset(whichBlocks[i]));
+      i += run;
+    }
+    blockData.limit(limit);
+
+    commitBlockEvent(event, "writeDataBlocks", whichBlocks, numBlocks);
+  }
+
+  /***
+   * Sends the first <code>numBlocks</code> blocks of <code>whichBlocks</code>
+   * to <code>target</code> straight from the raw file, with one
+   * <code>transferTo</code> per run of consecutive block numbers
+   *
+   * @param whichBlocks The positions of the data blocks to be sent
+   * @param numBlocks How many entries of <code>whichBlocks</code> to send
+   * @param target Blocking channel receiving the blocks
    * @throws IOException If an I/O error occurs
    */
-  public byte[] readDataBlock(int whichBlock) throws IOException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE * whichBlock);
-    byte[] blockData = new byte[BLOCK_SIZE];
+  public void transferDataBlocks(int[] whichBlocks, int numBlocks, WritableByteChannel target)
+          throws IOException {
+    checkBlocks("Disk::transferDataBlocks", whichBlocks, numBlocks);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    for (int i= 0; i < numBlocks; ) {
+      int run = contiguousRun(whichBlocks, i, numBlocks);
+      transferFully(rawChannel, dataBlockOffset(whichBlocks[i]), (long) run * BLOCK_SIZE, target);
+      i += run;
+    }
+
+    commitBlockEvent(event, "transferDataBlocks", whichBlocks, numBlocks);
+  }
+
+  /***
+   * Commits a Flight Recorder event for an inode or free block list
+   * request if the event is enabled
+   *
+   * @param whichInode The inode read or written, -1 for the free block list
+   */
+  protected static void commitINodeEvent(DiskIOEvent event, String operation, int whichInode) {
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.inode = whichInode;
+      event.firstBlock = -1;
+      event.commit();
+    }
+  }
+
+  /***
+   * Commits a Flight Recorder event for a single block request if the
+   * event is enabled
+   */
+  protected static void commitBlockEvent(DiskIOEvent event, String operation, int whichBlock) {
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.inode = -1;
+      event.firstBlock = whichBlock;
+      event.numBlocks = 1;
+      event.runs = 1;
+      event.commit();
+    }
+  }
+
+  /***
+   * Commits a Flight Recorder event for a request for the first
+   * <code>numBlocks</code> blocks of <code>whichBlocks</code> if the event
+   * is enabled. The runs are only counted when it is.
+   */
+  protected static void commitBlockEvent(DiskIOEvent event, String operation, int[] whichBlocks, int numBlocks) {
+    if (event.shouldCommit()) {
+      int runs = 0;
+      for (int i= 0; i < numBlocks; i += contiguousRun(whichBlocks, i, numBlocks)) {
+        runs++;
+      }
+      event.operation = operation;
+      event.inode = -1;
+      event.firstBlock = numBlocks > 0 ? whichBlocks[0] : -1;
+      event.numBlocks = numBlocks;
+      event.runs = runs;
+      event.commit();
+    }
+  }
+
+  /***
+   * Returns how many of the blocks from <code>whichBlocks[start]</code>
+   * on are numbered consecutively
+   */
+  protected static int runLength(int[] whichBlocks, int start, int numBlocks) {
+    int run = 1;
+    while (start + run < numBlocks && whichBlocks[start + run] == whichBlocks[start] + run) {
+      run++;
+    }
+    return run;
+  }
+
+  /***
+   * Returns how many of the blocks from <code>whichBlocks[start]</code> on
+   * are numbered consecutively without leaving the group of the first, so
+   * they sit next to each other in the raw file
+   */
+  protected static int contiguousRun(int[] whichBlocks, int start, int numBlocks) {
+    int blocksLeftInGroup = BlockGroups.BLOCKS_PER_GROUP - whichBlocks[start] % BlockGroups.BLOCKS_PER_GROUP;
+    return Math.min(runLength(whichBlocks, start, numBlocks), blocksLeftInGroup);
+  }
 
-    rawDisk.seek(cursor);
-    rawDisk.read(blockData);
+  /***
+   * Returns the byte offset of the start of a group within the raw file,
+   * where its free block list slice is kept
+   */
+  public static long groupOffset(int group) {
+    return (long) GROUP_SIZE * group;
+  }
+
+  /***
+   * Returns the byte offset of byte <code>index</code> of the free block
+   * list within the raw file
+   */
+  public static long freeListByteOffset(int index) {
+    return groupOffset(index / GROUP_FREE_LIST_BYTES) + index % GROUP_FREE_LIST_BYTES;
+  }
 
-    return blockData;
+  /***
+   * Returns the byte offset of an inode within the raw file
+   */
+  public static long inodeOffset(int whichInode) {
+    return groupOffset(BlockGroups.groupOfINode(whichInode)) + GROUP_FREE_LIST_BYTES +
+           (long) INODE_SIZE * (whichInode % BlockGroups.INODES_PER_GROUP);
   }
 
+  /***
+   * Returns the byte offset of a data block within the raw file
+   */
+  public static long dataBlockOffset(int whichBlock) {
+    return groupOffset(BlockGroups.groupOfBlock(whichBlock)) + GROUP_HEADER_BYTES +
+           (long) BLOCK_SIZE * (whichBlock % BlockGroups.BLOCKS_PER_GROUP);
+  }
 
   /***
-   * Writes a block of data to the appropriate location in raw file
+   * Checks that <code>whichBlock</code> names one of the data blocks, so a
+   * bad block number fails instead of reaching the free block list or the
+   * inodes in front of the data blocks
    *
-   * @param blockData Array of bytes to be written to <code>whichBlock</code>
-   * @param whichBlock Block position in the file system
-   * @throws IOException If an I/O error occurs
-   * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
-   *                                  to the length of a data block size
+   * @throws IllegalArgumentException If it is outside 0..<code>NUM_BLOCKS</code> - 1
    */
-  public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE *whichBlock);
+  protected static void checkBlock(String operation, int whichBlock) throws IllegalArgumentException {
+    if (whichBlock < 0 || whichBlock >= NUM_BLOCKS) {
+      throw new IllegalArgumentException(operation + ":  " +
+                     "block " + whichBlock + " is outside 0.." + (NUM_BLOCKS - 1));
+    }
+  }
 
-    if (blockData.length != BLOCK_SIZE) {
-       throw new IllegalArgumentException("Disk::writeDataBlock:  "  +
-                     "storing block of size " + blockData.length  +
-                     "when it should be of size "  + BLOCK_SIZE);
+  /***
+   * Checks the first <code>numBlocks</code> blocks of <code>whichBlocks</code>
+   * before any of them is read or written
+   *
+   * @throws IllegalArgumentException If one is outside 0..<code>NUM_BLOCKS</code> - 1
+   */
+  protected static void checkBlocks(String operation, int[] whichBlocks, int numBlocks)
+          throws IllegalArgumentException {
+    for (int i= 0; i < numBlocks; i++) {
+      checkBlock(operation, whichBlocks[i]);
+    }
+  }
+
+  protected static void checkRemaining(String operation, ByteBuffer blockData, int numBlocks)
+          throws IllegalArgumentException {
+    if (blockData.remaining() < numBlocks * BLOCK_SIZE) {
+      throw new IllegalArgumentException(operation + ":  " +
+                     "buffer holds " + blockData.remaining() +
+                     " bytes when " + (numBlocks * BLOCK_SIZE) + " are needed");
     }
+  }
+
+  /***
+   * Reads from <code>channel</code> at <code>position</code> until
+   * <code>buffer</code> is full or the end of the file is reached
+   */
+  protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    long cursor = position;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, cursor);
+      if (read < 0) {
+        break;
+      }
+      cursor += read;
+    }
+  }
 
-    rawDisk.seek(cursor);
-    rawDisk.write(blockData);
+  /***
+   * Writes all of <code>buffer</code> to <code>channel</code> at <code>position</code>
+   */
+  protected static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    long cursor = position;
+    while (buffer.hasRemaining()) {
+      cursor += channel.write(buffer, cursor);
+    }
+  }
+
+  /***
+   * Sends <code>count</code> bytes of <code>channel</code> from
+   * <code>position</code> on to <code>target</code>
+   *
+   * @throws IOException If the bytes run past the end of the file
+   */
+  protected static void transferFully(FileChannel channel, long position, long count, WritableByteChannel target)
+          throws IOException {
+    long cursor = position;
+    long end = position + count;
+    while (cursor < end) {
+      long sent = channel.transferTo(cursor, end - cursor, target);
+      if (sent == 0 && cursor >= channel.size()) {
+        throw new IOException("Disk::transferFully:  " +
+                       "byte " + cursor + " is past the end of the device");
+      }
+      cursor += sent;
+    }
   }
 
   /***
@@ -0,0 +1,43 @@
+package filesystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event for one request to a <code>Disk</code>: a data
+ * block transfer, an inode read or write, or a free block list access.
+ * Multi-block requests report the first block, the number of blocks and
+ * the number of runs of consecutive blocks they were issued as. Like
+ * <code>FileOperationEvent</code> it is disabled by default.
+ */
+@Name("filesystem.DiskIO")
+@Label("Disk I/O")
+@Category({"File System"})
+@Description("A block, inode or free list request to a Disk")
+@Enabled(false)
+@StackTrace(false)
+public class DiskIOEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Inode")
+    @Description("Inode read or written, -1 for block requests")
+    int inode;
+
+    @Label("First Block")
+    @Description("First data block of the request, -1 for inode and free list requests")
+    int firstBlock;
+
+    @Label("Blocks")
+    int numBlocks;
+
+    @Label("Runs")
+    @Description("Runs of consecutive blocks the request was split into")
+    int runs;
+}
@@ -0,0 +1,34 @@
+package filesystem;
+
+
+/**
+ * When changes reach stable storage. Every mode makes data durable on an
+ * explicit <code>FileSystem.sync()</code>; they differ in what
+ * <code>FileSystem.close</code> waits for.
+ */
+public enum DurabilityMode {
+    /**
+     * Close never forces; data is durable only after <code>sync()</code>
+     * or when the operating system writes it back
+     */
+    NONE,
+
+    /**
+     * Every close forces the device before returning
+     */
+    PER_OPERATION,
+
+    /**
+     * A background thread forces the device every interval if anything
+     * changed; close returns immediately, so up to one interval of closed
+     * files can be lost
+     */
+    PERIODIC,
+
+    /**
+     * Every close waits until a force that started after its changes has
+     * finished, and closes that arrive while a force is running share the
+     * next one
+     */
+    GROUP_COMMIT
+}
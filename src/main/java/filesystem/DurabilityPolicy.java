@@ -0,0 +1,197 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Applies a <code>DurabilityMode</code> to a <code>BlockDevice</code>.
+ *
+ * Group commit works with tickets: each commit takes the next ticket and
+ * waits until a force covering it has finished. The first waiter with no
+ * force running becomes the leader and forces once for every ticket issued
+ * so far, so concurrent committers share a single
+ * <code>FileChannel.force</code>.
+ */
+public class DurabilityPolicy {
+    public final static long DEFAULT_INTERVAL_MILLIS = 100;
+
+    private BlockDevice disk;
+    private DurabilityMode mode;
+    private long intervalMillis;
+    private ScheduledExecutorService syncThread;
+
+    private final Object lock = new Object();
+    private long requested;
+    private long synced;
+    private boolean isSyncing;
+    private boolean isDirty;
+
+    public DurabilityPolicy(BlockDevice disk, DurabilityMode mode) {
+        this(disk, mode, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param disk Device to force
+     * @param mode When commits force the device
+     * @param intervalMillis Time between forces in <code>PERIODIC</code> mode
+     * @throws IllegalArgumentException If the interval is not positive
+     */
+    public DurabilityPolicy(BlockDevice disk, DurabilityMode mode, long intervalMillis)
+            throws IllegalArgumentException {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("DurabilityPolicy::DurabilityPolicy: " +
+                    "interval is " + intervalMillis + " ms, it must be positive");
+        }
+        this.disk = disk;
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+
+        if (mode == DurabilityMode.PERIODIC) {
+            syncThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "DurabilityPolicy-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncThread.scheduleWithFixedDelay(this::periodicSync, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Called after an operation has made its changes. Depending on the
+     * mode this forces the device, waits for a shared force, or only
+     * records that there is something to force.
+     *
+     * @throws IOException If forcing the device fails
+     */
+    public void commit() throws IOException {
+        commit(mode);
+    }
+
+    /**
+     * Like <code>commit()</code> but applying <code>callMode</code> for this
+     * call only
+     *
+     * @param callMode Mode to apply to this call
+     * @throws IOException If forcing the device fails
+     */
+    public void commit(DurabilityMode callMode) throws IOException {
+        switch (callMode) {
+            case NONE:
+            case PERIODIC:
+                synchronized (lock) {
+                    isDirty = true;
+                }
+                break;
+            case PER_OPERATION:
+                disk.sync();
+                break;
+            case GROUP_COMMIT:
+                groupSync();
+                break;
+        }
+    }
+
+    /**
+     * Forces everything written so far, sharing the force with concurrent
+     * committers
+     *
+     * @throws IOException If forcing the device fails
+     */
+    public void sync() throws IOException {
+        groupSync();
+    }
+
+    /**
+     * Stops the background thread of <code>PERIODIC</code> mode after a
+     * final force
+     *
+     * @throws IOException If forcing the device fails
+     */
+    public void close() throws IOException {
+        if (syncThread != null) {
+            syncThread.shutdown();
+            syncThread = null;
+        }
+        synchronized (lock) {
+            if (!isDirty) {
+                return;
+            }
+        }
+        groupSync();
+    }
+
+    private void groupSync() throws IOException {
+        long ticket;
+        long covered;
+
+        synchronized (lock) {
+            ticket = ++requested;
+
+            while (isSyncing && synced < ticket) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("DurabilityPolicy::commit: interrupted while waiting for sync", e);
+                }
+            }
+            if (synced >= ticket) {
+                return;
+            }
+
+            /**
+             * Become the leader: force once for every ticket issued so far.
+             * If a previous leader failed, its followers get here and retry.
+             */
+            isSyncing = true;
+            isDirty = false;
+            covered = requested;
+        }
+
+        IOException failure = null;
+        try {
+            disk.sync();
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (lock) {
+            isSyncing = false;
+            if (failure == null) {
+                synced = Math.max(synced, covered);
+            } else {
+                isDirty = true;
+            }
+            lock.notifyAll();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void periodicSync() {
+        synchronized (lock) {
+            if (!isDirty) {
+                return;
+            }
+        }
+        try {
+            groupSync();
+        } catch (IOException e) {
+            System.err.println("DurabilityPolicy::periodicSync: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package filesystem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded cache of whole file contents, keyed by inode number and the
+ * inode's generation. <code>FileSystem</code> moves a file to a new
+ * generation whenever its contents change, so a cached copy can never be
+ * served after a write or delete; the old copy is also dropped at once.
+ *
+ * With <code>Admission.TINY_LFU</code> new files enter a small LRU window
+ * and only move into the main LRU region if they have been read more
+ * often than the file they would push out, as estimated by a count-min
+ * sketch of recent reads (W-TinyLFU). A scan that reads many files once
+ * then stays in the window instead of flushing the hot files.
+ * <code>Admission.ALWAYS</code> is a plain LRU cache.
+ */
+public class FileContentCache {
+    public enum Admission {
+        ALWAYS,
+        TINY_LFU
+    }
+
+    public final static double WINDOW_FRACTION = 0.01;
+
+    private long maxBytes;
+    private long maxFileBytes;
+    private Admission admission;
+    private long windowBytes;
+    private long mainBytes;
+
+    /**
+     * Cached contents by key, least recently used first
+     */
+    private LinkedHashMap<Long, byte[]> window;
+    private LinkedHashMap<Long, byte[]> main;
+    private long windowUsed;
+    private long mainUsed;
+    private FrequencySketch sketch;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param maxBytes Most bytes of file contents to hold
+     * @param maxFileBytes Largest file that is cached
+     * @param admission How files are admitted once the cache is full
+     * @throws IllegalArgumentException If a limit is not positive
+     */
+    public FileContentCache(long maxBytes, long maxFileBytes, Admission admission)
+            throws IllegalArgumentException {
+        if (maxBytes <= 0 || maxFileBytes <= 0) {
+            throw new IllegalArgumentException("FileContentCache::FileContentCache: " +
+                    "limits of " + maxBytes + " and " + maxFileBytes + " bytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.admission = admission;
+        this.windowBytes = admission == Admission.TINY_LFU ? (long) (maxBytes * WINDOW_FRACTION) : 0;
+        this.mainBytes = maxBytes - windowBytes;
+
+        window = new LinkedHashMap<>(16, 0.75f, true);
+        main = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = new FrequencySketch(maxBytes / Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Returns true if a file of <code>size</code> bytes may be cached
+     */
+    public boolean accepts(int size) {
+        return size <= maxFileBytes;
+    }
+
+    /**
+     * Returns the cached contents of a file and records the read
+     *
+     * @param whichInode - inode of the file
+     * @param generation - current generation of the inode
+     * @return Returns the contents, which must not be modified, or null
+     */
+    public synchronized byte[] get(int whichInode, int generation) {
+        sketch.increment(whichInode);
+
+        long key = key(whichInode, generation);
+        byte[] contents = main.get(key);
+        if (contents == null) {
+            contents = window.get(key);
+        }
+        if (contents == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return contents;
+    }
+
+    /**
+     * Offers the contents of a file to the cache
+     *
+     * @param whichInode - inode of the file
+     * @param generation - generation of the inode the contents belong to
+     * @param contents - contents of the file, which the cache keeps
+     */
+    public synchronized void put(int whichInode, int generation, byte[] contents) {
+        if (!accepts(contents.length)) {
+            return;
+        }
+        long key = key(whichInode, generation);
+        if (main.containsKey(key) || window.containsKey(key)) {
+            return;
+        }
+
+        if (admission == Admission.ALWAYS) {
+            evictUntilFits(contents.length);
+            main.put(key, contents);
+            mainUsed += contents.length;
+            return;
+        }
+
+        window.put(key, contents);
+        windowUsed += contents.length;
+        Iterator<Map.Entry<Long, byte[]>> candidates = window.entrySet().iterator();
+        while (windowUsed > windowBytes && candidates.hasNext()) {
+            Map.Entry<Long, byte[]> candidate = candidates.next();
+            candidates.remove();
+            windowUsed -= candidate.getValue().length;
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /**
+     * Drops the cached contents of one generation of a file
+     *
+     * @param whichInode - inode of the file
+     * @param generation - generation to drop
+     */
+    public synchronized void invalidate(int whichInode, int generation) {
+        long key = key(whichInode, generation);
+        byte[] contents = main.remove(key);
+        if (contents != null) {
+            mainUsed -= contents.length;
+        }
+        contents = window.remove(key);
+        if (contents != null) {
+            windowUsed -= contents.length;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getUsedBytes() {
+        return windowUsed + mainUsed;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Moves a file leaving the window into the main region if it has room,
+     * or if the file is read more often than the main region's least
+     * recently used file
+     */
+    private void admit(long key, byte[] contents) {
+        if (mainUsed + contents.length > mainBytes) {
+            Map.Entry<Long, byte[]> victim = eldest(main);
+            if (victim == null
+                    || sketch.frequency(inodeOf(key)) <= sketch.frequency(inodeOf(victim.getKey()))) {
+                return;
+            }
+        }
+        evictUntilFits(contents.length);
+        main.put(key, contents);
+        mainUsed += contents.length;
+    }
+
+    private void evictUntilFits(int size) {
+        Iterator<Map.Entry<Long, byte[]>> victims = main.entrySet().iterator();
+        while (mainUsed + size > mainBytes && victims.hasNext()) {
+            mainUsed -= victims.next().getValue().length;
+            victims.remove();
+        }
+    }
+
+    private static Map.Entry<Long, byte[]> eldest(LinkedHashMap<Long, byte[]> region) {
+        Iterator<Map.Entry<Long, byte[]>> entries = region.entrySet().iterator();
+        return entries.hasNext() ? entries.next() : null;
+    }
+
+    private static long key(int whichInode, int generation) {
+        return ((long) whichInode << 32) | (generation & 0xFFFFFFFFL);
+    }
+
+    private static int inodeOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Count-min sketch of recent reads by inode. Frequencies are kept per
+     * inode rather than per generation, so a file stays popular across
+     * rewrites. Counters saturate at 15 and are halved once enough reads
+     * are recorded, so old popularity fades.
+     */
+    private static class FrequencySketch {
+        private final static int DEPTH = 4;
+        private final static int MAX_COUNT = 15;
+        private final static int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private int[][] counters;
+        private int mask;
+        private int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.max(64, Math.min(expectedEntries, 1 << 16)) * 2 - 1);
+            counters = new int[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(int whichInode) {
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(whichInode, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (int[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int whichInode) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][index(whichInode, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int whichInode, int row) {
+            int hash = (whichInode + 1) * SEEDS[row];
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
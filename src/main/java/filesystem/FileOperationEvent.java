@@ -0,0 +1,43 @@
+package filesystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event for one <code>FileSystem</code> call. The event is
+ * disabled by default; turn it on with the <code>filesystem.jfc</code>
+ * settings shipped in the resources, or with
+ * <code>filesystem.FileOperation#enabled=true</code> in any settings file.
+ * While it is disabled, the event objects are never filled in or committed.
+ */
+@Name("filesystem.FileOperation")
+@Label("File Operation")
+@Category({"File System"})
+@Description("A create, open, read, write, delete or close on a FileSystem")
+@Enabled(false)
+@StackTrace(false)
+public class FileOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("File Name")
+    String fileName;
+
+    @Label("File Descriptor")
+    int fileDescriptor;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Blocks")
+    @Description("Data blocks read, written or released")
+    int blocks;
+}
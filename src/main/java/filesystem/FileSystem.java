@@ -1,235 +1,2019 @@
 package filesystem;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
 
 
 public class FileSystem {
-    public Disk diskDevice;
+    public final static int ROOT_INODE = 0;
+    public final static String DIRECTORY_SUFFIX = "/";
+    public final static int DIRECTORY_CACHE_SIZE = 4096;
+    public final static long DELAYED_ALLOCATION_LIMIT = 4L * 1024 * 1024;
 
-    private int iNodeNumber;
-    private int fileDescriptor;
-    private INode iNodeForFile;
+    /**
+     * Contents of a hole in a sparse file
+     */
+    private final static ByteBuffer ZERO_BLOCK = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE).asReadOnlyBuffer();
+
+    public BlockDevice diskDevice;
+
+    /**
+     * Inodes of the open files, keyed by file descriptor. A file
+     * descriptor is the number of the file's inode.
+     */
+    private Map<Integer, INode> openFiles;
+    private volatile DurabilityPolicy durability;
+    private BlockReferenceCounts blockReferences;
+    private BitSet usedINodes;
+
+    /**
+     * Scratch state reused by read and write so the data path does not
+     * allocate: the free block list image, the block numbers of one file
+     * and one block for partial first or last blocks
+     */
+    private FreeBlockList freeBlockList;
+    private int[] blockNumbers;
+    private ByteBuffer blockBuffer;
+
+    /**
+     * Flyweights over the disk's inode table used by path lookups, one for
+     * the directory being searched and one for its candidate entries
+     */
+    private INodeView directoryView;
+    private INodeView entryView;
+
+    /**
+     * Recently resolved paths mapped to their inode numbers, least
+     * recently used first
+     */
+    private Map<String, Integer> directoryCache;
+
+    /**
+     * Delayed allocation: the contents written to each file since it was
+     * last flushed, keyed by file descriptor, and the number of data
+     * blocks and bytes they hold. Blocks are only chosen when the file is
+     * flushed, so the reserved count keeps the flush from running out of
+     * space.
+     */
+    private volatile boolean isDelayedAllocation;
+    private Map<Integer, ByteBuffer> pendingWrites;
+    private int reservedBlocks;
+    private long pendingBytes;
+
+    /**
+     * Optional cache of whole files. Each inode has a generation that is
+     * advanced whenever the file's contents change, and cached contents
+     * are only served for the current generation.
+     */
+    private volatile FileContentCache contentCache;
+    private int[] generations;
+
+    /**
+     * Lock-free reads. Every open file has a published copy of its inode,
+     * keyed by file descriptor, that is never changed once published, and
+     * a sequence lock that writers hold while they change the file's
+     * blocks and then publish a new copy. Readers take no lock unless a
+     * writer ran while they were reading.
+     */
+    private AtomicReferenceArray<INode> publishedINodes;
+    private StampedLock[] inodeLocks;
+    private ThreadLocal<ReadScratch> readScratch;
+
+    /**
+     * How many calls of this file system hold the device's metadata lock,
+     * so operations built on other operations take it only once
+     */
+    private int metadataLockDepth;
+
+    public FileSystem() throws IOException {
+        this(new Disk());
+    }
+
+    /**
+     * Formats <code>disk</code> and builds an empty file system on it
+     *
+     * @param disk - device holding the file system, for example a
+     *               <code>StripedDisk</code> or a <code>MemoryDisk</code>
+     * @throws IOException If the disk cannot be formatted
+     */
+    public FileSystem(BlockDevice disk) throws IOException {
+        this(disk, true);
+    }
+
+    /**
+     * Builds a file system over the one already on <code>disk</code>, for
+     * example a volume another process shares through a
+     * <code>BlockServer</code>
+     *
+     * @param disk - open device holding a file system
+     * @return Returns the file system, with no files open
+     * @throws IOException If the device holds no file system
+     */
+    public static FileSystem mount(BlockDevice disk) throws IOException {
+        return new FileSystem(disk, false);
+    }
+
+    private FileSystem(BlockDevice disk, boolean isFormatting) throws IOException {
+        diskDevice = disk;
+        if (isFormatting) {
+            diskDevice.format();
+        }
+        blockReferences = new BlockReferenceCounts();
+        openFiles = new HashMap<>();
+        pendingWrites = new HashMap<>();
+        generations = new int[Disk.NUM_INODES];
+        publishedINodes = new AtomicReferenceArray<>(Disk.NUM_INODES);
+        inodeLocks = new StampedLock[Disk.NUM_INODES];
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            inodeLocks[i] = new StampedLock();
+        }
+        readScratch = ThreadLocal.withInitial(ReadScratch::new);
+        durability = new DurabilityPolicy(diskDevice, DurabilityMode.NONE);
+        freeBlockList = new FreeBlockList();
+        blockNumbers = new int[INode.NUM_BLOCK_POINTERS];
+        blockBuffer = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE);
+        directoryView = diskDevice.getINodeTable().newView();
+        entryView = diskDevice.getINodeTable().newView();
+        usedINodes = new BitSet(Disk.NUM_INODES);
+        directoryCache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > DIRECTORY_CACHE_SIZE;
+            }
+        };
+
+        if (!isFormatting) {
+            diskDevice.refreshINodeTable();
+            if (!directoryView.at(ROOT_INODE).isDirectory()) {
+                throw new IOException("FileSystem::mount: the device holds no file system");
+            }
+            findUsedINodes();
+            INodeView view = diskDevice.getINodeTable().newView();
+            for (int i = usedINodes.nextSetBit(0); i >= 0; i = usedINodes.nextSetBit(i + 1)) {
+                view.at(i);
+                for (int j = 0; j < INode.NUM_BLOCK_POINTERS; j++) {
+                    if (view.getBlockPointer(j) != -1) {
+                        blockReferences.increment(view.getBlockPointer(j));
+                    }
+                }
+            }
+            return;
+        }
+
+        INode root = new INode();
+        root.setFileName(DIRECTORY_SUFFIX);
+        root.setSize(0);
+        lockMetadata();
+        try {
+            diskDevice.writeInode(root, ROOT_INODE);
+            usedINodes.set(ROOT_INODE);
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+    /**
+     * Picks up inodes written by other users of a shared device before a
+     * path is resolved. Cached paths may name entries they removed, so the
+     * cache is dropped when anything changed.
+     */
+    private void refreshINodes() throws IOException {
+        if (diskDevice.refreshINodeTable()) {
+            directoryCache.clear();
+            findUsedINodes();
+        }
+    }
+
+    /**
+     * Takes the device's metadata lock before the free block list, the
+     * inodes or a directory are read to be changed, so other users of a
+     * shared device cannot allocate the same blocks or inodes meanwhile.
+     * The inodes they wrote before releasing it are picked up here.
+     */
+    private void lockMetadata() throws IOException {
+        if (metadataLockDepth++ > 0) {
+            return;
+        }
+        boolean isChanged;
+        try {
+            isChanged = diskDevice.lockMetadata();
+        } catch (IOException e) {
+            metadataLockDepth--;
+            throw e;
+        }
+        if (isChanged) {
+            directoryCache.clear();
+            findUsedINodes();
+        }
+    }
+
+    /**
+     * Releases the device's metadata lock once the outermost operation
+     * holding it is done; the device sends its queued writes first
+     */
+    private void unlockMetadata() throws IOException {
+        if (--metadataLockDepth == 0) {
+            diskDevice.unlockMetadata();
+        }
+    }
+
+    /**
+     * Marks the inodes that have a name in the inode table as used
+     */
+    private void findUsedINodes() {
+        usedINodes.clear();
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            if (!entryView.at(i).isFree()) {
+                usedINodes.set(i);
+            }
+        }
+    }
+
+    /***
+     * Create a file with the name <code>fileName</code>
+     *
+     * @param fileName - path of the file to create; every directory on the
+     *                   path must already exist
+     * @throws IOException If the file already exists, its directory does not
+     *                     exist or no inode is free
+     */
+    public synchronized int create(String fileName) throws IOException {
+        lockMetadata();
+        try {
+            FileOperationEvent event = new FileOperationEvent();
+            event.begin();
+            String path = normalizePath(fileName);
+            int parent = resolveParent(path, "create");
+            String name = leafName(path);
+
+            if (lookup(parent, name) != -1) {
+                throw new IOException("FileSystem::create: " + fileName + " already exists");
+            }
+
+            int i = allocateINode("create", BlockGroups.groupOfINode(parent));
+            INode iNodeForFile = new INode();
+            iNodeForFile.setFileName(name);
+            diskDevice.writeInode(iNodeForFile, i);
+            addEntry(parent, name, i);
+            directoryCache.put(path, i);
+
+            long stamp = beginUpdate(i);
+            openFiles.put(i, iNodeForFile);
+            endUpdate(i, stamp);
+
+            commitEvent(event, "create", i, fileName, null);
+            return i;
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /***
+     * Create a directory with the name <code>dirName</code>
+     *
+     * @param dirName - path of the directory to create; every directory
+     *                  above it must already exist
+     * @throws IOException If the name is taken, its parent does not exist
+     *                     or no inode is free
+     */
+    public synchronized void mkdir(String dirName) throws IOException {
+        lockMetadata();
+        try {
+            String path = normalizePath(dirName);
+            int parent = resolveParent(path, "mkdir");
+            String name = leafName(path);
+
+            if (lookup(parent, name) != -1) {
+                throw new IOException("FileSystem::mkdir: " + dirName + " already exists");
+            }
+
+            int i = allocateINode("mkdir", BlockGroups.spreadGroup(usedINodes, diskDevice.readFreeBlockList()));
+            INode dirINode = new INode();
+            dirINode.setFileName(name + DIRECTORY_SUFFIX);
+            dirINode.setSize(0);
+            diskDevice.writeInode(dirINode, i);
+            addEntry(parent, name, i);
+            directoryCache.put(path, i);
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /**
+     * Removes the file
+     *
+     * @param fileName - path of the file to remove
+     * @throws IOException If <code>fileName</code> is a directory
+     */
+    public synchronized void delete(String fileName) throws IOException {
+        lockMetadata();
+        try {
+            FileOperationEvent event = new FileOperationEvent();
+            event.begin();
+            String path = normalizePath(fileName);
+            int parent = resolveParent(path, "delete");
+            int inodeNumForDeletion = parent == -1 ? -1 : lookup(parent, leafName(path));
+
+            /***
+             * If file found, go ahead and deallocate its
+             * blocks and null out the filename.
+             */
+            if (inodeNumForDeletion != -1) {
+                INode tmpINode = diskDevice.readInode(inodeNumForDeletion);
+                if (isDirectory(tmpINode)) {
+                    throw new IOException("FileSystem::delete: " + fileName + " is a directory");
+                }
+
+                removeEntry(parent, leafName(path), inodeNumForDeletion);
+                directoryCache.remove(path);
+                discardPendingWrite(inodeNumForDeletion);
+                deallocateBlocksForFile(inodeNumForDeletion);
+                tmpINode = diskDevice.readInode(inodeNumForDeletion);
+                tmpINode.setFileName(null);
+                diskDevice.writeInode(tmpINode, inodeNumForDeletion);
+                usedINodes.clear(inodeNumForDeletion);
+                long stamp = beginUpdate(inodeNumForDeletion);
+                openFiles.remove(inodeNumForDeletion);
+                endUpdate(inodeNumForDeletion, stamp);
+                commitEvent(event, "delete", inodeNumForDeletion, fileName, null);
+            }
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /**
+     * Removes an empty directory
+     *
+     * @param dirName - path of the directory to remove
+     * @throws IOException If the directory does not exist, is not a
+     *                     directory or is not empty
+     */
+    public synchronized void rmdir(String dirName) throws IOException {
+        lockMetadata();
+        try {
+            String path = normalizePath(dirName);
+            int dir = resolve(path);
+            if (dir == -1 || dir == ROOT_INODE) {
+                throw new IOException("FileSystem::rmdir: " + dirName + " cannot be removed");
+            }
+
+            INode dirINode = diskDevice.readInode(dir);
+            if (!isDirectory(dirINode)) {
+                throw new IOException("FileSystem::rmdir: " + dirName + " is not a directory");
+            }
+            if (dirINode.getSize() > 0) {
+                throw new IOException("FileSystem::rmdir: " + dirName + " is not empty");
+            }
+
+            removeEntry(resolveParent(path, "rmdir"), leafName(path), dir);
+            directoryCache.remove(path);
+            deallocateBlocksForFile(dir);
+            dirINode = diskDevice.readInode(dir);
+            dirINode.setFileName(null);
+            dirINode.setSize(-1);
+            diskDevice.writeInode(dirINode, dir);
+            usedINodes.clear(dir);
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /**
+     * Lists a directory
+     *
+     * @param dirName - path of the directory, "/" for the root
+     * @return Returns the names in the directory; directory names end in "/"
+     * @throws IOException If the directory does not exist
+     */
+    public synchronized List<String> list(String dirName) throws IOException {
+        refreshINodes();
+        int dir = resolve(normalizePath(dirName));
+        if (dir == -1 || !isDirectory(dir)) {
+            throw new IOException("FileSystem::list: " + dirName + " is not a directory");
+        }
+
+        List<String> names = new ArrayList<>();
+        for (int entry : entries(dir)) {
+            names.add(diskDevice.readInode(entry).getFileName().trim());
+        }
+        return names;
+    }
+
+
+    /***
+     * Makes the file available for reading/writing
+     *
+     * @return Returns the file descriptor, or -1 if there is no such file
+     * @throws IOException If <code>fileName</code> is a directory
+     */
+    public synchronized int open(String fileName) throws IOException {
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        refreshINodes();
+        int iNodeContainingName = resolve(normalizePath(fileName));
+
+        if (iNodeContainingName != -1) {
+            INode tmpINode = diskDevice.readInode(iNodeContainingName);
+            if (isDirectory(tmpINode)) {
+                throw new IOException("FileSystem::open: " + fileName + " is a directory");
+            }
+            // A file with pending writes keeps the inode they will be flushed to
+            if (!pendingWrites.containsKey(iNodeContainingName)) {
+                long stamp = beginUpdate(iNodeContainingName);
+                openFiles.put(iNodeContainingName, tmpINode);
+                endUpdate(iNodeContainingName, stamp);
+            }
+        }
+
+        commitEvent(event, "open", iNodeContainingName, fileName, null);
+        return iNodeContainingName;
+    }
+
+
+    /***
+     * Closes the file, making it durable as the file system's
+     * <code>DurabilityMode</code> requires
+     *
+     * @throws IOException If disk is not accessible for writing
+     */
+    public void close(int fileDescriptor) throws IOException {
+        close(fileDescriptor, durability.getMode());
+    }
+
+
+    /***
+     * Closes the file, making it durable as <code>mode</code> requires
+     * instead of the file system's own mode
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param mode - durability to apply to this close
+     * @throws IOException If disk is not accessible for writing
+     */
+    public void close(int fileDescriptor, DurabilityMode mode) throws IOException {
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        INode iNodeForFile;
+        synchronized (this) {
+            iNodeForFile = openFiles.get(fileDescriptor);
+            if (iNodeForFile == null) {
+                throw new IOException("FileSystem::close: file descriptor, " +
+                        fileDescriptor + " does not match file descriptor " +
+                        "of open file");
+            }
+            lockMetadata();
+            try {
+                flushPendingWrite(fileDescriptor, iNodeForFile);
+                diskDevice.writeInode(iNodeForFile, fileDescriptor);
+            } finally {
+                unlockMetadata();
+            }
+            long stamp = beginUpdate(fileDescriptor);
+            openFiles.remove(fileDescriptor);
+            endUpdate(fileDescriptor, stamp);
+        }
+
+        // Wait for the device outside the lock so that concurrent closes can share a force
+        durability.commit(mode);
+        commitEvent(event, "close", fileDescriptor, null, iNodeForFile);
+    }
+
+
+    /***
+     * Forces every change made so far to stable storage, whatever the
+     * durability mode
+     *
+     * @throws IOException If the disk cannot be forced
+     */
+    public void sync() throws IOException {
+        synchronized (this) {
+            lockMetadata();
+            try {
+                flushPendingWrites();
+            } finally {
+                unlockMetadata();
+            }
+        }
+        durability.sync();
+    }
+
+
+    /***
+     * Chooses when closed files become durable
+     *
+     * @param mode - durability mode for this file system
+     * @throws IOException If outstanding changes cannot be forced when
+     *                     leaving the previous mode
+     */
+    public void setDurabilityMode(DurabilityMode mode) throws IOException {
+        setDurabilityMode(mode, DurabilityPolicy.DEFAULT_INTERVAL_MILLIS);
+    }
+
+
+    /***
+     * Chooses when closed files become durable
+     *
+     * @param mode - durability mode for this file system
+     * @param intervalMillis - time between forces in <code>PERIODIC</code> mode
+     * @throws IOException If outstanding changes cannot be forced when
+     *                     leaving the previous mode
+     */
+    public void setDurabilityMode(DurabilityMode mode, long intervalMillis) throws IOException {
+        DurabilityPolicy previous;
+        synchronized (this) {
+            previous = durability;
+            durability = new DurabilityPolicy(diskDevice, mode, intervalMillis);
+        }
+        previous.close();
+    }
+
+
+    public DurabilityMode getDurabilityMode() {
+        return durability.getMode();
+    }
+
+
+    /***
+     * Chooses when data blocks are allocated. With delayed allocation a
+     * write only buffers the new contents and reserves space; the blocks
+     * are chosen when the file is closed or synced, or when more than
+     * <code>DELAYED_ALLOCATION_LIMIT</code> bytes are pending, and are
+     * taken as one contiguous run where possible. A file deleted before
+     * then never reaches the disk.
+     *
+     * @param isDelayedAllocation - true to delay allocation until flush
+     * @throws IOException If pending writes cannot be flushed when turning
+     *                     delayed allocation off
+     */
+    public synchronized void setDelayedAllocation(boolean isDelayedAllocation) throws IOException {
+        lockMetadata();
+        try {
+            if (!isDelayedAllocation) {
+                flushPendingWrites();
+            }
+            this.isDelayedAllocation = isDelayedAllocation;
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    public synchronized boolean isDelayedAllocation() {
+        return isDelayedAllocation;
+    }
+
+
+    /***
+     * Serves reads of whole files from <code>cache</code>. Writes and
+     * deletes invalidate the file's cached contents.
+     *
+     * @param cache - cache to use, or null to read every file from disk
+     */
+    public synchronized void setContentCache(FileContentCache cache) {
+        contentCache = cache;
+    }
+
+
+    public synchronized FileContentCache getContentCache() {
+        return contentCache;
+    }
+
+
+    /**
+     * Returns the free extents, file fragments, wasted bytes and inode
+     * usage of the volume. Writes still held back by delayed allocation
+     * have no blocks yet and are not counted.
+     *
+     * @throws IOException If the free block list cannot be read
+     */
+    public synchronized SpaceStatistics getSpaceStatistics() throws IOException {
+        byte[] currentFreeList = freeBlockList.getFreeBlockList();
+        diskDevice.readFreeBlockList(currentFreeList);
+        return SpaceStatistics.of(currentFreeList, diskDevice.getINodeTable());
+    }
+
+
+    /**
+     * Add your Javadoc documentation for this method
+     */
+    public String read(int fileDescriptor) throws IOException {
+        byte[] fileData = new byte[readSize(fileDescriptor)];
+        int bytesRead = read(fileDescriptor, ByteBuffer.wrap(fileData));
+        return new String(fileData, 0, bytesRead);
+    }
+
+
+    /**
+     * Returns the size of the file as a reader would see it now, from its
+     * pending contents or its published inode
+     */
+    private int readSize(int fileDescriptor) throws IOException {
+        if (isDelayedAllocation || contentCache != null) {
+            synchronized (this) {
+                INode iNodeForFile = openFiles.get(fileDescriptor);
+                if (iNodeForFile == null) {
+                    throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+                }
+                ByteBuffer pending = pendingWrites.get(fileDescriptor);
+                return pending != null ? pending.remaining() : Math.max(iNodeForFile.getSize(), 0);
+            }
+        }
+
+        INode published = publishedINode(fileDescriptor);
+        if (published == null) {
+            throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+        }
+        return Math.max(published.getSize(), 0);
+    }
+
+
+    /***
+     * Reads the file into a caller supplied buffer without allocating.
+     * Readers do not lock: the file's published inode and blocks are read
+     * optimistically and read again under the file's read lock only if a
+     * writer changed the file meanwhile, so every read sees one version of
+     * the file. With delayed allocation or a content cache, reads hold the
+     * file system lock instead.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - buffer receiving the file at its position; if it has
+     *               less room than the file, only the start of the file is read
+     * @return Returns the number of bytes read
+     * @throws IOException If the file is not open or a block cannot be read
+     */
+    public int read(int fileDescriptor, ByteBuffer data) throws IOException {
+        if (isDelayedAllocation || contentCache != null) {
+            return readLocked(fileDescriptor, data);
+        }
+
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+        }
+        StampedLock lock = inodeLocks[fileDescriptor];
+        ReadScratch scratch = readScratch.get();
+        int start = data.position();
+
+        long stamp = lock.tryOptimisticRead();
+        INode inode = publishedINodes.get(fileDescriptor);
+        if (stamp != 0 && inode != null) {
+            try {
+                int bytesRead = readContents(inode, data, scratch.blockNumbers, scratch.blockBuffer);
+                if (lock.validate(stamp)) {
+                    commitReadEvent(event, fileDescriptor, inode, bytesRead);
+                    return bytesRead;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Blocks freed by a concurrent writer; only an error if no writer ran
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+            data.position(start);
+        }
+
+        stamp = lock.readLock();
+        try {
+            inode = publishedINodes.get(fileDescriptor);
+            if (inode == null) {
+                throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+            }
+            int bytesRead = readContents(inode, data, scratch.blockNumbers, scratch.blockBuffer);
+            commitReadEvent(event, fileDescriptor, inode, bytesRead);
+            return bytesRead;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    /**
+     * Reads the file holding the file system lock, from its pending
+     * contents, the content cache or the disk
+     */
+    private synchronized int readLocked(int fileDescriptor, ByteBuffer data) throws IOException {
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        INode iNodeForFile = openFiles.get(fileDescriptor);
+        if (iNodeForFile == null) {
+            throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+        }
+
+        ByteBuffer pending = pendingWrites.get(fileDescriptor);
+        int bytesRead;
+        if (pending != null) {
+            ByteBuffer contents = pending.duplicate();
+            contents.limit(Math.min(contents.remaining(), data.remaining()));
+            bytesRead = contents.remaining();
+            data.put(contents);
+            event.bytes = bytesRead;
+            commitEvent(event, "read", fileDescriptor, null, iNodeForFile);
+        } else if (contentCache != null && contentCache.accepts(Math.max(iNodeForFile.getSize(), 0))) {
+            bytesRead = readCached(fileDescriptor, iNodeForFile, data);
+            event.bytes = bytesRead;
+            commitEvent(event, "read", fileDescriptor, null, iNodeForFile);
+        } else {
+            bytesRead = readContents(iNodeForFile, data);
+            commitReadEvent(event, fileDescriptor, iNodeForFile, bytesRead);
+        }
+        return bytesRead;
+    }
+
+
+    private static void commitReadEvent(FileOperationEvent event, int fileDescriptor, INode inode, int bytesRead) {
+        event.bytes = bytesRead;
+        event.blocks = (bytesRead + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        commitEvent(event, "read", fileDescriptor, null, inode);
+    }
+
+
+    /***
+     * Sends the whole file to <code>target</code> without copying it
+     * through the Java heap where the device allows: each run of allocated
+     * blocks is handed to the device's <code>transferDataBlocks</code>,
+     * which a <code>Disk</code> serves with <code>FileChannel.transferTo</code>.
+     * Holes are sent as zeros, and only a partial last block goes through
+     * the scratch block.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param target - blocking channel receiving the file, such as a socket
+     * @return Returns the number of bytes sent
+     * @throws IOException If the file is not open or the transfer fails
+     */
+    public synchronized long transferTo(int fileDescriptor, WritableByteChannel target) throws IOException {
+        FileOperationEvent event = new FileOperationEvent();
+        event.begin();
+        INode iNodeForFile = openFiles.get(fileDescriptor);
+        if (iNodeForFile == null) {
+            throw new IOException("FileSystem::transferTo: Invalid file descriptor");
+        }
+
+        ByteBuffer pending = pendingWrites.get(fileDescriptor);
+        if (pending != null) {
+            long bytesSent = writeFully(pending.duplicate(), target);
+            event.bytes = bytesSent;
+            commitEvent(event, "transferTo", fileDescriptor, null, iNodeForFile);
+            return bytesSent;
+        }
+
+        int fileSize = Math.max(iNodeForFile.getSize(), 0);
+        int fullBlocks = fileSize / Disk.BLOCK_SIZE;
+        int blockIndex = 0;
+        while (blockIndex < fullBlocks) {
+            if (iNodeForFile.getBlockPointer(blockIndex) == -1) {
+                writeFully(ZERO_BLOCK.duplicate(), target);
+                blockIndex++;
+                continue;
+            }
+            int numBlocks = 0;
+            while (blockIndex < fullBlocks && iNodeForFile.getBlockPointer(blockIndex) != -1) {
+                blockNumbers[numBlocks++] = iNodeForFile.getBlockPointer(blockIndex++);
+            }
+            diskDevice.transferDataBlocks(blockNumbers, numBlocks, target);
+        }
+
+        int tail = fileSize - fullBlocks * Disk.BLOCK_SIZE;
+        if (tail > 0) {
+            int lastBlock = iNodeForFile.getBlockPointer(fullBlocks);
+            if (lastBlock == -1) {
+                writeFully(ZERO_BLOCK.duplicate().limit(tail), target);
+            } else {
+                blockBuffer.clear();
+                diskDevice.readDataBlock(lastBlock, blockBuffer);
+                blockBuffer.flip().limit(tail);
+                writeFully(blockBuffer, target);
+            }
+        }
+
+        event.bytes = fileSize;
+        event.blocks = (fileSize + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        commitEvent(event, "transferTo", fileDescriptor, null, iNodeForFile);
+        return fileSize;
+    }
+
+
+    private static int writeFully(ByteBuffer data, WritableByteChannel target) throws IOException {
+        int bytesWritten = data.remaining();
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+        return bytesWritten;
+    }
+
+
+    /**
+     * Serves a read from the content cache, reading the whole file into
+     * the cache first on a miss
+     */
+    private int readCached(int fileDescriptor, INode iNodeForFile, ByteBuffer data) throws IOException {
+        byte[] contents = contentCache.get(fileDescriptor, generations[fileDescriptor]);
+        if (contents == null) {
+            contents = new byte[Math.max(iNodeForFile.getSize(), 0)];
+            int fileSize = readContents(iNodeForFile, ByteBuffer.wrap(contents));
+            if (fileSize < contents.length) {
+                contents = Arrays.copyOf(contents, fileSize);
+            }
+            contentCache.put(fileDescriptor, generations[fileDescriptor], contents);
+        }
+
+        int bytesRead = Math.min(contents.length, data.remaining());
+        data.put(contents, 0, bytesRead);
+        return bytesRead;
+    }
+
+
+    /**
+     * Takes the sequence lock of a file before changing its blocks or
+     * inode, so optimistic readers that overlap the change read again
+     */
+    private long beginUpdate(int fileDescriptor) {
+        return inodeLocks[fileDescriptor].writeLock();
+    }
+
+
+    /**
+     * Publishes a copy of the file's inode for readers, or withdraws it if
+     * the file is no longer open, and releases the sequence lock
+     */
+    private void endUpdate(int fileDescriptor, long stamp) {
+        INode iNodeForFile = openFiles.get(fileDescriptor);
+        INode published = null;
+        if (iNodeForFile != null) {
+            published = new INode();
+            published.copyFrom(iNodeForFile);
+        }
+        publishedINodes.set(fileDescriptor, published);
+        inodeLocks[fileDescriptor].unlockWrite(stamp);
+    }
+
+
+    private INode publishedINode(int fileDescriptor) {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            return null;
+        }
+        return publishedINodes.get(fileDescriptor);
+    }
+
+
+    /**
+     * Moves the file to a new generation, dropping its cached contents
+     */
+    private void invalidateContents(int whichInode) {
+        if (contentCache != null) {
+            contentCache.invalidate(whichInode, generations[whichInode]);
+        }
+        generations[whichInode]++;
+    }
+
+
+    /**
+     * Reads every data block referenced by <code>inode</code>
+     *
+     * @param inode - inode of the file to read
+     * @return Returns the contents of the file
+     * @throws IOException If a data block cannot be read
+     */
+    synchronized String readContents(INode inode) throws IOException {
+        byte[] fileData = new byte[Math.max(inode.getSize(), 0)];
+        readContents(inode, ByteBuffer.wrap(fileData));
+        return new String(fileData);
+    }
+
+
+    /**
+     * Reads the data blocks referenced by <code>inode</code> into
+     * <code>data</code> using the scratch state guarded by the file system lock
+     */
+    private int readContents(INode inode, ByteBuffer data) throws IOException {
+        return readContents(inode, data, blockNumbers, blockBuffer);
+    }
+
+
+    /**
+     * Reads the data blocks referenced by <code>inode</code> into
+     * <code>data</code>. Each run of allocated blocks is read straight into
+     * the buffer in one request; holes are filled with zeros without
+     * reading, and only a partial last block goes through the scratch block.
+     * The scratch state is the caller's, so threads can read at once.
+     */
+    private int readContents(INode inode, ByteBuffer data, int[] blockNumbers, ByteBuffer blockBuffer)
+            throws IOException {
+        int bytesToRead = Math.min(Math.max(inode.getSize(), 0), data.remaining());
+        int fullBlocks = bytesToRead / Disk.BLOCK_SIZE;
+
+        int blockIndex = 0;
+        while (blockIndex < fullBlocks) {
+            if (inode.getBlockPointer(blockIndex) == -1) {
+                data.put(ZERO_BLOCK.duplicate());
+                blockIndex++;
+                continue;
+            }
+            int numBlocks = 0;
+            while (blockIndex < fullBlocks && inode.getBlockPointer(blockIndex) != -1) {
+                blockNumbers[numBlocks++] = inode.getBlockPointer(blockIndex++);
+            }
+            diskDevice.readDataBlocks(blockNumbers, numBlocks, data);
+        }
+
+        int tail = bytesToRead - fullBlocks * Disk.BLOCK_SIZE;
+        if (tail > 0) {
+            int lastBlock = inode.getBlockPointer(fullBlocks);
+            if (lastBlock == -1) {
+                data.put(ZERO_BLOCK.duplicate().limit(tail));
+            } else {
+                blockBuffer.clear();
+                diskDevice.readDataBlock(lastBlock, blockBuffer);
+                blockBuffer.flip().limit(tail);
+                data.put(blockBuffer);
+            }
+        }
+        return bytesToRead;
+    }
+
+
+    /**
+     * Replaces the contents of the file with <code>data</code>
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - new contents of the file
+     * @throws IOException If the file is not open or there is not enough space
+     */
+    public void write(int fileDescriptor, String data) throws IOException {
+        write(fileDescriptor, ByteBuffer.wrap(data.getBytes()));
+    }
+
+
+    /**
+     * Replaces the contents of the file with the remaining bytes of
+     * <code>data</code> without allocating. Whole blocks are written
+     * straight from the buffer; only a partial last block is copied.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - new contents of the file; its position is advanced to its limit
+     * @throws IOException If the file is not open or there is not enough space
+     */
+    public synchronized void write(int fileDescriptor, ByteBuffer data) throws IOException {
+        lockMetadata();
+        try {
+            FileOperationEvent event = new FileOperationEvent();
+            event.begin();
+            INode iNodeForFile = openFiles.get(fileDescriptor);
+            if (iNodeForFile == null) {
+                throw new IOException("FileSystem::write: Invalid file descriptor");
+            }
+            event.bytes = data.remaining();
+            if (isDelayedAllocation) {
+                bufferWrite(fileDescriptor, data);
+                commitEvent(event, "write", fileDescriptor, null, iNodeForFile);
+                return;
+            }
+
+            int dataSize = data.remaining();
+            int blocksNeeded = (dataSize + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+
+            // Retrieve free block list
+            byte[] currentFreeList = freeBlockList.getFreeBlockList();
+            diskDevice.readFreeBlockList(currentFreeList);
+
+            // Check for sufficient space, counting blocks this file can overwrite in place
+            int availableBlocks = availableBlocks(currentFreeList);
+            for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                int blockPointer = iNodeForFile.getBlockPointer(i);
+                if (blockPointer != -1 && !blockReferences.isShared(blockPointer)) {
+                    availableBlocks++;
+                }
+            }
+            if (blocksNeeded > availableBlocks) {
+                throw new IOException("FileSystem::write: Insufficient space");
+            }
+            if (blocksNeeded > INode.NUM_BLOCK_POINTERS) {
+                throw new IOException("FileSystem::write: File exceeds " +
+                        INode.NUM_BLOCK_POINTERS + " blocks");
+            }
+
+            long stamp = beginUpdate(fileDescriptor);
+            try {
+                invalidateContents(fileDescriptor);
+
+                // Choose the blocks, copying any block that is shared with a clone or snapshot.
+                // New blocks follow the file's previous block, starting in the group of its inode.
+                int goal = BlockGroups.firstBlock(BlockGroups.groupOfINode(fileDescriptor));
+                for (int blockIndex = 0; blockIndex < blocksNeeded; blockIndex++) {
+                    int oldBlock = iNodeForFile.getBlockPointer(blockIndex);
+                    int target = oldBlock;
+
+                    if (oldBlock == -1 || blockReferences.isShared(oldBlock)) {
+                        target = BlockGroups.findFreeBlock(currentFreeList, goal);
+
+                        // Allocate block
+                        freeBlockList.allocateBlock(target);
+                        blockReferences.increment(target);
+                        if (oldBlock != -1) {
+                            releaseBlock(freeBlockList, oldBlock);
+                        }
+                    }
+
+                    // Update inode block pointers
+                    goal = target + 1;
+                    blockNumbers[blockIndex] = target;
+                    iNodeForFile.setBlockPointer(blockIndex, target);
+                }
+
+                // Write the block data, padding the last block with zeros
+                int fullBlocks = dataSize / Disk.BLOCK_SIZE;
+                diskDevice.writeDataBlocks(data, blockNumbers, fullBlocks);
+                if (fullBlocks < blocksNeeded) {
+                    blockBuffer.clear();
+                    blockBuffer.put(data);
+                    while (blockBuffer.hasRemaining()) {
+                        blockBuffer.put((byte) 0);
+                    }
+                    blockBuffer.flip();
+                    diskDevice.writeDataBlock(blockBuffer, blockNumbers[fullBlocks]);
+                }
+
+                // Drop blocks past the new end of the file
+                for (int blockIndex = blocksNeeded; blockIndex < INode.NUM_BLOCK_POINTERS; blockIndex++) {
+                    int oldBlock = iNodeForFile.getBlockPointer(blockIndex);
+                    if (oldBlock != -1) {
+                        releaseBlock(freeBlockList, oldBlock);
+                        iNodeForFile.setBlockPointer(blockIndex, -1);
+                    }
+                }
+
+                // Update inode file size and write it to disk
+                iNodeForFile.setSize(dataSize);
+                diskDevice.writeInode(iNodeForFile, fileDescriptor);
+
+                // Write updated free block list to disk
+                diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+            } finally {
+                endUpdate(fileDescriptor, stamp);
+            }
+
+            event.blocks = blocksNeeded;
+            commitEvent(event, "write", fileDescriptor, null, iNodeForFile);
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /**
+     * Appends <code>data</code> to the end of the file
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - bytes to add to the file
+     * @throws IOException If the file is not open, would exceed the maximum
+     *                     file size or there is not enough space
+     */
+    public void append(int fileDescriptor, String data) throws IOException {
+        append(fileDescriptor, ByteBuffer.wrap(data.getBytes()));
+    }
+
+
+    /**
+     * Appends the remaining bytes of <code>data</code> to the end of the
+     * file. Blocks reserved by <code>preallocate</code> are filled first,
+     * so an appender that preallocated does no allocation here; other new
+     * blocks follow the file's last block.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - bytes to add; its position is advanced to its limit
+     * @throws IOException If the file is not open, would exceed the maximum
+     *                     file size or there is not enough space
+     */
+    public synchronized void append(int fileDescriptor, ByteBuffer data) throws IOException {
+        lockMetadata();
+        try {
+            INode iNodeForFile = openFiles.get(fileDescriptor);
+            if (iNodeForFile == null) {
+                throw new IOException("FileSystem::append: Invalid file descriptor");
+            }
+            flushPendingWrite(fileDescriptor, iNodeForFile);
+            write(fileDescriptor, Math.max(iNodeForFile.getSize(), 0), data);
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /**
+     * Writes <code>data</code> into the file at byte <code>offset</code>
+     *
+     * @see #write(int, int, ByteBuffer)
+     */
+    public void write(int fileDescriptor, int offset, String data) throws IOException {
+        write(fileDescriptor, offset, ByteBuffer.wrap(data.getBytes()));
+    }
+
+
+    /**
+     * Writes the remaining bytes of <code>data</code> into the file at byte
+     * <code>offset</code>, keeping the rest of its contents. Only the
+     * blocks the data touches are allocated: writing past the end of the
+     * file grows it and leaves a hole that reads as zeros and takes no
+     * blocks.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param offset - byte of the file the data starts at
+     * @param data - bytes to write; its position is advanced to its limit
+     * @throws IOException If the file is not open, the offset is negative,
+     *                     the file would exceed the maximum file size or
+     *                     there is not enough space
+     */
+    public synchronized void write(int fileDescriptor, int offset, ByteBuffer data) throws IOException {
+        lockMetadata();
+        try {
+            FileOperationEvent event = new FileOperationEvent();
+            event.begin();
+            INode iNodeForFile = openFiles.get(fileDescriptor);
+            if (iNodeForFile == null) {
+                throw new IOException("FileSystem::write: Invalid file descriptor");
+            }
+            if (offset < 0) {
+                throw new IOException("FileSystem::write: Invalid offset " + offset);
+            }
+            int dataSize = data.remaining();
+            if ((long) offset + dataSize > (long) INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE) {
+                throw new IOException("FileSystem::write: File exceeds " +
+                        INode.NUM_BLOCK_POINTERS + " blocks");
+            }
+            flushPendingWrite(fileDescriptor, iNodeForFile);
+
+            int position = offset;
+            int endPosition = offset + dataSize;
+            int firstIndex = position / Disk.BLOCK_SIZE;
+            int endIndex = (endPosition + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+
+            // Writing into blocks the file already owns, such as preallocated ones,
+            // leaves the free block list alone
+            int newBlocks = blocksToMakeWritable(iNodeForFile, firstIndex, endIndex);
+            byte[] currentFreeList = null;
+            if (newBlocks > 0) {
+                currentFreeList = freeBlockList.getFreeBlockList();
+                diskDevice.readFreeBlockList(currentFreeList);
+                if (newBlocks > availableBlocks(currentFreeList)) {
+                    throw new IOException("FileSystem::write: Insufficient space");
+                }
+            }
+            long stamp = beginUpdate(fileDescriptor);
+            try {
+                invalidateContents(fileDescriptor);
+
+                // A partial first block keeps the bytes around the data
+                if (dataSize > 0 && (position % Disk.BLOCK_SIZE != 0 || dataSize < Disk.BLOCK_SIZE)) {
+                    int length = Math.min(dataSize, Disk.BLOCK_SIZE - position % Disk.BLOCK_SIZE);
+                    writePartialBlock(fileDescriptor, iNodeForFile, position, data, length, currentFreeList);
+                    position += length;
+                }
+
+                // Whole blocks are written straight from the buffer in one request
+                int fullBlocks = (endPosition - position) / Disk.BLOCK_SIZE;
+                for (int i = 0; i < fullBlocks; i++) {
+                    blockNumbers[i] = writableBlock(fileDescriptor, iNodeForFile,
+                            position / Disk.BLOCK_SIZE + i, currentFreeList);
+                }
+                diskDevice.writeDataBlocks(data, blockNumbers, fullBlocks);
+                position += fullBlocks * Disk.BLOCK_SIZE;
+
+                if (position < endPosition) {
+                    writePartialBlock(fileDescriptor, iNodeForFile, position, data, endPosition - position,
+                            currentFreeList);
+                }
+
+                if (dataSize > 0 && endPosition > iNodeForFile.getSize()) {
+                    iNodeForFile.setSize(endPosition);
+                }
+                diskDevice.writeInode(iNodeForFile, fileDescriptor);
+                if (newBlocks > 0) {
+                    diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+                }
+            } finally {
+                endUpdate(fileDescriptor, stamp);
+            }
+
+            event.bytes = dataSize;
+            event.blocks = endIndex - firstIndex;
+            commitEvent(event, "write", fileDescriptor, null, iNodeForFile);
+        } finally {
+            unlockMetadata();
+        }
+    }
+
+
+    /**
+     * Copies <code>length</code> bytes of <code>data</code> into the file's
+     * block holding byte <code>position</code>, reading the block first
+     * unless it is a hole
+     */
+    private void writePartialBlock(int fileDescriptor, INode iNodeForFile, int position, ByteBuffer data,
+                                   int length, byte[] currentFreeList) throws IOException {
+        int blockIndex = position / Disk.BLOCK_SIZE;
+        int oldBlock = iNodeForFile.getBlockPointer(blockIndex);
+        blockBuffer.clear();
+        if (oldBlock == -1) {
+            blockBuffer.put(ZERO_BLOCK.duplicate());
+        } else {
+            diskDevice.readDataBlock(oldBlock, blockBuffer);
+        }
+
+        int limit = data.limit();
+        data.limit(data.position() + length);
+        blockBuffer.position(position % Disk.BLOCK_SIZE);
+        blockBuffer.put(data);
+        data.limit(limit);
+        blockBuffer.clear();
+        diskDevice.writeDataBlock(blockBuffer, writableBlock(fileDescriptor, iNodeForFile, blockIndex, currentFreeList));
+    }
+
+
+    /**
+     * Changes the size of the file. Shrinking releases every block past the
+     * new end, including preallocated ones, and zeroes the rest of the new
+     * last block. Growing leaves a hole that reads as zeros.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param size - new size of the file in bytes
+     * @throws IOException If the file is not open, the size is negative or
+     *                     too large, or there is not enough space to copy
+     *                     a shared last block
+     */
+    public synchronized void truncate(int fileDescriptor, int size) throws IOException {
+        lockMetadata();
+        try {
+            INode iNodeForFile = openFiles.get(fileDescriptor);
+            if (iNodeForFile == null) {
+                throw new IOException("FileSystem::truncate: Invalid file descriptor");
+            }
+            if (size < 0 || size > INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE) {
+                throw new IOException("FileSystem::truncate: size " + size + " is outside 0.." +
+                        (INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE));
+            }
+            flushPendingWrite(fileDescriptor, iNodeForFile);
+
+            int oldSize = Math.max(iNodeForFile.getSize(), 0);
+            int newBlocks = (size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+            int tail = size % Disk.BLOCK_SIZE;
+
+            // Shrinking into a shared block needs a copy of it; growing leaves a hole
+            byte[] currentFreeList = freeBlockList.getFreeBlockList();
+            diskDevice.readFreeBlockList(currentFreeList);
+            boolean zeroTail = size < oldSize && tail > 0 && iNodeForFile.getBlockPointer(newBlocks - 1) != -1;
+            if (zeroTail && blocksToMakeWritable(iNodeForFile, newBlocks - 1, newBlocks) > availableBlocks(currentFreeList)) {
+                throw new IOException("FileSystem::truncate: Insufficient space");
+            }
+            long stamp = beginUpdate(fileDescriptor);
+            try {
+                invalidateContents(fileDescriptor);
+
+                if (size < oldSize) {
+                    for (int blockIndex = newBlocks; blockIndex < INode.NUM_BLOCK_POINTERS; blockIndex++) {
+                        int oldBlock = iNodeForFile.getBlockPointer(blockIndex);
+                        if (oldBlock != -1) {
+                            releaseBlock(freeBlockList, oldBlock);
+                            iNodeForFile.setBlockPointer(blockIndex, -1);
+                        }
+                    }
+                }
 
-    public FileSystem() throws IOException {
-        diskDevice = new Disk();
-        diskDevice.format();
+                // Keep the bytes past the end zero so that growing the file again reads zeros
+                if (zeroTail) {
+                    blockBuffer.clear();
+                    diskDevice.readDataBlock(iNodeForFile.getBlockPointer(newBlocks - 1), blockBuffer);
+                    for (int i = tail; i < Disk.BLOCK_SIZE; i++) {
+                        blockBuffer.put(i, (byte) 0);
+                    }
+                    blockBuffer.clear();
+                    diskDevice.writeDataBlock(blockBuffer, writableBlock(fileDescriptor, iNodeForFile, newBlocks - 1, currentFreeList));
+                }
+
+                iNodeForFile.setSize(size);
+                diskDevice.writeInode(iNodeForFile, fileDescriptor);
+                diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+            } finally {
+                endUpdate(fileDescriptor, stamp);
+            }
+        } finally {
+            unlockMetadata();
+        }
     }
 
-    /***
-     * Create a file with the name <code>fileName</code>
+
+    /**
+     * Reserves zero-filled blocks for the file up to <code>size</code> bytes
+     * without changing its size, taking them as one contiguous run after
+     * the file's last block where possible. Later appends grow into them.
+     * They are kept until the file is truncated or rewritten.
      *
-     * @param fileName - name of the file to create
-     * @throws IOException
+     * @param fileDescriptor - descriptor of an open file
+     * @param size - number of bytes the file should be able to hold
+     * @throws IOException If the file is not open, the size is too large or
+     *                     there is not enough space
      */
-    public int create(String fileName) throws IOException {
-        INode tmpINode = null;
+    public synchronized void preallocate(int fileDescriptor, int size) throws IOException {
+        lockMetadata();
+        try {
+            INode iNodeForFile = openFiles.get(fileDescriptor);
+            if (iNodeForFile == null) {
+                throw new IOException("FileSystem::preallocate: Invalid file descriptor");
+            }
+            if (size > INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE) {
+                throw new IOException("FileSystem::preallocate: File exceeds " +
+                        INode.NUM_BLOCK_POINTERS + " blocks");
+            }
+            flushPendingWrite(fileDescriptor, iNodeForFile);
+
+            int fromIndex = (Math.max(iNodeForFile.getSize(), 0) + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+            int toIndex = (size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+            int missing = 0;
+            for (int blockIndex = fromIndex; blockIndex < toIndex; blockIndex++) {
+                if (iNodeForFile.getBlockPointer(blockIndex) == -1) {
+                    missing++;
+                }
+            }
+            if (missing == 0) {
+                return;
+            }
+
+            byte[] currentFreeList = freeBlockList.getFreeBlockList();
+            diskDevice.readFreeBlockList(currentFreeList);
+            if (missing > availableBlocks(currentFreeList)) {
+                throw new IOException("FileSystem::preallocate: Insufficient space");
+            }
+
+            long stamp = beginUpdate(fileDescriptor);
+            try {
+                int goal = goalBlock(fileDescriptor, iNodeForFile, fromIndex);
+                int extent = BlockGroups.findFreeExtent(currentFreeList, missing, goal);
+                int numBlocks = 0;
+                for (int blockIndex = fromIndex; blockIndex < toIndex; blockIndex++) {
+                    if (iNodeForFile.getBlockPointer(blockIndex) != -1) {
+                        continue;
+                    }
+                    int target = extent != -1 ? extent + numBlocks : BlockGroups.findFreeBlock(currentFreeList, goal);
+                    goal = target + 1;
+                    freeBlockList.allocateBlock(target);
+                    blockReferences.increment(target);
+                    iNodeForFile.setBlockPointer(blockIndex, target);
+                    blockNumbers[numBlocks++] = target;
+                }
+                zeroBlocks(blockNumbers, numBlocks);
 
-        boolean isCreated = false;
+                diskDevice.writeInode(iNodeForFile, fileDescriptor);
+                diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+            } finally {
+                endUpdate(fileDescriptor, stamp);
+            }
+        } finally {
+            unlockMetadata();
+        }
+    }
 
-        for (int i = 0; i < Disk.NUM_INODES && !isCreated; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String name = tmpINode.getFileName();
 
-            // The Fix: Add a null check before calling trim()
-            if (name != null && name.trim().equals(fileName)) {
-                throw new IOException("FileSystem::create: " + fileName + " already exists");
-            } else if (tmpINode.getFileName() == null) { // No need for trim() here since we already checked for null
-                this.iNodeForFile = new INode();
-                this.iNodeForFile.setFileName(fileName);
-                this.iNodeNumber = i;
-                this.fileDescriptor = i;
-                isCreated = true;
+    /**
+     * Returns how many new blocks are needed to make blocks
+     * <code>fromIndex</code> up to <code>toIndex</code> of the file writable:
+     * one for each missing block and each block shared with a clone or
+     * snapshot
+     */
+    private int blocksToMakeWritable(INode iNodeForFile, int fromIndex, int toIndex) {
+        int blocksNeeded = 0;
+        for (int blockIndex = Math.max(fromIndex, 0); blockIndex < toIndex; blockIndex++) {
+            int blockPointer = iNodeForFile.getBlockPointer(blockIndex);
+            if (blockPointer == -1 || blockReferences.isShared(blockPointer)) {
+                blocksNeeded++;
             }
         }
-        if (!isCreated) {
-            throw new IOException("FileSystem::create: Unable to create file");
+        return blocksNeeded;
+    }
+
+
+    /**
+     * Returns block <code>blockIndex</code> of the file, first allocating it
+     * if it is missing or giving the file its own block if it is shared.
+     * The contents of a replaced shared block are not copied.
+     */
+    private int writableBlock(int fileDescriptor, INode iNodeForFile, int blockIndex, byte[] currentFreeList) {
+        int oldBlock = iNodeForFile.getBlockPointer(blockIndex);
+        if (oldBlock != -1 && !blockReferences.isShared(oldBlock)) {
+            return oldBlock;
         }
 
-        return fileDescriptor;
+        int target = BlockGroups.findFreeBlock(currentFreeList, goalBlock(fileDescriptor, iNodeForFile, blockIndex));
+        freeBlockList.allocateBlock(target);
+        blockReferences.increment(target);
+        if (oldBlock != -1) {
+            releaseBlock(freeBlockList, oldBlock);
+        }
+        iNodeForFile.setBlockPointer(blockIndex, target);
+        return target;
     }
 
 
     /**
-     * Removes the file
+     * Returns the block after the file's block <code>blockIndex - 1</code>,
+     * or the first block of the group of its inode
+     */
+    private int goalBlock(int fileDescriptor, INode iNodeForFile, int blockIndex) {
+        if (blockIndex > 0 && iNodeForFile.getBlockPointer(blockIndex - 1) != -1) {
+            return iNodeForFile.getBlockPointer(blockIndex - 1) + 1;
+        }
+        return BlockGroups.firstBlock(BlockGroups.groupOfINode(fileDescriptor));
+    }
+
+
+    private void zeroBlocks(int[] whichBlocks, int numBlocks) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(numBlocks * Disk.BLOCK_SIZE);
+        diskDevice.writeDataBlocks(zeros, whichBlocks, numBlocks);
+    }
+
+
+    /**
+     * Returns how many blocks of <code>freeList</code> may be allocated:
+     * the free blocks less those reserved for pending writes. Every
+     * allocator checks against this, so a flush always finds its blocks.
+     */
+    private int availableBlocks(byte[] freeList) {
+        return countFreeBlocks(freeList) - reservedBlocks;
+    }
+
+
+    private static int countFreeBlocks(byte[] freeList) {
+        int freeBlocks = 0;
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            if ((freeList[i / 8] & (1 << (i % 8))) == 0) {
+                freeBlocks++;
+            }
+        }
+        return freeBlocks;
+    }
+
+
+    /**
+     * Commits a Flight Recorder event for a file operation if the event is
+     * enabled. The file is named by <code>fileName</code>, or by the name in
+     * <code>inode</code>, which is only decoded when the event is recorded.
+     */
+    private static void commitEvent(FileOperationEvent event, String operation, int fileDescriptor,
+                                    String fileName, INode inode) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.fileDescriptor = fileDescriptor;
+            event.fileName = fileName != null ? fileName : inode.getFileName();
+            event.commit();
+        }
+    }
+
+
+    /**
+     * Keeps the remaining bytes of <code>data</code> as the pending contents
+     * of the file and reserves the blocks they will need
      *
-     * @param fileName
-     * @throws IOException
+     * @throws IOException If the reservation does not fit in the free blocks
      */
-    public void delete(String fileName) throws IOException {
-        INode tmpINode = null;
-        boolean isFound = false;
-        int inodeNumForDeletion = -1;
+    private void bufferWrite(int fileDescriptor, ByteBuffer data) throws IOException {
+        invalidateContents(fileDescriptor);
+        int dataSize = data.remaining();
+        int blocksNeeded = (dataSize + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+
+        ByteBuffer pending = pendingWrites.get(fileDescriptor);
+        int blocksHeld = pending == null ? 0 : blocksOf(pending);
+        int bytesHeld = pending == null ? 0 : pending.remaining();
+
+        byte[] currentFreeList = freeBlockList.getFreeBlockList();
+        diskDevice.readFreeBlockList(currentFreeList);
+        if (blocksNeeded - blocksHeld > availableBlocks(currentFreeList)) {
+            throw new IOException("FileSystem::write: Insufficient space");
+        }
+        if (blocksNeeded > INode.NUM_BLOCK_POINTERS) {
+            throw new IOException("FileSystem::write: File exceeds " +
+                    INode.NUM_BLOCK_POINTERS + " blocks");
+        }
+
+        // The buffer is whole blocks long so the flush can write it in one request
+        if (pending == null || pending.capacity() < blocksNeeded * Disk.BLOCK_SIZE) {
+            pending = ByteBuffer.allocate(blocksNeeded * Disk.BLOCK_SIZE);
+        }
+        pending.clear();
+        pending.put(data);
+        pending.flip();
+        pendingWrites.put(fileDescriptor, pending);
+        reservedBlocks += blocksNeeded - blocksHeld;
+        pendingBytes += dataSize - bytesHeld;
+
+        if (pendingBytes > DELAYED_ALLOCATION_LIMIT) {
+            flushPendingWrites();
+        }
+    }
+
 
-        /**
-         * Find the non-null named inode that matches,
-         * If you find it, set its file name to null
-         * to indicate it is unused
-         */
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
+    /**
+     * Returns the number of blocks needed to hold the remaining bytes of
+     * <code>pending</code>
+     */
+    private static int blocksOf(ByteBuffer pending) {
+        return (pending.remaining() + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+    }
 
-            String fName = tmpINode.getFileName();
 
-            if (fName != null && fName.trim().compareTo(fileName.trim()) == 0) {
-                isFound = true;
-                inodeNumForDeletion = i;
-                break;
+    /**
+     * Writes every file's pending contents to disk
+     */
+    private void flushPendingWrites() throws IOException {
+        for (int fileDescriptor : new ArrayList<>(pendingWrites.keySet())) {
+            flushPendingWrite(fileDescriptor, openFiles.get(fileDescriptor));
+        }
+    }
+
+
+    /**
+     * Allocates blocks for the pending contents of a file, preferring one
+     * contiguous run in the group of its inode, writes the contents in a single request and points
+     * <code>iNodeForFile</code> at them. The blocks the file held before
+     * are released. The contents stay pending if the blocks cannot be
+     * allocated.
+     *
+     * @throws IOException If fewer blocks are free than the contents need
+     */
+    private void flushPendingWrite(int fileDescriptor, INode iNodeForFile) throws IOException {
+        ByteBuffer pending = pendingWrites.get(fileDescriptor);
+        if (pending == null) {
+            return;
+        }
+        int dataSize = pending.remaining();
+        int blocksNeeded = blocksOf(pending);
+
+        byte[] currentFreeList = freeBlockList.getFreeBlockList();
+        diskDevice.readFreeBlockList(currentFreeList);
+        if (blocksNeeded > countFreeBlocks(currentFreeList)) {
+            throw new IOException("FileSystem::flushPendingWrite: Insufficient space");
+        }
+        pendingWrites.remove(fileDescriptor);
+        reservedBlocks -= blocksNeeded;
+        pendingBytes -= dataSize;
+
+        long stamp = beginUpdate(fileDescriptor);
+        try {
+            invalidateContents(fileDescriptor);
+
+            int goal = BlockGroups.firstBlock(BlockGroups.groupOfINode(fileDescriptor));
+            int extent = BlockGroups.findFreeExtent(currentFreeList, blocksNeeded, goal);
+            for (int blockIndex = 0; blockIndex < blocksNeeded; blockIndex++) {
+                int target;
+                if (extent != -1) {
+                    target = extent + blockIndex;
+                } else {
+                    target = BlockGroups.findFreeBlock(currentFreeList, goal);
+                    goal = target + 1;
+                }
+                freeBlockList.allocateBlock(target);
+                blockReferences.increment(target);
+                blockNumbers[blockIndex] = target;
+            }
+
+            // Pad the last block with zeros
+            pending.limit(blocksNeeded * Disk.BLOCK_SIZE);
+            for (int i = dataSize; i < pending.limit(); i++) {
+                pending.put(i, (byte) 0);
+            }
+            diskDevice.writeDataBlocks(pending, blockNumbers, blocksNeeded);
+
+            for (int blockIndex = 0; blockIndex < INode.NUM_BLOCK_POINTERS; blockIndex++) {
+                int oldBlock = iNodeForFile.getBlockPointer(blockIndex);
+                if (oldBlock != -1) {
+                    releaseBlock(freeBlockList, oldBlock);
+                }
+                iNodeForFile.setBlockPointer(blockIndex, blockIndex < blocksNeeded ? blockNumbers[blockIndex] : -1);
             }
+            iNodeForFile.setSize(dataSize);
+            diskDevice.writeInode(iNodeForFile, fileDescriptor);
+            diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        } finally {
+            endUpdate(fileDescriptor, stamp);
         }
+    }
+
 
-        /***
-         * If file found, go ahead and deallocate its
-         * blocks and null out the filename.
-         */
-        if (isFound) {
-            deallocateBlocksForFile(inodeNumForDeletion);
-            tmpINode.setFileName(null);
-            diskDevice.writeInode(tmpINode, inodeNumForDeletion);
-            this.iNodeForFile = null;
-            this.fileDescriptor = -1;
-            this.iNodeNumber = -1;
+    /**
+     * Drops the pending contents of a file without writing them
+     */
+    private void discardPendingWrite(int fileDescriptor) {
+        ByteBuffer pending = pendingWrites.remove(fileDescriptor);
+        if (pending != null) {
+            reservedBlocks -= blocksOf(pending);
+            pendingBytes -= pending.remaining();
         }
     }
 
 
     /***
-     * Makes the file available for reading/writing
+     * Creates <code>dstFileName</code> as a copy of <code>srcFileName</code>
+     * that shares the source's data blocks. Blocks are only copied when
+     * either file is later written, so cloning costs a single inode write.
      *
-     * @return
-     * @throws IOException
-     */
-    public int open(String fileName) throws IOException {
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
-        INode tmpINode = null;
-        boolean isFound = false;
-        int iNodeContainingName = -1;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String fName = tmpINode.getFileName();
-            if (fName != null) {
-                if (fName.trim().compareTo(fileName.trim()) == 0) {
-                    isFound = true;
-                    iNodeContainingName = i;
-                    this.iNodeForFile = tmpINode;
+     * @param srcFileName - path of the file to clone
+     * @param dstFileName - path of the new file
+     * @throws IOException If the source does not exist, the destination
+     *                     already exists or no inode is free
+     */
+    public synchronized void clone(String srcFileName, String dstFileName) throws IOException {
+        lockMetadata();
+        try {
+            String dstPath = normalizePath(dstFileName);
+            int srcINodeNumber = resolve(normalizePath(srcFileName));
+            if (srcINodeNumber == -1) {
+                throw new IOException("FileSystem::clone: " + srcFileName + " does not exist");
+            }
+            if (pendingWrites.containsKey(srcINodeNumber)) {
+                flushPendingWrite(srcINodeNumber, openFiles.get(srcINodeNumber));
+            }
+            int dstParent = resolveParent(dstPath, "clone");
+            if (lookup(dstParent, leafName(dstPath)) != -1) {
+                throw new IOException("FileSystem::clone: " + dstFileName + " already exists");
+            }
+
+            INode srcINode = diskDevice.readInode(srcINodeNumber);
+            if (isDirectory(srcINode)) {
+                throw new IOException("FileSystem::clone: " + srcFileName + " is a directory");
+            }
+
+            int dstINodeNumber = allocateINode("clone", BlockGroups.groupOfINode(dstParent));
+            INode dstINode = new INode();
+            dstINode.setFileName(leafName(dstPath));
+            dstINode.setSize(srcINode.getSize());
+            for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                int blockPointer = srcINode.getBlockPointer(i);
+                if (blockPointer != -1) {
+                    blockReferences.increment(blockPointer);
                 }
+                dstINode.setBlockPointer(i, blockPointer);
             }
+
+            diskDevice.writeInode(dstINode, dstINodeNumber);
+            addEntry(dstParent, leafName(dstPath), dstINodeNumber);
+            directoryCache.put(dstPath, dstINodeNumber);
+        } finally {
+            unlockMetadata();
         }
+    }
 
-        if (isFound) {
-            this.fileDescriptor = iNodeContainingName;
-            this.iNodeNumber = fileDescriptor;
+
+    /***
+     * Takes a copy-on-write snapshot of every file. The snapshot shares data
+     * blocks with the live files until they are rewritten or deleted.
+     *
+     * @return Returns the snapshot, which must be released when no longer needed
+     * @throws IOException If the inodes cannot be read
+     */
+    public synchronized Snapshot snapshot() throws IOException {
+        lockMetadata();
+        try {
+            flushPendingWrites();
+            Map<String, INode> files = new HashMap<>();
+            collectFiles(ROOT_INODE, "", files);
+            return new Snapshot(this, files);
+        } finally {
+            unlockMetadata();
         }
+    }
 
-        return this.fileDescriptor;
+
+    /**
+     * Copies the inode of every file below the directory <code>dir</code>
+     * into <code>files</code>, keyed by path, and takes a reference on each
+     * of their data blocks
+     */
+    private void collectFiles(int dir, String prefix, Map<String, INode> files) throws IOException {
+        for (int entry : entries(dir)) {
+            INode inode = diskDevice.readInode(entry);
+            String name = inode.getFileName().trim();
+
+            if (isDirectory(inode)) {
+                collectFiles(entry, prefix + name, files);
+                continue;
+            }
+
+            INode copy = new INode();
+            copy.setFileName(name);
+            copy.setSize(inode.getSize());
+            for (int j = 0; j < INode.NUM_BLOCK_POINTERS; j++) {
+                int blockPointer = inode.getBlockPointer(j);
+                if (blockPointer != -1) {
+                    blockReferences.increment(blockPointer);
+                }
+                copy.setBlockPointer(j, blockPointer);
+            }
+            files.put(prefix + name, copy);
+        }
     }
 
 
-    /***
-     * Closes the file
+    /**
+     * Drops the block references held by a released snapshot
      *
-     * @throws IOException If disk is not accessible for writing
+     * @param inodes - inodes captured by the snapshot
+     * @throws IOException If the free block list cannot be updated
      */
-    public void close(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber) {
-            throw new IOException("FileSystem::close: file descriptor, " +
-                    fileDescriptor + " does not match file descriptor " +
-                    "of open file");
+    synchronized void releaseSnapshot(Collection<INode> inodes) throws IOException {
+        lockMetadata();
+        try {
+            FreeBlockList freeBlockList = new FreeBlockList();
+            freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+
+            for (INode inode : inodes) {
+                for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                    int blockPointer = inode.getBlockPointer(i);
+                    if (blockPointer != -1) {
+                        releaseBlock(freeBlockList, blockPointer);
+                    }
+                }
+            }
+
+            diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        } finally {
+            unlockMetadata();
         }
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
-        this.iNodeForFile = null;
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
     }
 
 
     /**
-     * Add your Javadoc documentation for this method
+     * Drops one reference to <code>whichBlock</code> and returns it to
+     * <code>freeBlockList</code> once nothing refers to it
      */
-    public String read(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber || this.iNodeForFile == null) {
-            throw new IOException("FileSystem::read: Invalid file descriptor or inode is null.");
+    private void releaseBlock(FreeBlockList freeBlockList, int whichBlock) {
+        if (blockReferences.decrement(whichBlock) == 0) {
+            freeBlockList.deallocateBlock(whichBlock);
+        }
+    }
+
+
+    /**
+     * Strips surrounding blanks and leading or trailing slashes, so that
+     * "/a/b/" and "a/b" name the same entry. The root is the empty path.
+     */
+    private static String normalizePath(String path) {
+        String result = path.trim();
+        while (result.startsWith(DIRECTORY_SUFFIX)) {
+            result = result.substring(1);
+        }
+        while (result.endsWith(DIRECTORY_SUFFIX)) {
+            result = result.substring(0, result.length() - 1);
         }
+        return result;
+    }
+
+
+    /**
+     * Returns the last component of a normalized path
+     */
+    private static String leafName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
 
-        INode inode = this.iNodeForFile;
-        int fileSize = inode.getSize();
-        byte[] fileData = new byte[fileSize];
-        int bytesRead = 0;
 
-        // Read from each allocated block
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS && bytesRead < fileSize; i++) {
-            int blockNumber = inode.getBlockPointer(i);
-            if (blockNumber == -1) break;
+    private boolean isDirectory(int iNodeNumber) {
+        return entryView.at(iNodeNumber).isDirectory();
+    }
+
+
+    private static boolean isDirectory(INode inode) {
+        String name = inode.getFileName();
+        return name != null && name.trim().endsWith(DIRECTORY_SUFFIX);
+    }
 
-            byte[] blockData = diskDevice.readDataBlock(blockNumber);
-            int bytesToRead = Math.min(Disk.BLOCK_SIZE, fileSize - bytesRead);
-            System.arraycopy(blockData, 0, fileData, bytesRead, bytesToRead);
-            bytesRead += bytesToRead;
+
+    /**
+     * Returns the inode of the normalized path <code>path</code>, or -1 if
+     * there is no such file or directory. Resolved paths are cached so that
+     * repeated lookups do not walk the directories again.
+     */
+    private int resolve(String path) throws IOException {
+        if (path.isEmpty()) {
+            return ROOT_INODE;
         }
-        return new String(fileData);
+
+        Integer cached = directoryCache.get(path);
+        if (cached != null) {
+            return cached;
+        }
+
+        int parentSlash = path.lastIndexOf('/');
+        int parent = parentSlash == -1 ? ROOT_INODE : resolve(path.substring(0, parentSlash));
+        if (parent == -1 || !isDirectory(parent)) {
+            return -1;
+        }
+
+        int result = lookup(parent, leafName(path));
+        if (result != -1) {
+            directoryCache.put(path, result);
+        }
+        return result;
     }
 
 
     /**
-     * Add your Javadoc documentation for this method
+     * Returns the inode of the directory holding the normalized path
+     * <code>path</code>
+     *
+     * @throws IOException If the path is the root or its directory does not exist
      */
-    public void write(int fileDescriptor, String data) throws IOException {
-        if (fileDescriptor != this.iNodeNumber || this.iNodeForFile == null) {
-            throw new IOException("FileSystem::write: Invalid file descriptor");
+    private int resolveParent(String path, String operation) throws IOException {
+        if (path.isEmpty()) {
+            throw new IOException("FileSystem::" + operation + ": the root directory cannot be used as a name");
         }
 
-        int dataSize = data.length();
-        int blocksNeeded = (int) Math.ceil((double) dataSize / Disk.BLOCK_SIZE);
+        int parentSlash = path.lastIndexOf('/');
+        int parent = parentSlash == -1 ? ROOT_INODE : resolve(path.substring(0, parentSlash));
+        if (parent == -1 || !isDirectory(parent)) {
+            throw new IOException("FileSystem::" + operation + ": directory of " + path + " does not exist");
+        }
+        return parent;
+    }
 
-        // Retrieve free block list
-        FreeBlockList freeBlockList = new FreeBlockList();
-        byte[] currentFreeList = diskDevice.readFreeBlockList();
-        freeBlockList.setFreeBlockList(currentFreeList);
 
-        // Check for sufficient space
-        int availableBlocks = 0;
-        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
-            int blockNum = i / 8;
-            int offset = i % 8;
-            if ((currentFreeList[blockNum] & (1 << offset)) == 0) {
-                availableBlocks++;
+    /**
+     * Looks <code>name</code> up in the directory <code>dir</code> by
+     * probing from its home bucket. Only inodes whose stored hash matches
+     * are compared, in place and byte by byte, so the cost does not grow
+     * with the size of the directory.
+     *
+     * @return Returns the inode number of the entry, or -1 if there is none
+     */
+    private int lookup(int dir, String name) throws IOException {
+        INodeView dirINode = directoryView.at(dir);
+        byte[] nameBytes = name.getBytes();
+        int nameHash = DirectoryBucket.hash(name);
+        int home = DirectoryBucket.homeBucket(nameHash);
+
+        for (int probe = 0; probe < DirectoryBucket.NUM_BUCKETS; probe++) {
+            int blockPointer = dirINode.getBlockPointer((home + probe) % DirectoryBucket.NUM_BUCKETS);
+            if (blockPointer == -1) {
+                return -1;
+            }
+
+            DirectoryBucket bucket = new DirectoryBucket(diskDevice.readDataBlock(blockPointer));
+            for (int i = 0; i < bucket.getCount(); i++) {
+                if (bucket.getHash(i) == nameHash) {
+                    int candidate = bucket.getINodeNumber(i);
+                    if (entryView.at(candidate).fileNameEquals(nameBytes, true)) {
+                        return candidate;
+                    }
+                }
+            }
+
+            if (!bucket.isOverflowed()) {
+                return -1;
             }
         }
-        if (blocksNeeded > availableBlocks) {
-            throw new IOException("FileSystem::write: Insufficient space");
+        return -1;
+    }
+
+
+    /**
+     * Adds an entry for <code>iNodeNumber</code> to the directory
+     * <code>dir</code>, allocating the bucket's block on first use
+     *
+     * @throws IOException If every bucket of the directory is full
+     */
+    private void addEntry(int dir, String name, int iNodeNumber) throws IOException {
+        INode dirINode = diskDevice.readInode(dir);
+        int nameHash = DirectoryBucket.hash(name);
+        int home = DirectoryBucket.homeBucket(nameHash);
+
+        for (int probe = 0; probe < DirectoryBucket.NUM_BUCKETS; probe++) {
+            int whichBucket = (home + probe) % DirectoryBucket.NUM_BUCKETS;
+            int blockPointer = dirINode.getBlockPointer(whichBucket);
+            DirectoryBucket bucket;
+
+            if (blockPointer == -1) {
+                blockPointer = allocateBlock(BlockGroups.groupOfINode(dir));
+                dirINode.setBlockPointer(whichBucket, blockPointer);
+                bucket = new DirectoryBucket();
+            } else {
+                bucket = new DirectoryBucket(diskDevice.readDataBlock(blockPointer));
+            }
+
+            if (bucket.isFull()) {
+                if (!bucket.isOverflowed()) {
+                    bucket.setOverflowed();
+                    diskDevice.writeDataBlock(bucket.getBlock(), blockPointer);
+                }
+                continue;
+            }
+
+            bucket.add(nameHash, iNodeNumber);
+            diskDevice.writeDataBlock(bucket.getBlock(), blockPointer);
+            dirINode.setSize(dirINode.getSize() + 1);
+            diskDevice.writeInode(dirINode, dir);
+            return;
         }
 
-        // Allocate blocks and write data
-        int blockIndex = 0;
-        for (int i = 0; i < Disk.NUM_BLOCKS && blockIndex < blocksNeeded; i++) {
-            int blockNum = i / 8;
-            int offset = i % 8;
-            if ((currentFreeList[blockNum] & (1 << offset)) == 0) {
-                // Allocate block
-                freeBlockList.allocateBlock(i);
-
-                // Write the block data
-                int start = blockIndex * Disk.BLOCK_SIZE;
-                int end = Math.min(dataSize, start + Disk.BLOCK_SIZE);
-                byte[] blockData = new byte[Disk.BLOCK_SIZE]; // Ensure block size is consistent
-                byte[] dataBytes = data.substring(start, end).getBytes();
-                System.arraycopy(dataBytes, 0, blockData, 0, dataBytes.length); // Copy data into block
-
-                diskDevice.writeDataBlock(blockData, i);
-
-                // Update inode block pointers
-                this.iNodeForFile.setBlockPointer(blockIndex, i);
-                blockIndex++;
+        throw new IOException("FileSystem::addEntry: directory is full");
+    }
+
+
+    /**
+     * Removes the entry for <code>iNodeNumber</code> from the directory <code>dir</code>
+     */
+    private void removeEntry(int dir, String name, int iNodeNumber) throws IOException {
+        INode dirINode = diskDevice.readInode(dir);
+        int home = DirectoryBucket.homeBucket(DirectoryBucket.hash(name));
+
+        for (int probe = 0; probe < DirectoryBucket.NUM_BUCKETS; probe++) {
+            int blockPointer = dirINode.getBlockPointer((home + probe) % DirectoryBucket.NUM_BUCKETS);
+            if (blockPointer == -1) {
+                return;
+            }
+
+            DirectoryBucket bucket = new DirectoryBucket(diskDevice.readDataBlock(blockPointer));
+            for (int i = 0; i < bucket.getCount(); i++) {
+                if (bucket.getINodeNumber(i) == iNodeNumber) {
+                    bucket.remove(i);
+                    diskDevice.writeDataBlock(bucket.getBlock(), blockPointer);
+                    dirINode.setSize(dirINode.getSize() - 1);
+                    diskDevice.writeInode(dirINode, dir);
+                    return;
+                }
+            }
+
+            if (!bucket.isOverflowed()) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the inode numbers of every entry in the directory <code>dir</code>
+     */
+    private List<Integer> entries(int dir) throws IOException {
+        INode dirINode = diskDevice.readInode(dir);
+        List<Integer> result = new ArrayList<>();
+
+        for (int whichBucket = 0; whichBucket < DirectoryBucket.NUM_BUCKETS; whichBucket++) {
+            int blockPointer = dirINode.getBlockPointer(whichBucket);
+            if (blockPointer != -1) {
+                DirectoryBucket bucket = new DirectoryBucket(diskDevice.readDataBlock(blockPointer));
+                for (int i = 0; i < bucket.getCount(); i++) {
+                    result.add(bucket.getINodeNumber(i));
+                }
             }
         }
+        return result;
+    }
+
+
+    /**
+     * Reserves an unused inode, in <code>group</code> if it has one free
+     *
+     * @throws IOException If every inode is in use
+     */
+    private int allocateINode(String operation, int group) throws IOException {
+        int i = group == -1 ? -1 : BlockGroups.findFreeINode(usedINodes, group);
+        if (i == -1) {
+            throw new IOException("FileSystem::" + operation + ": Unable to create file");
+        }
+        usedINodes.set(i);
+        return i;
+    }
+
 
-        // Update inode file size and write it to disk
-        this.iNodeForFile.setSize(dataSize);
-        diskDevice.writeInode(this.iNodeForFile, fileDescriptor);
+    /**
+     * Allocates a single free data block, as close as possible to the
+     * start of <code>group</code>, and records it in the free block list
+     *
+     * @throws IOException If no block is free
+     */
+    private int allocateBlock(int group) throws IOException {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        byte[] currentFreeList = diskDevice.readFreeBlockList();
+        freeBlockList.setFreeBlockList(currentFreeList);
 
-        // Write updated free block list to disk
+        if (availableBlocks(currentFreeList) < 1) {
+            throw new IOException("FileSystem::allocateBlock: Insufficient space");
+        }
+        int i = BlockGroups.findFreeBlock(currentFreeList, BlockGroups.firstBlock(group));
+        freeBlockList.allocateBlock(i);
+        blockReferences.increment(i);
         diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        return i;
     }
 
 
@@ -239,67 +2023,75 @@ public class FileSystem {
      */
 
 
-    public int[] allocateBlocksForFile(int iNodeNumber, int numBytes) throws IOException {
-        // Calculate the number of blocks required for the given file size (rounded up)
-        int numBlocksRequired = (numBytes + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE; // Round up
+    public synchronized int[] allocateBlocksForFile(int iNodeNumber, int numBytes) throws IOException {
+        lockMetadata();
+        try {
+            invalidateContents(iNodeNumber);
+
+            // Calculate the number of blocks required for the given file size (rounded up)
+            int numBlocksRequired = (numBytes + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE; // Round up
 
-        // Initialize the array to hold the allocated block numbers
-        int[] allocatedBlocks = new int[numBlocksRequired];
+            // Initialize the array to hold the allocated block numbers
+            int[] allocatedBlocks = new int[numBlocksRequired];
 
-        // Read the current free block list from the disk
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
+            // Read the current free block list from the disk
+            byte[] freeBlockList = diskDevice.readFreeBlockList();
 
-        // Track the number of blocks we've allocated
-        int allocatedCount = 0;
+            // Track the number of blocks we've allocated
+            int allocatedCount = 0;
 
-        // Iterate over the free block list to find free blocks
-        for (int i = 0; (i < freeBlockList.length * 8) && (allocatedCount < numBlocksRequired); i++) {
-            if ((freeBlockList[i / 8] & (1 << (i % 8))) == 0) {
-                // Block is free
-                FreeBlockList freeList = new FreeBlockList();
-                freeList.setFreeBlockList(freeBlockList);
-                freeList.allocateBlock(i);
+            // Iterate over the free block list to find free blocks
+            for (int i = 0; (i < freeBlockList.length * 8) && (allocatedCount < numBlocksRequired); i++) {
+                if ((freeBlockList[i / 8] & (1 << (i % 8))) == 0) {
+                    // Block is free
+                    FreeBlockList freeList = new FreeBlockList();
+                    freeList.setFreeBlockList(freeBlockList);
+                    freeList.allocateBlock(i);
+                    blockReferences.increment(i);
 
-                // Add the allocated block to the list of allocated blocks
-                allocatedBlocks[allocatedCount] = i;
-                allocatedCount++;
+                    // Add the allocated block to the list of allocated blocks
+                    allocatedBlocks[allocatedCount] = i;
+                    allocatedCount++;
+                }
             }
-        }
 
-        // If we couldn't allocate enough blocks, throw an IOException
-        if (allocatedCount < numBlocksRequired) {
-            throw new IOException("FileSystem::allocateBlocksForFile: Not enough free blocks available.");
-        }
+            // If we couldn't allocate enough blocks, throw an IOException
+            if (allocatedCount < numBlocksRequired) {
+                throw new IOException("FileSystem::allocateBlocksForFile: Not enough free blocks available.");
+            }
 
-        // Read the inode for the file from the disk
-        INode inode = diskDevice.readInode(iNodeNumber);
+            // Read the inode for the file from the disk
+            INode inode = diskDevice.readInode(iNodeNumber);
 
-        // Handle direct block pointers first
-        int numDirectPointers = Math.min(INode.NUM_BLOCK_POINTERS, allocatedCount);
+            // Handle direct block pointers first
+            int numDirectPointers = Math.min(INode.NUM_BLOCK_POINTERS, allocatedCount);
 
-        // Set the direct block pointers
-        for (int i = 0; i < numDirectPointers; i++) {
-            inode.setBlockPointer(i, allocatedBlocks[i]);
-        }
+            // Set the direct block pointers
+            for (int i = 0; i < numDirectPointers; i++) {
+                inode.setBlockPointer(i, allocatedBlocks[i]);
+            }
 
-        // If the file requires more blocks than direct pointers, create an index block to store additional pointers
-        if (allocatedCount > INode.NUM_BLOCK_POINTERS) {
-            // Create an index block to store the additional block pointers (pointers are 4 bytes each)
-            byte[] indirectBlocks = new byte[Disk.BLOCK_SIZE];
-            int indirectBlockPointer = allocateIndexBlock(indirectBlocks, allocatedBlocks, allocatedCount);
+            // If the file requires more blocks than direct pointers, create an index block to store additional pointers
+            if (allocatedCount > INode.NUM_BLOCK_POINTERS) {
+                // Create an index block to store the additional block pointers (pointers are 4 bytes each)
+                byte[] indirectBlocks = new byte[Disk.BLOCK_SIZE];
+                int indirectBlockPointer = allocateIndexBlock(indirectBlocks, allocatedBlocks, allocatedCount);
 
-            // Set the index block pointer in the inode (pointing to the indirect block)
-            inode.setBlockPointer(INode.NUM_BLOCK_POINTERS - 1, indirectBlockPointer);
-        }
+                // Set the index block pointer in the inode (pointing to the indirect block)
+                inode.setBlockPointer(INode.NUM_BLOCK_POINTERS - 1, indirectBlockPointer);
+            }
 
-        // Write the updated inode back to disk
-        diskDevice.writeInode(inode, iNodeNumber);
+            // Write the updated inode back to disk
+            diskDevice.writeInode(inode, iNodeNumber);
 
-        // Write the updated free block list back to disk
-        diskDevice.writeFreeBlockList(freeBlockList);
+            // Write the updated free block list back to disk
+            diskDevice.writeFreeBlockList(freeBlockList);
 
-        // Return the list of allocated blocks
-        return allocatedBlocks;
+            // Return the list of allocated blocks
+            return allocatedBlocks;
+        } finally {
+            unlockMetadata();
+        }
     }
 
     private int allocateIndexBlock(byte[] indirectBlocks, int[] allocatedBlocks, int endIndex) throws IOException {
@@ -314,6 +2106,7 @@ public class FileSystem {
                 FreeBlockList freeList = new FreeBlockList();
                 freeList.setFreeBlockList(freeBlockList);
                 freeList.allocateBlock(i);
+                blockReferences.increment(i);
 
                 // Set up the index block with additional block pointers
                 for (int j = INode.NUM_BLOCK_POINTERS; j < endIndex; j++) {
@@ -341,34 +2134,48 @@ public class FileSystem {
     /**
      * Add your Javadoc documentation for this method
      */
-    void deallocateBlocksForFile(int iNodeNumber) {
+    synchronized void deallocateBlocksForFile(int iNodeNumber) {
+        long stamp = beginUpdate(iNodeNumber);
+        invalidateContents(iNodeNumber);
         try {
             // Retrieve the INode for the file
             INode inode = diskDevice.readInode(iNodeNumber);
 
             // Iterate through block pointers in the INode
+            diskDevice.readFreeBlockList(freeBlockList.getFreeBlockList());
+            boolean isFreeListChanged = false;
             for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
                 int blockPointer = inode.getBlockPointer(i);
                 if (blockPointer != -1) { // Check if the block pointer is valid
-                    // Deallocate the block
-                    FreeBlockList freeBlockList = new FreeBlockList();
-                    freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
-                    freeBlockList.deallocateBlock(blockPointer);
-                    diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+                    // Deallocate the block unless a clone or snapshot still shares it
+                    releaseBlock(freeBlockList, blockPointer);
+                    isFreeListChanged = true;
 
                     // Reset the block pointer in the INode
                     inode.setBlockPointer(i, -1);
                 }
             }
 
-            // Write the updated INode back to disk
+            // Write the updated free block list and INode back to disk once
+            if (isFreeListChanged) {
+                diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+            }
             diskDevice.writeInode(inode, iNodeNumber);
 
         } catch (IOException e) {
             System.err.println("Error while deallocating blocks for INode " + iNodeNumber + ": " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            endUpdate(iNodeNumber, stamp);
         }
     }
-}
 
 
+    /**
+     * Scratch state of one reading thread
+     */
+    private static class ReadScratch {
+        int[] blockNumbers = new int[INode.NUM_BLOCK_POINTERS];
+        ByteBuffer blockBuffer = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE);
+    }
+}
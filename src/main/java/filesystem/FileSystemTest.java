@@ -7,7 +7,27 @@ import org.testng.annotations.Test;
 import static org.testng.Assert.*;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 
 
@@ -220,4 +240,1077 @@ public class FileSystemTest {
         }
     }
 
+    @Test
+    public void testCloneSharesBlocksUntilWritten() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("original.txt");
+        String data = new String(new char[Disk.BLOCK_SIZE * 2]).replace('\0', 'C'); // Data for 2 blocks
+        fileSystem.write(fd, data);
+        fileSystem.close(fd);
+
+        // Act
+        fileSystem.clone("original.txt", "copy.txt");
+
+        // Assert
+        INode original = fileSystem.diskDevice.readInode(fileSystem.open("original.txt"));
+        INode copy = fileSystem.diskDevice.readInode(fileSystem.open("copy.txt"));
+        assertEquals(copy.getSize(), original.getSize(), "Clone should have the source size");
+        assertEquals(copy.getBlockPointer(0), original.getBlockPointer(0), "Clone should share data blocks");
+
+        // Writing the clone copies the shared block instead of changing the original
+        int copyFd = fileSystem.open("copy.txt");
+        fileSystem.write(copyFd, "changed");
+        fileSystem.close(copyFd);
+        assertNotEquals(fileSystem.diskDevice.readInode(copyFd).getBlockPointer(0), original.getBlockPointer(0));
+
+        int originalFd = fileSystem.open("original.txt");
+        assertEquals(fileSystem.read(originalFd), data);
+        fileSystem.close(originalFd);
+    }
+
+    @Test
+    public void testSnapshotKeepsPointInTimeContents() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("snap.txt");
+        fileSystem.write(fd, "before");
+        fileSystem.close(fd);
+        int snapshotBlock = fileSystem.diskDevice.readInode(fd).getBlockPointer(0);
+
+        // Act
+        Snapshot snapshot = fileSystem.snapshot();
+        fd = fileSystem.open("snap.txt");
+        fileSystem.write(fd, "after");
+        fileSystem.close(fd);
+        fileSystem.delete("snap.txt");
+
+        // Assert
+        assertEquals(snapshot.read("snap.txt"), "before");
+        byte[] freeBlockList = fileSystem.diskDevice.readFreeBlockList();
+        assertTrue((freeBlockList[snapshotBlock / 8] & (1 << (snapshotBlock % 8))) != 0, "Snapshot should pin its block");
+        snapshot.release();
+        freeBlockList = fileSystem.diskDevice.readFreeBlockList();
+        assertTrue((freeBlockList[snapshotBlock / 8] & (1 << (snapshotBlock % 8))) == 0, "Released block should be free");
+    }
+
+    @Test
+    public void testStripedDiskRoundTrip() throws IOException {
+        // Arrange
+        String[] devices = {"StripeTest0.dsk", "StripeTest1.dsk", "StripeTest2.dsk"};
+        StripedDisk disk = new StripedDisk("StripeTest.dsk", devices, 2);
+        FileSystem fs = new FileSystem(disk);
+        String data = new String(new char[Disk.BLOCK_SIZE * 7 + 10]).replace('\0', 'S'); // Spans all devices
+
+        try {
+            // Act
+            int fd = fs.create("striped.txt");
+            fs.write(fd, data);
+
+            // Assert
+            assertEquals(fs.read(fd), data);
+            INode inode = fs.diskDevice.readInode(fd);
+            assertNotEquals(disk.deviceOf(inode.getBlockPointer(0)), disk.deviceOf(inode.getBlockPointer(2)),
+                    "Consecutive stripes should land on different devices");
+        } finally {
+            disk.close();
+            new File("StripeTest.dsk").delete();
+            for (String device : devices) {
+                new File(device).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryDiskMatchesDisk() throws IOException {
+        // Arrange
+        FileSystem fs = new FileSystem(new MemoryDisk());
+        String data = new String(new char[Disk.BLOCK_SIZE * 3 + 10]).replace('\0', 'M');
+
+        // Act
+        int memoryFd = fs.create("memory.txt");
+        fs.write(memoryFd, data);
+        int diskFd = fileSystem.create("memory.txt");
+        fileSystem.write(diskFd, data);
+
+        // Assert
+        assertEquals(fs.read(memoryFd), data);
+        assertEquals(fs.diskDevice.readInode(memoryFd).getBlockPointer(3),
+                fileSystem.diskDevice.readInode(diskFd).getBlockPointer(3));
+        assertEquals(fs.diskDevice.readFreeBlockList(), fileSystem.diskDevice.readFreeBlockList(),
+                "Both devices should allocate identically");
+    }
+
+    @Test
+    public void testPendingWriteKeepsItsReservedBlocks() throws IOException {
+        // Arrange
+        fileSystem.setDelayedAllocation(true);
+        int pending = fileSystem.create("pending.txt");
+        String data = new String(new char[Disk.BLOCK_SIZE * INode.NUM_BLOCK_POINTERS]).replace('\0', 'P');
+        fileSystem.write(pending, data);
+
+        // Act: take the rest of the volume
+        int numFillers = 0;
+        try {
+            while (true) {
+                int filler = fileSystem.create("filler" + numFillers++ + ".txt");
+                fileSystem.preallocate(filler, INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE);
+            }
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("Insufficient space"), e.getMessage());
+        }
+        fileSystem.close(pending);
+
+        // Assert
+        assertEquals(fileSystem.read(fileSystem.open("pending.txt")), data);
+    }
+
+    @Test
+    public void testDevicesRejectBlocksOutsideDataRegion() throws IOException {
+        // Arrange
+        String[] stripes = {"BoundsTest0.dsk", "BoundsTest1.dsk"};
+        BlockDevice[] devices = {new Disk("BoundsTest.dsk"), new StripedDisk("BoundsStripedTest.dsk", stripes, 2),
+                new MemoryDisk()};
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+
+        try {
+            for (BlockDevice device : devices) {
+                device.format();
+                byte[] freeBlockList = device.readFreeBlockList();
+
+                // Act & Assert
+                for (int whichBlock : new int[] {-1, Disk.NUM_BLOCKS}) {
+                    assertThrows(IllegalArgumentException.class, () -> device.writeDataBlock(block, whichBlock));
+                    assertThrows(IllegalArgumentException.class, () -> device.readDataBlock(whichBlock));
+                    assertThrows(IllegalArgumentException.class,
+                            () -> device.readDataBlocks(new int[] {0, whichBlock}));
+                }
+                assertEquals(device.readFreeBlockList(), freeBlockList, "Nothing should have been written");
+            }
+        } finally {
+            for (BlockDevice device : devices) {
+                device.close();
+            }
+            for (String name : new String[] {"BoundsTest.dsk", "BoundsStripedTest.dsk", stripes[0], stripes[1]}) {
+                new File(name).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testDelayedAllocationFlushesContiguouslyOnClose() throws IOException {
+        // Arrange
+        fileSystem.setDelayedAllocation(true);
+        int scattered = fileSystem.create("scattered.txt");
+        fileSystem.write(scattered, "x");
+        int gap = fileSystem.create("gap.txt");
+        fileSystem.write(gap, "y");
+        fileSystem.close(scattered);
+        fileSystem.close(gap);
+        fileSystem.delete("scattered.txt"); // Leaves a one block hole at the start of the disk
+        String data = new String(new char[Disk.BLOCK_SIZE * 4 + 1]).replace('\0', 'D');
+
+        // Act
+        int fd = fileSystem.create("delayed.txt");
+        fileSystem.write(fd, data);
+        int blockBeforeClose = fileSystem.diskDevice.readInode(fd).getBlockPointer(0);
+        String beforeClose = fileSystem.read(fd);
+        fileSystem.close(fd);
+
+        // Assert
+        assertEquals(blockBeforeClose, -1, "No block should be chosen before close");
+        assertEquals(beforeClose, data);
+        INode inode = fileSystem.diskDevice.readInode(fd);
+        assertEquals(inode.getSize(), data.length());
+        for (int i = 1; i < 5; i++) {
+            assertEquals(inode.getBlockPointer(i), inode.getBlockPointer(0) + i, "Blocks should be contiguous");
+        }
+        fd = fileSystem.open("delayed.txt");
+        assertEquals(fileSystem.read(fd), data);
+    }
+
+    @Test
+    public void testDelayedAllocationDeleteBeforeFlushSkipsDisk() throws IOException {
+        // Arrange
+        fileSystem.setDelayedAllocation(true);
+        int fd = fileSystem.create("temporary.txt");
+        byte[] freeBefore = fileSystem.diskDevice.readFreeBlockList(); // After the directory block is allocated
+
+        // Act
+        fileSystem.write(fd, new String(new char[Disk.BLOCK_SIZE * 2]).replace('\0', 'T'));
+        fileSystem.delete("temporary.txt");
+        fileSystem.sync();
+
+        // Assert
+        assertEquals(fileSystem.diskDevice.readFreeBlockList(), freeBefore);
+    }
+
+    @Test
+    public void testLogStructuredCleanerReclaimsOverwrittenSegments() throws IOException {
+        // Arrange
+        LogStructuredFileSystem lfs = new LogStructuredFileSystem(new MemoryDisk());
+        String cold = new String(new char[Disk.BLOCK_SIZE * 3]).replace('\0', 'C');
+        int coldFd = lfs.create("cold.txt");
+        lfs.write(coldFd, cold);
+        int hotFd = lfs.create("hot.txt");
+
+        // Act
+        // Each write appends a data block and an inode, filling the log more than once
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            lfs.write(hotFd, "version " + i);
+        }
+        lfs.sync();
+
+        // Assert
+        assertEquals(lfs.read(hotFd), "version " + (Disk.NUM_BLOCKS - 1));
+        assertEquals(lfs.read(coldFd), cold, "Live blocks moved by the cleaner should keep their contents");
+        assertTrue(lfs.getCleanSegmentCount() > 0);
+        lfs.close();
+    }
+
+    @Test
+    public void testLogStructuredMountRecoversCheckpoint() throws IOException {
+        // Arrange: enough rewrites that the cleaner moves blocks and reuses segments
+        MemoryDisk disk = new MemoryDisk();
+        LogStructuredFileSystem lfs = new LogStructuredFileSystem(disk);
+        String kept = new String(new char[Disk.BLOCK_SIZE * 5]).replace('\0', 'K');
+        lfs.write(lfs.create("kept.txt"), kept);
+        int hotFd = lfs.create("hot.txt");
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            lfs.write(hotFd, "version " + i);
+        }
+        lfs.create("deleted.txt");
+        lfs.delete("deleted.txt");
+        lfs.close();
+
+        // Act
+        LogStructuredFileSystem mounted = LogStructuredFileSystem.mount(disk);
+
+        // Assert
+        assertEquals(mounted.read(mounted.open("kept.txt")), kept);
+        int mountedHotFd = mounted.open("hot.txt");
+        assertEquals(mounted.read(mountedHotFd), "version " + (Disk.NUM_BLOCKS - 1));
+        assertEquals(mounted.open("deleted.txt"), -1);
+        mounted.write(mountedHotFd, "after mount");
+        assertEquals(mounted.read(mountedHotFd), "after mount");
+        mounted.close();
+        MemoryDisk blank = new MemoryDisk();
+        blank.format();
+        assertThrows(IOException.class, () -> LogStructuredFileSystem.mount(blank));
+    }
+
+    @Test
+    public void testLogStructuredMountSurvivesTornCheckpoint() throws IOException {
+        // Arrange: a device that loses power with all of a checkpoint written but its first block
+        AtomicBoolean isTearing = new AtomicBoolean();
+        MemoryDisk disk = new MemoryDisk() {
+            @Override
+            public void writeDataBlocks(ByteBuffer blockData, int[] whichBlocks, int numBlocks) throws IOException {
+                if (isTearing.get() && whichBlocks[0] < LogStructuredFileSystem.SEGMENT_BLOCKS) {
+                    blockData.position(blockData.position() + Disk.BLOCK_SIZE);
+                    super.writeDataBlocks(blockData, Arrays.copyOfRange(whichBlocks, 1, numBlocks), numBlocks - 1);
+                    throw new IOException("power lost");
+                }
+                super.writeDataBlocks(blockData, whichBlocks, numBlocks);
+            }
+        };
+        LogStructuredFileSystem lfs = new LogStructuredFileSystem(disk);
+        int fd = lfs.create("kept.txt");
+        lfs.write(fd, "first");
+        lfs.sync();
+        lfs.write(fd, "second");
+        lfs.create("lost.txt");
+        lfs.sync();
+
+        // Act
+        lfs.write(fd, "torn");
+        lfs.delete("lost.txt");
+        isTearing.set(true);
+        assertThrows(IOException.class, lfs::sync);
+        isTearing.set(false);
+        LogStructuredFileSystem mounted = LogStructuredFileSystem.mount(disk);
+
+        // Assert: the checkpoint before the torn one
+        assertEquals(mounted.read(mounted.open("kept.txt")), "second");
+        assertTrue(mounted.open("lost.txt") != -1, "The torn checkpoint's delete should not be seen");
+        mounted.close();
+    }
+
+    @Test
+    public void testLogStructuredCleanerKeepsUpWhenMostlyFull() throws IOException {
+        // Arrange: about 80% of the log is live, so no segment is ever half empty
+        LogStructuredFileSystem lfs = new LogStructuredFileSystem(new MemoryDisk());
+        int numFiles = 400;
+        byte[] contents = new byte[INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE];
+        for (int i = 0; i < numFiles; i++) {
+            Arrays.fill(contents, (byte) ('a' + i % 26));
+            lfs.write(lfs.create("full" + i), ByteBuffer.wrap(contents));
+        }
+        Random random = new Random(1);
+
+        // Act
+        int last = 0;
+        for (int n = 0; n < 3000; n++) {
+            last = random.nextInt(numFiles);
+            Arrays.fill(contents, (byte) n);
+            lfs.write(last, ByteBuffer.wrap(contents));
+        }
+
+        // Assert
+        ByteBuffer data = ByteBuffer.allocate(contents.length);
+        assertEquals(lfs.read(last, data), contents.length);
+        assertEquals(data.array(), contents);
+        lfs.close();
+    }
+
+    @Test
+    public void testBlockGroupsKeepDataNearItsINode() throws IOException {
+        // Arrange
+        fileSystem.mkdir("a");
+        fileSystem.mkdir("b");
+
+        // Act
+        int fdA = fileSystem.create("a/data.txt");
+        fileSystem.write(fdA, "in a");
+        int fdB = fileSystem.create("b/data.txt");
+        fileSystem.write(fdB, "in b");
+
+        // Assert
+        int groupA = BlockGroups.groupOfINode(fdA);
+        int groupB = BlockGroups.groupOfINode(fdB);
+        assertNotEquals(groupA, groupB, "New directories should be spread across groups");
+        int blockA = fileSystem.diskDevice.readInode(fdA).getBlockPointer(0);
+        int blockB = fileSystem.diskDevice.readInode(fdB).getBlockPointer(0);
+        assertEquals(BlockGroups.groupOfBlock(blockA), groupA);
+        assertEquals(BlockGroups.groupOfBlock(blockB), groupB);
+        assertTrue(Math.abs(Disk.dataBlockOffset(blockA) - Disk.inodeOffset(fdA)) < Disk.GROUP_SIZE,
+                "Data should be stored in the same group as its inode");
+        assertTrue(Math.abs(Disk.dataBlockOffset(blockB) - Disk.inodeOffset(fdB)) < Disk.GROUP_SIZE,
+                "Data should be stored in the same group as its inode");
+    }
+
+    @Test
+    public void testMultiBlockWritesSplitAtGroupBoundaries() throws IOException {
+        // Arrange: consecutive block numbers running from the end of group 0 into group 1
+        int first = BlockGroups.firstBlock(1) - 2;
+        int[] whichBlocks = {first, first + 1, first + 2, first + 3};
+        ByteBuffer blocks = ByteBuffer.allocate(whichBlocks.length * Disk.BLOCK_SIZE);
+        for (int i = 0; i < whichBlocks.length; i++) {
+            Arrays.fill(blocks.array(), i * Disk.BLOCK_SIZE, (i + 1) * Disk.BLOCK_SIZE, (byte) ('A' + i));
+        }
+
+        // Act
+        fileSystem.diskDevice.writeDataBlocks(blocks, whichBlocks, whichBlocks.length);
+        fileSystem.sync();
+
+        // Assert: block 1024 follows the header of group 1, not block 1023
+        byte[] raw = new byte[Disk.BLOCK_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(Disk.RAW_DISK_NAME, "r")) {
+            file.seek(Disk.dataBlockOffset(first + 2));
+            file.readFully(raw);
+        }
+        assertEquals(Disk.dataBlockOffset(first + 2), Disk.groupOffset(1) + Disk.GROUP_HEADER_BYTES);
+        assertEquals(raw[0], (byte) 'C');
+        assertEquals(fileSystem.diskDevice.readDataBlock(first + 1)[0], (byte) 'B');
+        assertEquals(fileSystem.diskDevice.readDataBlock(first + 3)[0], (byte) 'D');
+        assertTrue(fileSystem.diskDevice.getINodeTable().newView().at(BlockGroups.INODES_PER_GROUP).isFree(),
+                "The inodes of group 1 should not be overwritten");
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        // Arrange
+        Path dump = Files.createTempFile("filesystem", ".jfr");
+        Recording recording = new Recording();
+        recording.enable("filesystem.FileOperation");
+        recording.enable("filesystem.DiskIO");
+
+        // Act
+        recording.start();
+        int fd = fileSystem.create("traced.txt");
+        fileSystem.write(fd, new String(new char[Disk.BLOCK_SIZE * 2]).replace('\0', 'J'));
+        fileSystem.close(fd);
+        recording.stop();
+        recording.dump(dump);
+        recording.close();
+
+        // Assert
+        boolean sawWrite = false;
+        boolean sawBlocks = false;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            String type = event.getEventType().getName();
+            if (type.equals("filesystem.FileOperation") && event.getString("operation").equals("write")) {
+                assertEquals(event.getString("fileName"), "traced.txt");
+                assertEquals(event.getLong("bytes"), Disk.BLOCK_SIZE * 2);
+                assertEquals(event.getInt("blocks"), 2);
+                sawWrite = true;
+            }
+            if (type.equals("filesystem.DiskIO") && event.getString("operation").equals("writeDataBlocks")) {
+                sawBlocks = true;
+            }
+        }
+        Files.delete(dump);
+        assertTrue(sawWrite, "The write should be recorded");
+        assertTrue(sawBlocks, "The block writes should be recorded");
+    }
+
+    @Test
+    public void testContentCacheInvalidatedByWrite() throws IOException {
+        // Arrange
+        FileContentCache cache = new FileContentCache(64 * 1024, 16 * 1024, FileContentCache.Admission.ALWAYS);
+        fileSystem.setContentCache(cache);
+        int fd = fileSystem.create("cached.txt");
+        fileSystem.write(fd, "first");
+
+        // Act
+        String firstRead = fileSystem.read(fd);
+        String secondRead = fileSystem.read(fd);
+        fileSystem.write(fd, "second");
+        String afterWrite = fileSystem.read(fd);
+
+        // Assert
+        assertEquals(firstRead, "first");
+        assertEquals(secondRead, "first");
+        assertEquals(afterWrite, "second", "A write should invalidate the cached contents");
+        assertEquals(cache.getHitCount(), 1);
+        assertEquals(cache.getMissCount(), 2);
+    }
+
+    @Test
+    public void testContentCacheTinyLfuResistsScans() throws IOException {
+        // Arrange
+        String block = new String(new char[Disk.BLOCK_SIZE]).replace('\0', 'H');
+        FileContentCache cache = new FileContentCache(8 * Disk.BLOCK_SIZE, Disk.BLOCK_SIZE,
+                FileContentCache.Admission.TINY_LFU);
+        fileSystem.setContentCache(cache);
+        int hot = fileSystem.create("hot.txt");
+        fileSystem.write(hot, block);
+        for (int i = 0; i < 5; i++) {
+            fileSystem.read(hot);
+        }
+
+        // Act
+        for (int i = 0; i < 50; i++) {
+            int cold = fileSystem.create("cold" + i + ".txt");
+            fileSystem.write(cold, block);
+            fileSystem.read(cold);
+            fileSystem.close(cold);
+        }
+        long hitsBefore = cache.getHitCount();
+        fileSystem.read(hot);
+
+        // Assert
+        assertEquals(cache.getHitCount(), hitsBefore + 1, "A one-off scan should not evict the hot file");
+    }
+
+    @Test
+    public void testPreallocatedFileGrowsContiguouslyByAppend() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("log.txt");
+        int other = fileSystem.create("other.txt");
+        fileSystem.write(fd, "start;");
+
+        // Act
+        fileSystem.preallocate(fd, Disk.BLOCK_SIZE * 4);
+        fileSystem.write(other, "interleaved"); // Would take the block after the file without preallocation
+        StringBuilder expected = new StringBuilder("start;");
+        for (int i = 0; i < 200; i++) {
+            String entry = "entry " + i + ";";
+            fileSystem.append(fd, entry);
+            expected.append(entry);
+        }
+
+        // Assert
+        INode inode = fileSystem.diskDevice.readInode(fd);
+        assertEquals(inode.getSize(), expected.length());
+        for (int i = 1; i < 4; i++) {
+            assertEquals(inode.getBlockPointer(i), inode.getBlockPointer(0) + i, "Blocks should be contiguous");
+        }
+        assertEquals(fileSystem.read(fd), expected.toString());
+        assertEquals(fileSystem.read(other), "interleaved");
+    }
+
+    @Test
+    public void testAppendIntoPreallocatedBlocksSkipsFreeList() throws IOException {
+        // Arrange: a device counting the free block list requests
+        AtomicInteger freeListRequests = new AtomicInteger();
+        FileSystem fs = new FileSystem(new MemoryDisk() {
+            @Override
+            public void readFreeBlockList(byte[] freeList) throws IOException {
+                freeListRequests.incrementAndGet();
+                super.readFreeBlockList(freeList);
+            }
+
+            @Override
+            public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+                freeListRequests.incrementAndGet();
+                super.writeFreeBlockList(freeBlockList);
+            }
+        });
+        int fd = fs.create("log.txt");
+        fs.preallocate(fd, Disk.BLOCK_SIZE * 4);
+        int requestsBefore = freeListRequests.get();
+
+        // Act
+        for (int i = 0; i < 100; i++) {
+            fs.append(fd, "entry " + i + ";");
+        }
+        int requestsForAppends = freeListRequests.get() - requestsBefore;
+        fs.append(fd, new String(new char[Disk.BLOCK_SIZE * 4]).replace('\0', 'G')); // Grows past the preallocation
+
+        // Assert
+        assertEquals(requestsForAppends, 0, "Appends into preallocated blocks should not touch the free list");
+        assertTrue(freeListRequests.get() > requestsBefore, "Growing the file should allocate");
+        assertTrue(fs.read(fd).startsWith("entry 0;entry 1;"));
+    }
+
+    @Test
+    public void testTruncateFreesBlocksAndZeroesTail() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("shrink.txt");
+        fileSystem.write(fd, new String(new char[Disk.BLOCK_SIZE * 3]).replace('\0', 'S'));
+        int freedBlock = fileSystem.diskDevice.readInode(fd).getBlockPointer(2);
+
+        // Act
+        fileSystem.truncate(fd, 10);
+        String shrunk = fileSystem.read(fd);
+        fileSystem.truncate(fd, 20);
+
+        // Assert
+        assertEquals(shrunk, "SSSSSSSSSS");
+        assertEquals(fileSystem.read(fd), "SSSSSSSSSS" + new String(new char[10]));
+        INode inode = fileSystem.diskDevice.readInode(fd);
+        assertEquals(inode.getBlockPointer(1), -1);
+        byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+        assertEquals(freeList[freedBlock / 8] & (1 << (freedBlock % 8)), 0, "Trailing blocks should be free");
+    }
+
+    @Test
+    public void testSparseFileAllocatesOnlyWrittenBlocks() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("sparse.idx");
+        byte[] freeBefore = fileSystem.diskDevice.readFreeBlockList(); // After the directory block is allocated
+
+        // Act
+        fileSystem.write(fd, Disk.BLOCK_SIZE * 20 + 5, "end");
+        fileSystem.write(fd, Disk.BLOCK_SIZE * 3 - 1, "mid");
+
+        // Assert
+        INode inode = fileSystem.diskDevice.readInode(fd);
+        assertEquals(inode.getSize(), Disk.BLOCK_SIZE * 20 + 8);
+        int allocated = 0;
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                allocated++;
+            }
+        }
+        assertEquals(allocated, 3, "Only the touched blocks should be allocated");
+        byte[] freeAfter = fileSystem.diskDevice.readFreeBlockList();
+        int newlyUsed = 0;
+        for (int i = 0; i < freeAfter.length; i++) {
+            newlyUsed += Integer.bitCount(freeAfter[i] & 0xFF) - Integer.bitCount(freeBefore[i] & 0xFF);
+        }
+        assertEquals(newlyUsed, 3);
+        byte[] expected = new byte[Disk.BLOCK_SIZE * 20 + 8];
+        System.arraycopy("mid".getBytes(), 0, expected, Disk.BLOCK_SIZE * 3 - 1, 3);
+        System.arraycopy("end".getBytes(), 0, expected, Disk.BLOCK_SIZE * 20 + 5, 3);
+        assertEquals(fileSystem.read(fd), new String(expected));
+    }
+
+    @Test
+    public void testRemoteDiskSharesVolumeOverLoopback() throws IOException {
+        // Arrange
+        Disk exported = new Disk("BlockServerTest.dsk");
+        exported.format();
+        BlockServer server = new BlockServer(exported);
+        server.start(0);
+        RemoteDisk remote = new RemoteDisk(server.getAddress());
+        RemoteDisk worker = null;
+        String data = new String(new char[Disk.BLOCK_SIZE * 5 + 7]).replace('\0', 'R');
+
+        try {
+            // Act
+            FileSystem fs = new FileSystem(remote);
+            int fd = fs.create("remote.txt");
+            fs.write(fd, data);
+            fs.sync();
+            worker = new RemoteDisk(server.getAddress());
+            FileSystem workerFs = FileSystem.mount(worker);
+            int late = fs.create("late.txt");
+            fs.write(late, "created after the worker connected");
+            fs.sync();
+            int lateFd = workerFs.open("late.txt");
+            INode inode = worker.readInode(fd);
+            worker.writeDataBlock(new byte[Disk.BLOCK_SIZE], Disk.NUM_BLOCKS); // Fails on the server
+
+            // Assert
+            assertThrows(IOException.class, worker::sync); // The failed write is reported by the next call
+            assertEquals(fs.read(fd), data);
+            assertEquals(inode.getSize(), data.length());
+            assertEquals(worker.getINodeTable().newView().at(fd).getSize(), data.length(),
+                    "The inode table should be loaded on connect");
+            assertEquals(new String(worker.readDataBlock(inode.getBlockPointer(5)), 0, 7), "RRRRRRR");
+            assertEquals(worker.readFreeBlockList(), exported.readFreeBlockList(),
+                    "The connection should survive a failed write");
+            assertTrue(lateFd != -1, "The worker should see files created after it connected");
+            assertEquals(workerFs.read(lateFd), "created after the worker connected");
+        } finally {
+            remote.close();
+            if (worker != null) {
+                worker.close();
+            }
+            server.close();
+            exported.close();
+            new File("BlockServerTest.dsk").delete();
+        }
+    }
+
+    @Test
+    public void testTwoMountedClientsCreateAndWriteFiles() throws Exception {
+        // Arrange: two file systems sharing one volume through a block server
+        MemoryDisk exported = new MemoryDisk();
+        exported.format();
+        BlockServer server = new BlockServer(exported);
+        server.start(0);
+        RemoteDisk diskA = new RemoteDisk(server.getAddress());
+        RemoteDisk diskB = new RemoteDisk(server.getAddress());
+
+        try {
+            FileSystem fsA = new FileSystem(diskA);
+            FileSystem fsB = FileSystem.mount(diskB);
+
+            // Act: one client after the other, with no sync in between
+            int fdA = fsA.create("a.txt");
+            fsA.write(fdA, "written by a");
+            fsA.close(fdA);
+            int fdB = fsB.create("b.txt");
+            fsB.write(fdB, "written by b");
+            fsB.close(fdB);
+
+            // Act: both clients at once
+            int filesPerClient = 20;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> clients = new ArrayList<>();
+            for (FileSystem fs : new FileSystem[] {fsA, fsB}) {
+                String prefix = fs == fsA ? "a" : "b";
+                Thread client = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < filesPerClient; i++) {
+                            int fd = fs.create(prefix + i + ".txt");
+                            fs.write(fd, new String(new char[Disk.BLOCK_SIZE + i]).replace('\0', prefix.charAt(0)));
+                            fs.close(fd);
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                });
+                clients.add(client);
+                client.start();
+            }
+            start.countDown();
+            for (Thread client : clients) {
+                client.join();
+            }
+
+            // Assert
+            assertTrue(failures.isEmpty(), "Clients failed: " + failures);
+            assertEquals(fsB.read(fsB.open("b.txt")), "written by b");
+            assertEquals(fsB.read(fsB.open("a.txt")), "written by a");
+            assertEquals(fsA.read(fsA.open("b.txt")), "written by b");
+            for (int i = 0; i < filesPerClient; i++) {
+                assertEquals(fsA.read(fsA.open("b" + i + ".txt")),
+                        new String(new char[Disk.BLOCK_SIZE + i]).replace('\0', 'b'));
+                assertEquals(fsB.read(fsB.open("a" + i + ".txt")),
+                        new String(new char[Disk.BLOCK_SIZE + i]).replace('\0', 'a'));
+            }
+            assertEquals(fsA.list("/").size(), 2 + 2 * filesPerClient);
+        } finally {
+            diskA.close();
+            diskB.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTransferToSendsRunsHolesAndTail() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("export.bin");
+        String head = new String(new char[Disk.BLOCK_SIZE * 3]).replace('\0', 'H');
+        fileSystem.write(fd, head);
+        fileSystem.write(fd, Disk.BLOCK_SIZE * 6 + 3, "tail"); // Leaves a three block hole
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        // Act
+        long bytesSent = fileSystem.transferTo(fd, Channels.newChannel(received));
+
+        // Assert
+        assertEquals(bytesSent, Disk.BLOCK_SIZE * 6 + 7);
+        assertEquals(received.toString(), fileSystem.read(fd));
+    }
+
+    @Test
+    public void testMetadataWritesOnlyChangedRanges() throws IOException {
+        // Arrange
+        Disk disk = (Disk) fileSystem.diskDevice;
+        int fd = fileSystem.create("metadata.txt");
+        fileSystem.write(fd, "metadata");
+        byte[] freeList = disk.readFreeBlockList();
+        int lastByte = Disk.BYTES_IN_FREE_SPACE_LIST - 1;
+        try (RandomAccessFile raw = new RandomAccessFile(Disk.RAW_DISK_NAME, "rw")) {
+            raw.seek(Disk.freeListByteOffset(lastByte));
+            raw.write(0x01); // Changed behind the disk's back, outside the range written below
+        }
+        int dirtyINodes = disk.getINodeTable().getDirtyCount();
+
+        // Act
+        freeList[100] |= 0x10;
+        disk.writeFreeBlockList(freeList);
+        fileSystem.sync();
+
+        // Assert
+        byte[] onDisk = readRawFreeList();
+        assertEquals(onDisk[100], freeList[100]);
+        assertEquals(onDisk[lastByte], 0x01, "Unchanged bytes should not be rewritten");
+        assertTrue(dirtyINodes > 0 && dirtyINodes < Disk.NUM_INODES, "Only written inodes should be dirty");
+        assertEquals(disk.getINodeTable().getDirtyCount(), 0);
+    }
+
+    private static byte[] readRawFreeList() throws IOException {
+        byte[] freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+        try (RandomAccessFile raw = new RandomAccessFile(Disk.RAW_DISK_NAME, "r")) {
+            for (int i = 0; i < freeList.length; i += Disk.GROUP_FREE_LIST_BYTES) {
+                raw.seek(Disk.freeListByteOffset(i));
+                raw.readFully(freeList, i, Disk.GROUP_FREE_LIST_BYTES);
+            }
+        }
+        return freeList;
+    }
+
+    @Test
+    public void testOptimisticReadsNeverSeeTornWrites() throws Exception {
+        // Arrange: two versions of different sizes, each made of a single repeated letter
+        String shortVersion = "a".repeat(Disk.BLOCK_SIZE + 10);
+        String longVersion = "b".repeat(Disk.BLOCK_SIZE * 6);
+        int fd = fileSystem.create("contended.txt");
+        fileSystem.write(fd, shortVersion);
+
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> readers = new ArrayList<>();
+
+        // Act
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                ByteBuffer data = ByteBuffer.allocate(longVersion.length());
+                try {
+                    while (!done.get()) {
+                        data.clear();
+                        int bytesRead = fileSystem.read(fd, data);
+                        String contents = new String(data.array(), 0, bytesRead);
+                        if (!contents.equals(shortVersion) && !contents.equals(longVersion)) {
+                            failures.add(new AssertionError("Torn read of " + bytesRead + " bytes"));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = 0; i < 200; i++) {
+            fileSystem.write(fd, i % 2 == 0 ? longVersion : shortVersion);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        // Assert
+        assertTrue(failures.isEmpty(), "Readers failed: " + failures);
+        assertEquals(fileSystem.read(fd), shortVersion);
+    }
+
+    @Test
+    public void testSpaceStatisticsReportFragmentsAndWaste() throws IOException {
+        // Arrange: a file whose third block cannot follow its second, which another file took
+        int first = fileSystem.create("first.txt");
+        fileSystem.write(first, "a".repeat(600));
+        int second = fileSystem.create("second.txt");
+        fileSystem.write(second, "b");
+        fileSystem.preallocate(second, 3 * Disk.BLOCK_SIZE);
+        fileSystem.append(first, "c".repeat(Disk.BLOCK_SIZE));
+
+        // Act
+        SpaceStatistics statistics = fileSystem.getSpaceStatistics();
+
+        // Assert
+        assertEquals(statistics.getFiles(), 2);
+        assertEquals(statistics.getFragments(first), 2);
+        assertEquals(statistics.getFragments(second), 1);
+        assertEquals(statistics.getWastedBytes(first), 3 * Disk.BLOCK_SIZE - 1112);
+        assertEquals(statistics.getWastedBytes(second), 3 * Disk.BLOCK_SIZE - 1);
+        assertEquals(statistics.getPreallocatedBlocks(), 2);
+        assertEquals(statistics.getFreeBlocks() + statistics.getAllocatedBlocks() + statistics.getDirectoryBlocks(),
+                Disk.NUM_BLOCKS);
+        long histogramBlocks = 0;
+        for (int bucket = 0; bucket < SpaceStatistics.NUM_EXTENT_BUCKETS; bucket++) {
+            histogramBlocks += statistics.getFreeExtentBlocks(bucket);
+        }
+        assertEquals(histogramBlocks, statistics.getFreeBlocks());
+        assertEquals(statistics.getFragmentedFiles(), 1);
+        assertEquals(statistics.getINodeUtilization(), (2.0 + statistics.getDirectories()) / Disk.NUM_INODES);
+    }
+
+    @Test
+    public void testSpaceStatisticsFollowReadOnlyDisk() throws IOException {
+        // Arrange: a monitor opening the live volume while the file system uses it
+        fileSystem.create("before.txt");
+        fileSystem.sync();
+        Disk monitor = new Disk(Disk.RAW_DISK_NAME);
+        monitor.openReadOnly();
+
+        try {
+            // Act
+            SpaceStatistics before = SpaceStatistics.of(monitor);
+            fileSystem.write(fileSystem.create("after.txt"), "x");
+            fileSystem.sync();
+            monitor.refreshINodeTable();
+            SpaceStatistics after = SpaceStatistics.of(monitor);
+
+            // Assert
+            assertEquals(after.getFiles(), before.getFiles() + 1);
+            assertEquals(after.getAllocatedBlocks(), before.getAllocatedBlocks() + 1);
+            assertThrows(NonWritableChannelException.class,
+                    () -> monitor.writeDataBlock(new byte[Disk.BLOCK_SIZE], 0));
+        } finally {
+            monitor.close();
+        }
+    }
+
+    @Test
+    public void testLatencyHistogramPercentilesAndMerge() {
+        // Arrange: values below 16 ns have exact buckets
+        LatencyHistogram fast = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 10; nanos++) {
+            fast.record(nanos);
+        }
+        LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 10; i++) {
+            slow.record(1000);
+        }
+
+        // Act
+        long fastMedian = fast.getPercentileNanos(50);
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(fast);
+        merged.merge(slow);
+
+        // Assert
+        assertEquals(new LatencyHistogram().getPercentileNanos(50), 0);
+        assertEquals(fastMedian, 5);
+        assertEquals(fast.getPercentileNanos(100), 10);
+        assertEquals(fast.getMeanNanos(), 5.5);
+        assertEquals(merged.getCount(), 20);
+        assertEquals(merged.getPercentileNanos(50), 10);
+        assertEquals(merged.getPercentileNanos(99), 1000, "Bucket bounds are capped at the maximum");
+        assertEquals(merged.getMaxNanos(), 1000);
+    }
+
+    @Test
+    public void testZipfianGeneratorFavorsLowRanks() {
+        // Arrange
+        int numItems = 100;
+        ZipfianGenerator generator = new ZipfianGenerator(numItems, 0.99);
+        Random random = new Random(1);
+        int[] counts = new int[numItems];
+
+        // Act
+        for (int i = 0; i < 100000; i++) {
+            int item = generator.next(random);
+            assertTrue(item >= 0 && item < numItems, "Item " + item + " is out of range");
+            counts[item]++;
+        }
+
+        // Assert
+        assertTrue(counts[0] > 10 * counts[numItems - 1], counts[0] + " vs " + counts[numItems - 1]);
+        assertTrue(counts[0] > counts[1] && counts[1] > counts[9]);
+        assertEquals(new ZipfianGenerator(1, 0.99).next(random), 0);
+        assertThrows(IllegalArgumentException.class, () -> new ZipfianGenerator(0, 0.99));
+        assertThrows(IllegalArgumentException.class, () -> new ZipfianGenerator(10, -1));
+    }
+
+    @Test
+    public void testLoadToolReplaysRecordedTrace() throws Exception {
+        // Arrange
+        File trace = File.createTempFile("LoadToolTest", ".trace");
+        String[] common = {"--disk", LoadTool.MEMORY_DISK, "--threads", "2", "--files", "20"};
+        LoadTool recorder = new LoadTool();
+        recorder.parseArguments(concat(common, "--ops", "200", "--record", trace.getPath()));
+        LoadTool replayer = new LoadTool();
+        replayer.parseArguments(concat(common, "--replay", trace.getPath()));
+        ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+
+        try {
+            // Act
+            recorder.run(new PrintStream(recorded));
+            replayer.run(new PrintStream(replayed));
+
+            // Assert
+            assertEquals(Files.readAllLines(trace.toPath()).size(), 200);
+            assertTrue(recorded.toString().matches("(?s).*total +200 ops.*"), recorded.toString());
+            assertTrue(replayed.toString().matches("(?s).*total +200 ops.*"), replayed.toString());
+        } finally {
+            trace.delete();
+        }
+    }
+
+    @Test
+    public void testLoadToolRejectsBadArgumentsAndTraces() throws Exception {
+        // Arrange
+        File trace = File.createTempFile("LoadToolTest", ".trace");
+        Files.write(trace.toPath(), List.of("READ 1 100", "WRITE 2"));
+        LoadTool replayer = new LoadTool();
+        replayer.parseArguments(new String[] {"--disk", LoadTool.MEMORY_DISK, "--replay", trace.getPath()});
+
+        try {
+            // Act & Assert
+            IllegalArgumentException both = expectThrows(IllegalArgumentException.class, () -> new LoadTool()
+                    .parseArguments(new String[] {"--record", "a.trace", "--replay", trace.getPath()}));
+            assertTrue(both.getMessage().contains("--record and --replay"), both.getMessage());
+            IllegalArgumentException negative = expectThrows(IllegalArgumentException.class,
+                    () -> new LoadTool().parseArguments(new String[] {"--ops", "-1"}));
+            assertTrue(negative.getMessage().contains("ops"), negative.getMessage());
+            IOException malformed = expectThrows(IOException.class,
+                    () -> replayer.run(new PrintStream(new ByteArrayOutputStream())));
+            assertTrue(malformed.getMessage().contains("WRITE 2"), malformed.getMessage());
+        } finally {
+            trace.delete();
+        }
+    }
+
+    private static String[] concat(String[] first, String... rest) {
+        String[] all = Arrays.copyOf(first, first.length + rest.length);
+        System.arraycopy(rest, 0, all, first.length, rest.length);
+        return all;
+    }
+
+    @Test
+    public void testDirectories() throws IOException {
+        // Arrange
+        fileSystem.mkdir("docs");
+        fileSystem.mkdir("/docs/reports");
+
+        // Act
+        int fd = fileSystem.create("docs/reports/q1.txt");
+        fileSystem.write(fd, "quarterly");
+        fileSystem.close(fd);
+
+        // Assert
+        assertEquals(fileSystem.list("/"), List.of("docs/"));
+        assertEquals(fileSystem.list("docs"), List.of("reports/"));
+        assertEquals(fileSystem.open("q1.txt"), -1, "Files are only visible in their own directory");
+        fd = fileSystem.open("/docs/reports/q1.txt");
+        assertEquals(fileSystem.read(fd), "quarterly");
+        fileSystem.close(fd);
+
+        assertThrows(IOException.class, () -> fileSystem.rmdir("docs/reports"));
+        fileSystem.delete("docs/reports/q1.txt");
+        fileSystem.rmdir("docs/reports");
+        assertTrue(fileSystem.list("docs").isEmpty());
+    }
+
+    @Test
+    public void testDirectoryWithManyEntries() throws IOException {
+        // Enough names to overflow some buckets into their neighbours
+        fileSystem.mkdir("many");
+        for (int i = 0; i < 1000; i++) {
+            fileSystem.close(fileSystem.create("many/f" + i));
+        }
+
+        for (int i = 0; i < 1000; i += 2) {
+            fileSystem.delete("many/f" + i);
+        }
+
+        assertEquals(fileSystem.list("many").size(), 500);
+        for (int i = 1; i < 1000; i += 2) {
+            assertEquals(fileSystem.open("many/f" + i) != -1, true, "f" + i + " should be found");
+        }
+        assertEquals(fileSystem.open("many/f0"), -1);
+    }
+
+    @Test
+    public void testINodeViewReadsInPlace() throws IOException {
+        // Arrange
+        int fd = fileSystem.create("viewed.txt");
+        fileSystem.write(fd, "in place");
+        fileSystem.mkdir("viewedDir");
+
+        // Act
+        INodeView view = fileSystem.diskDevice.getINodeTable().newView().at(fd);
+
+        // Assert
+        assertTrue(view.fileNameEquals("viewed.txt".getBytes()));
+        assertFalse(view.fileNameEquals("viewed.tx".getBytes()), "A prefix is not a match");
+        assertFalse(view.fileNameEquals("viewed.txt2".getBytes()));
+        assertEquals(view.getSize(), "in place".length());
+        assertEquals(view.getBlockPointer(0), fileSystem.diskDevice.readInode(fd).getBlockPointer(0));
+        assertFalse(view.isDirectory());
+        assertTrue(view.at(FileSystem.ROOT_INODE).isDirectory());
+    }
+
+    @Test
+    public void testGroupCommitSharesForces() throws Exception {
+        // Arrange: a disk whose force is slow enough for closes to queue behind it
+        AtomicInteger forces = new AtomicInteger();
+        Disk slowDisk = new Disk() {
+            @Override
+            public void sync() throws IOException {
+                forces.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sync();
+            }
+        };
+        FileSystem fs = new FileSystem(slowDisk);
+        fs.setDurabilityMode(DurabilityMode.GROUP_COMMIT);
+
+        int numWriters = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+        // Act
+        for (int i = 0; i < numWriters; i++) {
+            String fileName = "group" + i + ".txt";
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    int fd = fs.create(fileName);
+                    fs.write(fd, fileName);
+                    fs.close(fd);
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // Assert
+        assertTrue(failures.isEmpty(), "Writers failed: " + failures);
+        assertTrue(forces.get() >= 1 && forces.get() < numWriters,
+                "Concurrent closes should share forces, saw " + forces.get());
+        int fd = fs.open("group3.txt");
+        assertEquals(fs.read(fd), "group3.txt");
+    }
+
 }
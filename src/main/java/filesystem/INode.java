@@ -1,5 +1,6 @@
 package filesystem;
 
+import java.nio.ByteBuffer;
 
 public class INode {
     public final static int NUM_BLOCK_POINTERS = 32;
@@ -14,20 +15,91 @@ public class INode {
             Integer.SIZE +
             (Integer.SIZE * NUM_BLOCK_POINTERS);
 
+    /**
+     * Number of bytes written for an inode: name, size and the block
+     * pointers, 4 bytes each. Each inode occupies a slot of
+     * <code>Disk.INODE_SIZE</code> bytes on disk.
+     */
+    public final static int ENCODED_SIZE = FILE_NAME_SIZE + 4 + (4 * NUM_BLOCK_POINTERS);
+
+    /**
+     * The name is kept as its on-disk bytes so an inode can be refilled
+     * from disk without allocating; the <code>String</code> is only built
+     * when asked for.
+     */
+    private byte[] fileNameBytes;
     private String fileName;
+    private boolean isFileNameDecoded;
     private int fileSize;
     private int[] blockPointers;
 
 
     public INode() {
+        fileNameBytes = new byte[FILE_NAME_SIZE];
+        blockPointers = new int[NUM_BLOCK_POINTERS];
+        clear();
+    }
+
+    /**
+     * Resets this inode to an unused inode so that the instance can be reused
+     */
+    public void clear() {
+        for (int i = 0; i < fileNameBytes.length; i++) {
+            fileNameBytes[i] = 0;
+        }
         fileName = null;
+        isFileNameDecoded = true;
         fileSize = -1;
-        blockPointers = new int[NUM_BLOCK_POINTERS];
         for (int i = 0; i < blockPointers.length; i++) {
             blockPointers[i] = -1;
         }
     }
 
+    /**
+     * Makes this inode a copy of <code>other</code>
+     *
+     * @param other Inode to copy
+     */
+    public void copyFrom(INode other) {
+        System.arraycopy(other.fileNameBytes, 0, fileNameBytes, 0, FILE_NAME_SIZE);
+        fileName = other.fileName;
+        isFileNameDecoded = other.isFileNameDecoded;
+        fileSize = other.fileSize;
+        System.arraycopy(other.blockPointers, 0, blockPointers, 0, NUM_BLOCK_POINTERS);
+    }
+
+    /**
+     * Fills this inode from its on-disk form at <code>offset</code> in
+     * <code>source</code>. The buffer's position is not changed.
+     *
+     * @param source Buffer holding an encoded inode
+     * @param offset Index of the first byte of the encoded inode
+     */
+    public void readFrom(ByteBuffer source, int offset) {
+        source.get(offset, fileNameBytes);
+        fileName = null;
+        isFileNameDecoded = false;
+        fileSize = source.getInt(offset + FILE_NAME_SIZE);
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            blockPointers[i] = source.getInt(offset + FILE_NAME_SIZE + 4 + (4 * i));
+        }
+    }
+
+    /**
+     * Writes the on-disk form of this inode at <code>offset</code> in
+     * <code>target</code>. The buffer's position is not changed.
+     *
+     * @param target Buffer to hold the encoded inode
+     * @param offset Index of the first byte of the encoded inode
+     */
+    public void writeTo(ByteBuffer target, int offset) {
+        target.put(offset, fileNameBytes);
+        target.putInt(offset + FILE_NAME_SIZE, fileSize);
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            target.putInt(offset + FILE_NAME_SIZE + 4 + (4 * i), blockPointers[i]);
+        }
+    }
+
     /**
      * Sets the size of the file in bytes
      *
@@ -72,37 +144,48 @@ public class INode {
             }
         }
         this.fileName = name;
+        this.isFileNameDecoded = true;
+
+        for (int i = 0; i < fileNameBytes.length; i++) {
+            fileNameBytes[i] = 0;
+        }
+        if (name != null) {
+            byte[] contents = name.getBytes();
+            System.arraycopy(contents, 0, fileNameBytes, 0, Math.min(contents.length, FILE_NAME_SIZE));
+        }
     }
 
     /**
      * Returns the name of the file name as a string
-     * @return Returns the name of the file name as a string
+     * @return Returns the name of the file name as a string, or null if
+     *         the inode is unused
      */
     public String getFileName() {
+        if (!isFileNameDecoded) {
+            int length = 0;
+            while (length < FILE_NAME_SIZE && fileNameBytes[length] != 0) {
+                length++;
+            }
+            fileName = length == 0 ? null : new String(fileNameBytes, 0, length);
+            isFileNameDecoded = true;
+        }
         return this.fileName;
     }
 
+    /**
+     * Returns true if the inode is not in use, without decoding the name
+     * @return Returns true if the inode has no file name
+     */
+    public boolean isFree() {
+        return fileNameBytes[0] == 0;
+    }
+
     /**
      * Returns the name of the file name as a byte array
      * @return Returns the name of the file name as a byte array
      */
     public byte[] getFileNameBytes() {
-        byte[] result = null;
-        byte[] contents = null;
-
-        result = new byte[FILE_NAME_SIZE];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = 0;
-        }
-
-        if (fileName != null) {
-            contents = fileName.getBytes();
-            for (int i = 0; i < contents.length; i++) {
-                result[i] = contents[i];
-            }
-        }
-
-        return result;
+        return fileNameBytes.clone();
     }
 
     /**
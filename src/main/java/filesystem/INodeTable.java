@@ -0,0 +1,175 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.BitSet;
+
+
+/**
+ * The inode table held in buffers outside the Java heap, laid out exactly
+ * as the inodes are on disk: <code>Disk.NUM_INODES</code> slots of
+ * <code>Disk.INODE_SIZE</code> bytes, each starting with the encoded inode.
+ * The slots may be split into equal slices kept in separate buffers, one
+ * for the inode slice of each block group.
+ *
+ * Inodes can be copied in and out of <code>INode</code> objects, or read in
+ * place through an <code>INodeView</code> without creating any objects.
+ * The table remembers which slots were written since the last
+ * <code>force</code>, so only those pages are written back.
+ */
+public class INodeTable {
+    public final static int TABLE_SIZE = Disk.INODE_SIZE * Disk.NUM_INODES;
+
+    private final static int SIZE_OFFSET = INode.FILE_NAME_SIZE;
+    private final static int POINTERS_OFFSET = SIZE_OFFSET + 4;
+
+    /**
+     * Dirty slots closer together than this are forced with one request,
+     * since a force writes whole pages anyway
+     */
+    private final static int FORCE_GAP_SLOTS = 4;
+
+    private ByteBuffer[] slices;
+    private int inodesPerSlice;
+    private BitSet dirtySlots;
+
+    /**
+     * @param table Buffer of <code>TABLE_SIZE</code> bytes holding the inodes
+     * @throws IllegalArgumentException If the buffer is not the size of the table
+     */
+    public INodeTable(ByteBuffer table) throws IllegalArgumentException {
+        this(new ByteBuffer[] {table});
+    }
+
+    /**
+     * @param slices Buffers holding equal, consecutive shares of the inodes,
+     *               typically mappings of the inode slices of the block groups
+     * @throws IllegalArgumentException If the inodes cannot be shared equally
+     *                                  or a buffer is not the size of its share
+     */
+    public INodeTable(ByteBuffer[] slices) throws IllegalArgumentException {
+        if (slices.length == 0 || Disk.NUM_INODES % slices.length != 0) {
+            throw new IllegalArgumentException("INodeTable:: INodeTable: " +
+                    Disk.NUM_INODES + " inodes cannot be split into " + slices.length + " slices");
+        }
+        int sliceSize = TABLE_SIZE / slices.length;
+        for (ByteBuffer slice : slices) {
+            if (slice.capacity() != sliceSize) {
+                throw new IllegalArgumentException("INodeTable:: INodeTable: " +
+                        "buffer of size " + slice.capacity() +
+                        " it should be of length " + sliceSize);
+            }
+        }
+        this.slices = slices.clone();
+        this.inodesPerSlice = Disk.NUM_INODES / slices.length;
+        this.dirtySlots = new BitSet(Disk.NUM_INODES);
+    }
+
+    /**
+     * Returns a view for reading inodes in place; the view can be moved
+     * between inodes with <code>INodeView.at</code>
+     */
+    public INodeView newView() {
+        return new INodeView(this);
+    }
+
+    /**
+     * Copies inode <code>whichInode</code> into <code>inode</code>
+     */
+    public void read(int whichInode, INode inode) {
+        inode.readFrom(slice(whichInode), sliceOffset(whichInode));
+    }
+
+    /**
+     * Stores <code>inode</code> in slot <code>whichInode</code>
+     */
+    public void write(int whichInode, INode inode) {
+        inode.writeTo(slice(whichInode), sliceOffset(whichInode));
+        synchronized (dirtySlots) {
+            dirtySlots.set(whichInode);
+        }
+    }
+
+    /**
+     * Reads the whole table into memory in one pass when it is a mapping
+     * of the disk, so later lookups do not fault in pages one at a time
+     */
+    public void load() {
+        for (ByteBuffer slice : slices) {
+            if (slice instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) slice).load();
+            }
+        }
+    }
+
+    /**
+     * Writes the inodes changed since the last force back to the device
+     * when the table is a mapping of the disk, one request per run of
+     * nearby dirty slots of a slice in slot order. For an unmapped table
+     * only the dirty slots are forgotten.
+     */
+    public void force() {
+        synchronized (dirtySlots) {
+            int first = dirtySlots.nextSetBit(0);
+            while (first != -1) {
+                int sliceEnd = (first / inodesPerSlice + 1) * inodesPerSlice;
+                int end = Math.min(dirtySlots.nextClearBit(first), sliceEnd);
+                int next = dirtySlots.nextSetBit(end);
+                while (next != -1 && next < sliceEnd && next - end < FORCE_GAP_SLOTS) {
+                    end = Math.min(dirtySlots.nextClearBit(next), sliceEnd);
+                    next = dirtySlots.nextSetBit(end);
+                }
+                if (slice(first) instanceof MappedByteBuffer) {
+                    ((MappedByteBuffer) slice(first)).force(sliceOffset(first), (end - first) * Disk.INODE_SIZE);
+                }
+                first = next;
+            }
+            dirtySlots.clear();
+        }
+    }
+
+    /**
+     * Returns how many inodes were written since the last force
+     */
+    public int getDirtyCount() {
+        synchronized (dirtySlots) {
+            return dirtySlots.cardinality();
+        }
+    }
+
+    static int slotOffset(int whichInode) {
+        if (whichInode < 0 || whichInode >= Disk.NUM_INODES) {
+            throw new IllegalArgumentException("INodeTable::slotOffset: " +
+                    "inode " + whichInode + " is outside 0.." + (Disk.NUM_INODES - 1));
+        }
+        return whichInode * Disk.INODE_SIZE;
+    }
+
+    private ByteBuffer slice(int whichInode) {
+        return slices[whichInode / inodesPerSlice];
+    }
+
+    /**
+     * Returns the offset of slot <code>whichInode</code> within its slice
+     */
+    private int sliceOffset(int whichInode) {
+        return slotOffset(whichInode) - (whichInode / inodesPerSlice) * inodesPerSlice * Disk.INODE_SIZE;
+    }
+
+    byte nameByte(int whichInode, int index) {
+        return slice(whichInode).get(sliceOffset(whichInode) + index);
+    }
+
+    int size(int whichInode) {
+        return slice(whichInode).getInt(sliceOffset(whichInode) + SIZE_OFFSET);
+    }
+
+    int blockPointer(int whichInode, int whichOne) {
+        if (whichOne >= INode.NUM_BLOCK_POINTERS) {
+            throw new IllegalArgumentException("INodeTable::blockPointer:  " +
+                    "block pointer greater than " +
+                    INode.NUM_BLOCK_POINTERS);
+        }
+        return slice(whichInode).getInt(sliceOffset(whichInode) + POINTERS_OFFSET + (4 * whichOne));
+    }
+}
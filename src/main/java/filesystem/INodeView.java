@@ -0,0 +1,117 @@
+package filesystem;
+
+
+/**
+ * A flyweight over one slot of an <code>INodeTable</code>. The getters
+ * read the name, size and block pointers straight from the table, and
+ * names are compared as bytes, so scanning inodes creates no objects.
+ *
+ * A view is positioned with <code>at</code> and sees later updates to the
+ * slot; it is not safe for use by more than one thread.
+ */
+public class INodeView {
+    private INodeTable table;
+    private int whichInode;
+
+    INodeView(INodeTable table) {
+        this.table = table;
+        this.whichInode = 0;
+    }
+
+    /**
+     * Moves the view to inode <code>whichInode</code>
+     *
+     * @param whichInode The inode to view
+     * @return Returns this view
+     */
+    public INodeView at(int whichInode) {
+        INodeTable.slotOffset(whichInode);
+        this.whichInode = whichInode;
+        return this;
+    }
+
+    public int getINodeNumber() {
+        return whichInode;
+    }
+
+    /**
+     * Returns true if the inode has no file name
+     */
+    public boolean isFree() {
+        return table.nameByte(whichInode, 0) == 0;
+    }
+
+    public int getSize() {
+        return table.size(whichInode);
+    }
+
+    public int getBlockPointer(int whichOne) throws IllegalArgumentException {
+        return table.blockPointer(whichInode, whichOne);
+    }
+
+    /**
+     * Returns the length of the stored name in bytes, not counting the
+     * zero padding
+     */
+    public int getFileNameLength() {
+        int length = 0;
+        while (length < INode.FILE_NAME_SIZE && table.nameByte(whichInode, length) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Returns true if the inode is a directory, whose name ends in "/"
+     */
+    public boolean isDirectory() {
+        int length = getFileNameLength();
+        return length > 0 && table.nameByte(whichInode, length - 1) == '/';
+    }
+
+    /**
+     * Compares the stored name with <code>name</code> byte by byte
+     *
+     * @param name Encoded name to compare with
+     * @return Returns true if the stored name is exactly <code>name</code>
+     */
+    public boolean fileNameEquals(byte[] name) {
+        return fileNameEquals(name, false);
+    }
+
+    /**
+     * Compares the stored name with <code>name</code> byte by byte,
+     * optionally accepting the directory form <code>name + "/"</code>
+     *
+     * @param name Encoded name to compare with
+     * @param allowDirectory If true a directory called <code>name</code> also matches
+     * @return Returns true if the stored name matches
+     */
+    public boolean fileNameEquals(byte[] name, boolean allowDirectory) {
+        if (name.length == 0 || name.length > INode.FILE_NAME_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (table.nameByte(whichInode, i) != name[i]) {
+                return false;
+            }
+        }
+        if (name.length == INode.FILE_NAME_SIZE) {
+            return true;
+        }
+
+        byte next = table.nameByte(whichInode, name.length);
+        if (next == 0) {
+            return true;
+        }
+        return allowDirectory && next == '/'
+                && (name.length + 1 == INode.FILE_NAME_SIZE || table.nameByte(whichInode, name.length + 1) == 0);
+    }
+
+    /**
+     * Copies the viewed inode into <code>inode</code>
+     */
+    public void copyTo(INode inode) {
+        table.read(whichInode, inode);
+    }
+}
@@ -0,0 +1,471 @@
+package filesystem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Command line load generator for <code>FileSystem</code>.
+ *
+ * Runs a configurable mix of create, open, read, write and delete
+ * operations from several threads against a local disk file, or against a
+ * <code>MemoryDisk</code> when the disk is <code>memory</code>, picking files
+ * with Zipfian popularity and write sizes from a size distribution. It
+ * prints throughput and latency percentiles per operation, and can record
+ * the operations it issued to a trace file and replay that trace later.
+ *
+ * <pre>
+ * java filesystem.LoadTool [--disk RawDevice.dsk | memory] [--threads 4] [--ops 100000]
+ *      [--files 500] [--preload 250] [--zipf 0.99] [--seed 1]
+ *      [--mix create=10,open=10,read=50,write=20,delete=10]
+ *      [--size fixed:2048 | uniform:MIN:MAX | exponential:MEAN]
+ *      [--record trace.txt | --replay trace.txt]
+ * </pre>
+ */
+public class LoadTool {
+    public final static int MAX_FILE_SIZE = INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE;
+    public final static String MEMORY_DISK = "memory";
+
+    /**
+     * The operations the tool issues. Every operation on a file runs
+     * open-to-close, so read is open + read + close.
+     */
+    public enum Operation {
+        CREATE, OPEN, READ, WRITE, DELETE
+    }
+
+    private String diskFileName = Disk.RAW_DISK_NAME;
+    private int numThreads = 4;
+    private long numOps = 100000;
+    private int numFiles = 500;
+    private int preload = -1;
+    private double zipfExponent = 0.99;
+    private long seed = 1;
+    private int[] mix = {10, 10, 50, 20, 10};
+    private String sizeDistribution = "uniform:1:" + MAX_FILE_SIZE;
+    private String recordFileName;
+    private String replayFileName;
+
+    private FileSystem fileSystem;
+    private Object[] fileLocks;
+    private byte[] payload;
+    private BufferedWriter trace;
+
+    public static void main(String[] args) {
+        try {
+            LoadTool tool = new LoadTool();
+            tool.parseArguments(args);
+            tool.run(System.out);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException e) {
+            System.err.println(e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the options described in the class comment
+     *
+     * @param args Command line arguments
+     * @throws IllegalArgumentException If an option is unknown or malformed
+     */
+    public void parseArguments(String[] args) throws IllegalArgumentException {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("LoadTool: " + option + " needs a value");
+            }
+            String value = args[++i];
+
+            switch (option) {
+                case "--disk": diskFileName = value; break;
+                case "--threads": numThreads = Integer.parseInt(value); break;
+                case "--ops": numOps = Long.parseLong(value); break;
+                case "--files": numFiles = Integer.parseInt(value); break;
+                case "--preload": preload = Integer.parseInt(value); break;
+                case "--zipf": zipfExponent = Double.parseDouble(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--mix": mix = parseMix(value); break;
+                case "--size": sizeDistribution = value; parseSize(value, new Random(0)); break;
+                case "--record": recordFileName = value; break;
+                case "--replay": replayFileName = value; break;
+                default:
+                    throw new IllegalArgumentException("LoadTool: unknown option " + option);
+            }
+        }
+        if (numThreads <= 0 || numFiles <= 0) {
+            throw new IllegalArgumentException("LoadTool: threads and files must be positive");
+        }
+        if (numOps < 0) {
+            throw new IllegalArgumentException("LoadTool: ops must not be negative");
+        }
+        if (recordFileName != null && replayFileName != null) {
+            throw new IllegalArgumentException("LoadTool: --record and --replay cannot be used together");
+        }
+        if (preload < 0) {
+            preload = numFiles / 2;
+        }
+    }
+
+    /**
+     * Formats the disk, preloads files, then either generates the workload
+     * or replays a trace, and prints the results
+     *
+     * @param out Where the report is printed
+     * @throws IOException If the disk or a trace file cannot be used, or a
+     *                     worker stopped early; the report is printed first
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public void run(PrintStream out) throws IOException, InterruptedException {
+        fileSystem = new FileSystem(MEMORY_DISK.equals(diskFileName) ? new MemoryDisk(true)
+                                                                     : new Disk(diskFileName));
+        fileLocks = new Object[numFiles];
+        for (int i = 0; i < numFiles; i++) {
+            fileLocks[i] = new Object();
+        }
+        payload = new byte[MAX_FILE_SIZE];
+        new Random(seed).nextBytes(payload);
+
+        Random preloadRandom = new Random(seed);
+        for (int file = 0; file < Math.min(preload, numFiles); file++) {
+            int fd = fileSystem.create(fileName(file));
+            fileSystem.write(fd, ByteBuffer.wrap(payload, 0, parseSize(sizeDistribution, preloadRandom)));
+            fileSystem.close(fd);
+        }
+
+        if (recordFileName != null) {
+            trace = new BufferedWriter(new FileWriter(recordFileName));
+        }
+
+        List<Worker> workers = new ArrayList<>();
+        if (replayFileName != null) {
+            List<List<String>> perThread = readTrace();
+            for (int i = 0; i < numThreads; i++) {
+                workers.add(new Worker(i, perThread.get(i)));
+            }
+        } else {
+            AtomicLong remaining = new AtomicLong(numOps);
+            ZipfianGenerator popularity = new ZipfianGenerator(numFiles, zipfExponent);
+            for (int i = 0; i < numThreads; i++) {
+                workers.add(new Worker(i, remaining, popularity));
+            }
+        }
+
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (trace != null) {
+            trace.close();
+        }
+        fileSystem.sync();
+        report(out, workers, elapsed);
+
+        for (Worker worker : workers) {
+            if (worker.error != null) {
+                throw new IOException("LoadTool::run: " + worker.getName() + " stopped early: " +
+                        worker.error, worker.error);
+            }
+        }
+    }
+
+    /**
+     * Replays split the trace by file so that each file's operations stay
+     * in their recorded order on one thread
+     */
+    private List<List<String>> readTrace() throws IOException {
+        List<List<String>> perThread = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            perThread.add(new ArrayList<>());
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(replayFileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int file = checkTraceLine(line);
+                perThread.get(file % numThreads).add(line);
+            }
+        }
+        return perThread;
+    }
+
+    /**
+     * Checks that a trace line is an operation, a file of this run and a
+     * size, so a bad trace fails before any worker starts
+     *
+     * @return Returns the file the line names
+     * @throws IOException If the line is malformed
+     */
+    private int checkTraceLine(String line) throws IOException {
+        String[] fields = line.split("\\s+");
+        int file;
+        int size;
+        try {
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("expected OP FILE SIZE");
+            }
+            Operation.valueOf(fields[0]);
+            file = Integer.parseInt(fields[1]);
+            size = Integer.parseInt(fields[2]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("LoadTool::readTrace: malformed line \"" + line + "\": " + e.getMessage());
+        }
+        if (file < 0 || file >= numFiles) {
+            throw new IOException("LoadTool::readTrace: file " + file +
+                    " is outside the " + numFiles + " files of this run, use --files");
+        }
+        if (size < 0 || size > MAX_FILE_SIZE) {
+            throw new IOException("LoadTool::readTrace: size " + size + " is outside 0.." + MAX_FILE_SIZE);
+        }
+        return file;
+    }
+
+    private class Worker extends Thread {
+        private Random random;
+        private AtomicLong remaining;
+        private ZipfianGenerator popularity;
+        private List<String> replay;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(MAX_FILE_SIZE);
+
+        LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+        long[] failures = new long[Operation.values().length];
+
+        /**
+         * What stopped the worker before it finished its operations, or null
+         */
+        volatile Exception error;
+
+        Worker(int id, AtomicLong remaining, ZipfianGenerator popularity) {
+            super("LoadTool-" + id);
+            this.random = new Random(seed + id + 1);
+            this.remaining = remaining;
+            this.popularity = popularity;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        Worker(int id, List<String> replay) {
+            this(id, null, null);
+            this.replay = replay;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (replay != null) {
+                    for (String line : replay) {
+                        String[] fields = line.split("\\s+");
+                        execute(Operation.valueOf(fields[0]), Integer.parseInt(fields[1]),
+                                Integer.parseInt(fields[2]));
+                    }
+                } else {
+                    while (remaining.getAndDecrement() > 0) {
+                        execute(nextOperation(), popularity.next(random), parseSize(sizeDistribution, random));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+        }
+
+        private Operation nextOperation() {
+            int total = 0;
+            for (int weight : mix) {
+                total += weight;
+            }
+            int pick = random.nextInt(total);
+            for (Operation operation : Operation.values()) {
+                pick -= mix[operation.ordinal()];
+                if (pick < 0) {
+                    return operation;
+                }
+            }
+            return Operation.READ;
+        }
+
+        /**
+         * Runs one operation and records its latency. Operations that fail
+         * because the file does or does not exist are counted as failures,
+         * since a random mix issues some of them by design.
+         */
+        private void execute(Operation operation, int file, int size) throws IOException {
+            String name = fileName(file);
+            boolean isSuccess = true;
+
+            long start;
+            synchronized (fileLocks[file]) {
+                // Recorded under the file's lock so each file's operations are traced in execution order
+                if (trace != null) {
+                    synchronized (trace) {
+                        trace.write(operation + " " + file + " " + size);
+                        trace.newLine();
+                    }
+                }
+
+                start = System.nanoTime();
+                try {
+                    int fd;
+                    switch (operation) {
+                        case CREATE:
+                            fileSystem.close(fileSystem.create(name));
+                            break;
+                        case OPEN:
+                            fd = fileSystem.open(name);
+                            isSuccess = fd != -1;
+                            if (isSuccess) {
+                                fileSystem.close(fd);
+                            }
+                            break;
+                        case READ:
+                            fd = fileSystem.open(name);
+                            isSuccess = fd != -1;
+                            if (isSuccess) {
+                                try {
+                                    readBuffer.clear();
+                                    fileSystem.read(fd, readBuffer);
+                                } finally {
+                                    fileSystem.close(fd);
+                                }
+                            }
+                            break;
+                        case WRITE:
+                            fd = fileSystem.open(name);
+                            isSuccess = fd != -1;
+                            if (isSuccess) {
+                                try {
+                                    fileSystem.write(fd, ByteBuffer.wrap(payload, 0, size));
+                                } finally {
+                                    fileSystem.close(fd);
+                                }
+                            }
+                            break;
+                        case DELETE:
+                            isSuccess = fileSystem.open(name) != -1;
+                            if (isSuccess) {
+                                fileSystem.delete(name);
+                            }
+                            break;
+                    }
+                } catch (IOException e) {
+                    isSuccess = false;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            if (isSuccess) {
+                latencies[operation.ordinal()].record(elapsed);
+            } else {
+                failures[operation.ordinal()]++;
+            }
+        }
+    }
+
+    private void report(PrintStream out, List<Worker> workers, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long totalOps = 0;
+
+        out.println(String.format(Locale.ROOT, "%-7s %10s %8s %11s %9s %9s %9s %9s %9s",
+                "op", "count", "failed", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram merged = new LatencyHistogram();
+            long failed = 0;
+            for (Worker worker : workers) {
+                merged.merge(worker.latencies[operation.ordinal()]);
+                failed += worker.failures[operation.ordinal()];
+            }
+            totalOps += merged.getCount() + failed;
+
+            out.println(String.format(Locale.ROOT, "%-7s %10d %8d %11.0f %9.1f %9.1f %9.1f %9.1f %9.1f",
+                    operation, merged.getCount(), failed, merged.getCount() / seconds,
+                    merged.getPercentileNanos(50) / 1e3, merged.getPercentileNanos(90) / 1e3,
+                    merged.getPercentileNanos(99) / 1e3, merged.getPercentileNanos(99.9) / 1e3,
+                    merged.getMaxNanos() / 1e3));
+        }
+        out.println(String.format(Locale.ROOT, "total   %10d ops in %.2f s, %.0f ops/s with %d threads",
+                totalOps, seconds, totalOps / seconds, numThreads));
+        for (Worker worker : workers) {
+            if (worker.error != null) {
+                out.println(worker.getName() + " stopped early: " + worker.error);
+            }
+        }
+    }
+
+    private static String fileName(int file) {
+        return "load" + file;
+    }
+
+    private static int[] parseMix(String value) throws IllegalArgumentException {
+        int[] result = new int[Operation.values().length];
+        int total = 0;
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("LoadTool: mix entry " + part + " is not op=weight");
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("LoadTool: mix weight " + part + " is negative");
+            }
+            result[Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = weight;
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("LoadTool: mix " + value + " has no operations");
+        }
+        return result;
+    }
+
+    /**
+     * Draws a file size from a distribution written as
+     * <code>fixed:N</code>, <code>uniform:MIN:MAX</code> or
+     * <code>exponential:MEAN</code>, capped at the largest file size
+     */
+    private static int parseSize(String distribution, Random random) throws IllegalArgumentException {
+        String[] fields = distribution.split(":");
+        int size;
+        try {
+            switch (fields[0]) {
+                case "fixed":
+                    size = Integer.parseInt(fields[1]);
+                    break;
+                case "uniform":
+                    int min = Integer.parseInt(fields[1]);
+                    int max = Integer.parseInt(fields[2]);
+                    size = min + random.nextInt(Math.max(max - min + 1, 1));
+                    break;
+                case "exponential":
+                    double mean = Double.parseDouble(fields[1]);
+                    size = (int) Math.round(-mean * Math.log(1 - random.nextDouble()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("LoadTool: unknown size distribution " + distribution);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("LoadTool: malformed size distribution " + distribution);
+        }
+        return Math.max(0, Math.min(size, MAX_FILE_SIZE));
+    }
+}
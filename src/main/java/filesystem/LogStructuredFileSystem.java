@@ -0,0 +1,764 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * A file system that treats the data blocks of a <code>BlockDevice</code>
+ * as a log. Nothing is updated in place: each write appends the file's new
+ * data blocks and then its new inode to the current segment, a run of
+ * <code>SEGMENT_BLOCKS</code> blocks that is written to the device in one
+ * request once it fills. An inode map kept in memory gives the block
+ * holding the latest version of every inode, and is written with the log
+ * position to the checkpoint segment on <code>sync</code>. Checkpoints
+ * alternate between two regions of that segment and carry a sequence
+ * number and a checksum, so a checkpoint torn by a crash leaves the one
+ * before it intact. <code>mount</code> rebuilds the file system from the
+ * newest checkpoint that is whole; changes made after it are lost.
+ *
+ * Rewrites leave dead blocks behind in older segments. A background
+ * cleaner picks the segments that are cheapest to clean, appends their
+ * live blocks to the log and returns the segments for reuse; writes that
+ * find the log full clean in the foreground. A segment emptied since the
+ * last checkpoint may still hold blocks the checkpoint refers to, so it
+ * is only reused once the next checkpoint has been written.
+ *
+ * File names form a single flat namespace, and a file descriptor is the
+ * number of the file's inode, as in <code>FileSystem</code>.
+ */
+public class LogStructuredFileSystem {
+    public final static int SEGMENT_BLOCKS = 64;
+    public final static int NUM_SEGMENTS = Disk.NUM_BLOCKS / SEGMENT_BLOCKS;
+    public final static int CHECKPOINT_SEGMENT = 0;
+    public final static int CLEAN_LOW_WATER = 8;
+    public final static int CLEAN_HIGH_WATER = 16;
+    public final static long CLEANER_INTERVAL_MILLIS = 50;
+
+    /**
+     * Segments kept back from writers so the cleaner always has room to
+     * move live blocks
+     */
+    private final static int RESERVED_SEGMENTS = 1;
+
+    /**
+     * Index recorded in the segment summary for a block holding an inode
+     */
+    private final static int INODE_BLOCK = -1;
+    private final static int CHECKPOINT_MAGIC = 0x4C465331;
+    private final static int CHECKPOINT_BLOCKS = 1 + (Disk.NUM_INODES * 4 + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+    private final static int CHECKPOINT_REGIONS = 2;
+
+    /**
+     * A checkpoint starts with the magic number and a checksum of
+     * everything after it, then its sequence number and the log position.
+     * The inode map fills the blocks after the first.
+     */
+    private final static int CHECKSUM_OFFSET = 4;
+    private final static int SEQUENCE_OFFSET = 8;
+    private final static int SEGMENT_OFFSET = 16;
+    private final static int SEGMENT_USED_OFFSET = 20;
+
+    private BlockDevice diskDevice;
+
+    /**
+     * The latest version of every inode, null for unused inodes, and the
+     * block in the log holding it, -1 for unused inodes
+     */
+    private INode[] inodes;
+    private int[] inodeMap;
+    private Map<String, Integer> fileNames;
+    private BitSet openFiles;
+
+    /**
+     * Segment summary: for every block, the inode it belongs to and its
+     * index in that inode, or <code>INODE_BLOCK</code> if it holds the
+     * inode itself. A block is live while the inode still points at it.
+     */
+    private int[] blockOwner;
+    private int[] blockIndex;
+    private int[] liveBlocks;
+    private BitSet cleanSegments;
+    private BitSet cleanerOwners;
+
+    /**
+     * Segments left without live blocks since the last checkpoint, which
+     * become clean when the next checkpoint is written
+     */
+    private BitSet freedSegments;
+
+    /**
+     * The segment being filled, how many of its blocks are used and how
+     * many of those have reached the device
+     */
+    private int currentSegment;
+    private int segmentUsed;
+    private int segmentWritten;
+    private ByteBuffer segmentBuffer;
+    private ByteBuffer cleanerBuffer;
+    private ByteBuffer blockBuffer;
+    private int[] segmentBlocks;
+    private int[] oldBlocks;
+
+    /**
+     * Sequence number of the latest checkpoint, which was written to
+     * region <code>checkpointSequence % CHECKPOINT_REGIONS</code>
+     */
+    private long checkpointSequence;
+
+    private ScheduledExecutorService cleanerThread;
+
+    /**
+     * Formats <code>disk</code> and starts an empty log on it
+     *
+     * @param disk - device holding the log
+     * @throws IOException If the disk cannot be formatted
+     */
+    public LogStructuredFileSystem(BlockDevice disk) throws IOException {
+        this(disk, true);
+    }
+
+    /**
+     * Rebuilds the file system from the last checkpoint on <code>disk</code>,
+     * which must already be open, for example with <code>Disk.open</code>
+     *
+     * @param disk - device holding a log written by this class
+     * @return Returns the file system, with no files open
+     * @throws IOException If the device holds no checkpoint or cannot be read
+     */
+    public static LogStructuredFileSystem mount(BlockDevice disk) throws IOException {
+        return new LogStructuredFileSystem(disk, false);
+    }
+
+    private LogStructuredFileSystem(BlockDevice disk, boolean isFormatting) throws IOException {
+        diskDevice = disk;
+
+        inodes = new INode[Disk.NUM_INODES];
+        inodeMap = new int[Disk.NUM_INODES];
+        Arrays.fill(inodeMap, -1);
+        fileNames = new HashMap<>();
+        openFiles = new BitSet(Disk.NUM_INODES);
+
+        blockOwner = new int[Disk.NUM_BLOCKS];
+        blockIndex = new int[Disk.NUM_BLOCKS];
+        liveBlocks = new int[NUM_SEGMENTS];
+        cleanSegments = new BitSet(NUM_SEGMENTS);
+        cleanerOwners = new BitSet(Disk.NUM_INODES);
+        freedSegments = new BitSet(NUM_SEGMENTS);
+
+        segmentBuffer = ByteBuffer.allocateDirect(SEGMENT_BLOCKS * Disk.BLOCK_SIZE);
+        cleanerBuffer = ByteBuffer.allocateDirect(SEGMENT_BLOCKS * Disk.BLOCK_SIZE);
+        blockBuffer = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE);
+        segmentBlocks = new int[SEGMENT_BLOCKS];
+        oldBlocks = new int[INode.NUM_BLOCK_POINTERS];
+
+        if (isFormatting) {
+            diskDevice.format();
+            cleanSegments.set(0, NUM_SEGMENTS);
+            cleanSegments.clear(CHECKPOINT_SEGMENT);
+            startSegment();
+            checkpoint();
+        } else {
+            recover();
+        }
+
+        cleanerThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LogStructuredFileSystem-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleanerThread.scheduleWithFixedDelay(this::backgroundClean, CLEANER_INTERVAL_MILLIS,
+                CLEANER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * Create a file with the name <code>fileName</code>
+     *
+     * @return Returns the file descriptor of the new, open file
+     * @throws IOException If the file already exists or no inode is free
+     */
+    public synchronized int create(String fileName) throws IOException {
+        if (fileNames.containsKey(fileName)) {
+            throw new IOException("LogStructuredFileSystem::create: " + fileName + " already exists");
+        }
+        int i = 0;
+        while (i < Disk.NUM_INODES && inodes[i] != null) {
+            i++;
+        }
+        if (i == Disk.NUM_INODES) {
+            throw new IOException("LogStructuredFileSystem::create: Unable to create file");
+        }
+        reserve(1, "create");
+
+        INode inode = new INode();
+        inode.setFileName(fileName);
+        inode.setSize(0);
+        inodes[i] = inode;
+        appendINode(i);
+        fileNames.put(fileName, i);
+        openFiles.set(i);
+
+        return i;
+    }
+
+    /***
+     * Makes the file available for reading/writing
+     *
+     * @return Returns the file descriptor, or -1 if there is no such file
+     */
+    public synchronized int open(String fileName) {
+        Integer i = fileNames.get(fileName);
+        if (i == null) {
+            return -1;
+        }
+        openFiles.set(i);
+        return i;
+    }
+
+    /***
+     * Closes the file. Its inode is already in the log, so nothing is written.
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public synchronized void close(int fileDescriptor) throws IOException {
+        checkOpen(fileDescriptor, "close");
+        openFiles.clear(fileDescriptor);
+    }
+
+    /***
+     * Deletes the file, leaving its blocks dead in the log
+     *
+     * @param fileName - name of the file to delete
+     */
+    public synchronized void delete(String fileName) {
+        Integer i = fileNames.remove(fileName);
+        if (i == null) {
+            return;
+        }
+        INode inode = inodes[i];
+        for (int j = 0; j < INode.NUM_BLOCK_POINTERS; j++) {
+            if (inode.getBlockPointer(j) != -1) {
+                killBlock(inode.getBlockPointer(j));
+            }
+        }
+        killBlock(inodeMap[i]);
+        inodes[i] = null;
+        inodeMap[i] = -1;
+        openFiles.clear(i);
+    }
+
+    public synchronized List<String> list() {
+        return new ArrayList<>(fileNames.keySet());
+    }
+
+    public String read(int fileDescriptor) throws IOException {
+        byte[] fileData;
+        synchronized (this) {
+            checkOpen(fileDescriptor, "read");
+            fileData = new byte[inodes[fileDescriptor].getSize()];
+            read(fileDescriptor, ByteBuffer.wrap(fileData));
+        }
+        return new String(fileData);
+    }
+
+    /***
+     * Reads the file into a caller supplied buffer. Blocks still in the
+     * unwritten part of the current segment are copied from memory.
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - buffer receiving the file at its position; if it has
+     *               less room than the file, only the start of the file is read
+     * @return Returns the number of bytes read
+     * @throws IOException If the file is not open or a block cannot be read
+     */
+    public synchronized int read(int fileDescriptor, ByteBuffer data) throws IOException {
+        checkOpen(fileDescriptor, "read");
+        INode inode = inodes[fileDescriptor];
+        int bytesToRead = Math.min(inode.getSize(), data.remaining());
+
+        for (int j = 0; j * Disk.BLOCK_SIZE < bytesToRead; j++) {
+            int length = Math.min(Disk.BLOCK_SIZE, bytesToRead - j * Disk.BLOCK_SIZE);
+            blockBuffer.clear();
+            readBlock(inode.getBlockPointer(j), blockBuffer);
+            blockBuffer.flip().limit(length);
+            data.put(blockBuffer);
+        }
+        return bytesToRead;
+    }
+
+    public void write(int fileDescriptor, String data) throws IOException {
+        write(fileDescriptor, ByteBuffer.wrap(data.getBytes()));
+    }
+
+    /***
+     * Replaces the contents of the file with the remaining bytes of
+     * <code>data</code> by appending the new blocks and inode to the log
+     *
+     * @param fileDescriptor - descriptor of an open file
+     * @param data - new contents of the file; its position is advanced to its limit
+     * @throws IOException If the file is not open or the log is full even
+     *                     after cleaning
+     */
+    public synchronized void write(int fileDescriptor, ByteBuffer data) throws IOException {
+        checkOpen(fileDescriptor, "write");
+        int dataSize = data.remaining();
+        int blocksNeeded = (dataSize + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        if (blocksNeeded > INode.NUM_BLOCK_POINTERS) {
+            throw new IOException("LogStructuredFileSystem::write: File exceeds " +
+                    INode.NUM_BLOCK_POINTERS + " blocks");
+        }
+        reserve(blocksNeeded + 1, "write");
+
+        INode inode = inodes[fileDescriptor];
+        for (int j = 0; j < INode.NUM_BLOCK_POINTERS; j++) {
+            oldBlocks[j] = inode.getBlockPointer(j);
+
+            int newBlock = -1;
+            if (j < blocksNeeded) {
+                blockBuffer.clear();
+                int limit = data.limit();
+                data.limit(Math.min(limit, data.position() + Disk.BLOCK_SIZE));
+                blockBuffer.put(data);
+                data.limit(limit);
+                while (blockBuffer.hasRemaining()) {
+                    blockBuffer.put((byte) 0);
+                }
+                blockBuffer.flip();
+                newBlock = appendBlock(fileDescriptor, j, blockBuffer);
+            }
+            inode.setBlockPointer(j, newBlock);
+        }
+        inode.setSize(dataSize);
+        appendINode(fileDescriptor);
+
+        // The old blocks die only once the inode replacing them is in the log
+        for (int oldBlock : oldBlocks) {
+            if (oldBlock != -1) {
+                killBlock(oldBlock);
+            }
+        }
+    }
+
+    /***
+     * Writes a checkpoint: the rest of the current segment, then the inode
+     * map and log position, each forced to stable storage before the next
+     *
+     * @throws IOException If the device cannot be written or forced
+     */
+    public synchronized void sync() throws IOException {
+        checkpoint();
+    }
+
+    /***
+     * Stops the cleaner and writes a final checkpoint
+     *
+     * @throws IOException If the checkpoint cannot be written
+     */
+    public void close() throws IOException {
+        cleanerThread.shutdownNow();
+        sync();
+    }
+
+    /***
+     * Cleans segments, cheapest first, until
+     * <code>CLEAN_HIGH_WATER</code> segments are clean or no segment can be
+     * cleaned without more room than is free
+     *
+     * @return Returns the number of segments cleaned
+     * @throws IOException If a segment cannot be read or the log written
+     */
+    public synchronized int clean() throws IOException {
+        int cleaned = 0;
+        while (cleanSegments.cardinality() + freedSegments.cardinality() < CLEAN_HIGH_WATER
+                && cleanOneSegment()) {
+            cleaned++;
+        }
+        if (!freedSegments.isEmpty()) {
+            checkpoint();
+        }
+        return cleaned;
+    }
+
+    public synchronized int getCleanSegmentCount() {
+        return cleanSegments.cardinality();
+    }
+
+    public synchronized int getLiveBlocks(int segment) {
+        return liveBlocks[segment];
+    }
+
+    /**
+     * Runs on the cleaner thread, taking the lock for one segment at a
+     * time so that writers are not held up for a whole pass. The segments
+     * it empties are released by one checkpoint at the end.
+     */
+    private void backgroundClean() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (cleanSegments.cardinality() >= CLEAN_LOW_WATER) {
+                        return;
+                    }
+                    if (cleanSegments.cardinality() + freedSegments.cardinality() < CLEAN_LOW_WATER
+                            && cleanOneSegment()) {
+                        continue;
+                    }
+                    if (!freedSegments.isEmpty()) {
+                        checkpoint();
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("LogStructuredFileSystem::backgroundClean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the live blocks of the segment that is cheapest to clean to the
+     * head of the log. Moving a block also rewrites its inode, so cleaning
+     * costs the segment's live data blocks plus one inode for each file
+     * they belong to. A segment is worth cleaning whenever that is less than
+     * a segment, and the move fits in the free blocks, reserve included.
+     *
+     * @return Returns false if there was no segment worth cleaning
+     */
+    private boolean cleanOneSegment() throws IOException {
+        int victim = -1;
+        int victimCost = SEGMENT_BLOCKS;
+        for (int segment = 0; segment < NUM_SEGMENTS; segment++) {
+            if (segment == CHECKPOINT_SEGMENT || segment == currentSegment
+                    || cleanSegments.get(segment) || freedSegments.get(segment)) {
+                continue;
+            }
+            int cost = cleaningCost(segment);
+            if (cost < victimCost) {
+                victim = segment;
+                victimCost = cost;
+            }
+        }
+        if (victim == -1 || victimCost > freeBlocks()) {
+            return false;
+        }
+        if (liveBlocks[victim] == 0) {
+            freedSegments.set(victim);
+            return true;
+        }
+
+        int base = victim * SEGMENT_BLOCKS;
+        for (int i = 0; i < SEGMENT_BLOCKS; i++) {
+            segmentBlocks[i] = base + i;
+        }
+        cleanerBuffer.clear();
+        diskDevice.readDataBlocks(segmentBlocks, SEGMENT_BLOCKS, cleanerBuffer);
+
+        BitSet moved = new BitSet(Disk.NUM_INODES);
+        for (int i = 0; i < SEGMENT_BLOCKS; i++) {
+            int whichBlock = base + i;
+            int owner = blockOwner[whichBlock];
+            int index = blockIndex[whichBlock];
+
+            if (index == INODE_BLOCK) {
+                if (inodeMap[owner] == whichBlock) {
+                    moved.set(owner);
+                }
+            } else if (inodes[owner] != null && inodes[owner].getBlockPointer(index) == whichBlock) {
+                ByteBuffer block = cleanerBuffer.duplicate();
+                block.limit((i + 1) * Disk.BLOCK_SIZE).position(i * Disk.BLOCK_SIZE);
+                inodes[owner].setBlockPointer(index, appendBlock(owner, index, block));
+                killBlock(whichBlock);
+                moved.set(owner);
+            }
+        }
+        for (int owner = moved.nextSetBit(0); owner >= 0; owner = moved.nextSetBit(owner + 1)) {
+            appendINode(owner);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many blocks cleaning <code>segment</code> appends to the
+     * log: its live data blocks and the new inodes of their files
+     */
+    private int cleaningCost(int segment) {
+        if (liveBlocks[segment] == 0) {
+            return 0;
+        }
+        int liveData = 0;
+        int base = segment * SEGMENT_BLOCKS;
+        cleanerOwners.clear();
+        for (int whichBlock = base; whichBlock < base + SEGMENT_BLOCKS; whichBlock++) {
+            int owner = blockOwner[whichBlock];
+            int index = blockIndex[whichBlock];
+            if (index == INODE_BLOCK) {
+                if (inodeMap[owner] == whichBlock) {
+                    cleanerOwners.set(owner);
+                }
+            } else if (inodes[owner] != null && inodes[owner].getBlockPointer(index) == whichBlock) {
+                liveData++;
+                cleanerOwners.set(owner);
+            }
+        }
+        return liveData + cleanerOwners.cardinality();
+    }
+
+    /**
+     * Makes sure <code>numBlocks</code> blocks can be appended without
+     * touching the cleaner's reserve, writing a checkpoint to release freed
+     * segments or cleaning in the foreground if needed
+     */
+    private void reserve(int numBlocks, String operation) throws IOException {
+        while (freeBlocks() - RESERVED_SEGMENTS * SEGMENT_BLOCKS < numBlocks) {
+            if (!freedSegments.isEmpty()) {
+                checkpoint();
+            } else if (!cleanOneSegment()) {
+                throw new IOException("LogStructuredFileSystem::" + operation + ": Insufficient space");
+            }
+        }
+    }
+
+    private int freeBlocks() {
+        return (SEGMENT_BLOCKS - segmentUsed) + cleanSegments.cardinality() * SEGMENT_BLOCKS;
+    }
+
+    /**
+     * Appends one block to the current segment, starting the next segment
+     * first if the current one is full
+     *
+     * @return Returns the block number the data was given
+     */
+    private int appendBlock(int owner, int index, ByteBuffer block) throws IOException {
+        if (segmentUsed == SEGMENT_BLOCKS) {
+            writeSegment();
+            startSegment();
+        }
+
+        int whichBlock = currentSegment * SEGMENT_BLOCKS + segmentUsed;
+        segmentBuffer.clear().position(segmentUsed * Disk.BLOCK_SIZE);
+        segmentBuffer.put(block);
+        markLive(whichBlock, owner, index);
+        segmentUsed++;
+        return whichBlock;
+    }
+
+    /**
+     * Appends the current version of inode <code>whichInode</code> and
+     * points the inode map at it
+     */
+    private void appendINode(int whichInode) throws IOException {
+        blockBuffer.clear();
+        while (blockBuffer.hasRemaining()) {
+            blockBuffer.put((byte) 0);
+        }
+        inodes[whichInode].writeTo(blockBuffer, 0);
+        blockBuffer.clear();
+
+        if (inodeMap[whichInode] != -1) {
+            killBlock(inodeMap[whichInode]);
+        }
+        inodeMap[whichInode] = appendBlock(whichInode, INODE_BLOCK, blockBuffer);
+    }
+
+    /**
+     * Records that <code>whichBlock</code> is no longer live. A segment
+     * left with no live blocks is freed at once, without being read.
+     */
+    private void killBlock(int whichBlock) {
+        int segment = whichBlock / SEGMENT_BLOCKS;
+        liveBlocks[segment]--;
+        if (liveBlocks[segment] == 0 && segment != currentSegment) {
+            freedSegments.set(segment);
+        }
+    }
+
+    /**
+     * Records that <code>whichBlock</code> holds block <code>index</code>
+     * of inode <code>owner</code>, or the inode itself
+     */
+    private void markLive(int whichBlock, int owner, int index) {
+        blockOwner[whichBlock] = owner;
+        blockIndex[whichBlock] = index;
+        liveBlocks[whichBlock / SEGMENT_BLOCKS]++;
+    }
+
+    /**
+     * Writes the rest of the current segment and forces it, then writes
+     * and forces the inode map and log position, so a checkpoint never
+     * refers to blocks that have not reached stable storage. The
+     * checkpoint goes to the region not holding the previous one, which
+     * stays valid until this one is forced. Segments freed since the
+     * previous checkpoint become clean.
+     */
+    private void checkpoint() throws IOException {
+        writeSegment();
+        diskDevice.sync();
+
+        long sequence = checkpointSequence + 1;
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_BLOCKS * Disk.BLOCK_SIZE);
+        checkpoint.putInt(0, CHECKPOINT_MAGIC);
+        checkpoint.putLong(SEQUENCE_OFFSET, sequence);
+        checkpoint.putInt(SEGMENT_OFFSET, currentSegment);
+        checkpoint.putInt(SEGMENT_USED_OFFSET, segmentUsed);
+        checkpoint.position(Disk.BLOCK_SIZE);
+        for (int location : inodeMap) {
+            checkpoint.putInt(location);
+        }
+        checkpoint.putInt(CHECKSUM_OFFSET, checksum(checkpoint));
+        checkpoint.clear();
+        diskDevice.writeDataBlocks(checkpoint, checkpointBlocks((int) (sequence % CHECKPOINT_REGIONS)),
+                CHECKPOINT_BLOCKS);
+        diskDevice.sync();
+        checkpointSequence = sequence;
+
+        cleanSegments.or(freedSegments);
+        freedSegments.clear();
+    }
+
+    /**
+     * Reads the newest checkpoint that is whole and every inode it names,
+     * and rebuilds the segment summary from the inodes' block pointers
+     */
+    private void recover() throws IOException {
+        ByteBuffer checkpoint = null;
+        for (int region = 0; region < CHECKPOINT_REGIONS; region++) {
+            ByteBuffer candidate = ByteBuffer.allocate(CHECKPOINT_BLOCKS * Disk.BLOCK_SIZE);
+            diskDevice.readDataBlocks(checkpointBlocks(region), CHECKPOINT_BLOCKS, candidate);
+            if (isValidCheckpoint(candidate) && (checkpoint == null
+                    || candidate.getLong(SEQUENCE_OFFSET) > checkpoint.getLong(SEQUENCE_OFFSET))) {
+                checkpoint = candidate;
+            }
+        }
+        if (checkpoint == null) {
+            throw new IOException("LogStructuredFileSystem::mount: the device holds no valid checkpoint");
+        }
+        checkpointSequence = checkpoint.getLong(SEQUENCE_OFFSET);
+        currentSegment = checkpoint.getInt(SEGMENT_OFFSET);
+        segmentUsed = checkpoint.getInt(SEGMENT_USED_OFFSET);
+        segmentWritten = segmentUsed;
+        checkpoint.position(Disk.BLOCK_SIZE);
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            inodeMap[i] = checkpoint.getInt();
+        }
+
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            if (inodeMap[i] == -1) {
+                continue;
+            }
+            blockBuffer.clear();
+            diskDevice.readDataBlock(inodeMap[i], blockBuffer);
+            INode inode = new INode();
+            inode.readFrom(blockBuffer, 0);
+            inodes[i] = inode;
+            fileNames.put(inode.getFileName(), i);
+
+            markLive(inodeMap[i], i, INODE_BLOCK);
+            for (int j = 0; j < INode.NUM_BLOCK_POINTERS; j++) {
+                if (inode.getBlockPointer(j) != -1) {
+                    markLive(inode.getBlockPointer(j), i, j);
+                }
+            }
+        }
+
+        for (int segment = 0; segment < NUM_SEGMENTS; segment++) {
+            if (segment != CHECKPOINT_SEGMENT && segment != currentSegment && liveBlocks[segment] == 0) {
+                cleanSegments.set(segment);
+            }
+        }
+    }
+
+    /**
+     * Returns true if <code>checkpoint</code> has the magic number, a
+     * matching checksum and a log position inside the log
+     */
+    private static boolean isValidCheckpoint(ByteBuffer checkpoint) {
+        if (checkpoint.getInt(0) != CHECKPOINT_MAGIC || checkpoint.getInt(CHECKSUM_OFFSET) != checksum(checkpoint)) {
+            return false;
+        }
+        int segment = checkpoint.getInt(SEGMENT_OFFSET);
+        int used = checkpoint.getInt(SEGMENT_USED_OFFSET);
+        return segment > CHECKPOINT_SEGMENT && segment < NUM_SEGMENTS && used >= 0 && used <= SEGMENT_BLOCKS;
+    }
+
+    /**
+     * Returns the CRC-32 of everything in <code>checkpoint</code> after
+     * its checksum
+     */
+    private static int checksum(ByteBuffer checkpoint) {
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.duplicate().clear().position(SEQUENCE_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    private static int[] checkpointBlocks(int region) {
+        int[] checkpointBlocks = new int[CHECKPOINT_BLOCKS];
+        for (int i = 0; i < CHECKPOINT_BLOCKS; i++) {
+            checkpointBlocks[i] = CHECKPOINT_SEGMENT * SEGMENT_BLOCKS + region * CHECKPOINT_BLOCKS + i;
+        }
+        return checkpointBlocks;
+    }
+
+    /**
+     * Writes the used blocks of the current segment that have not reached
+     * the device yet, as a single request
+     */
+    private void writeSegment() throws IOException {
+        int numBlocks = segmentUsed - segmentWritten;
+        if (numBlocks == 0) {
+            return;
+        }
+        int base = currentSegment * SEGMENT_BLOCKS + segmentWritten;
+        for (int i = 0; i < numBlocks; i++) {
+            segmentBlocks[i] = base + i;
+        }
+        ByteBuffer unwritten = segmentBuffer.duplicate();
+        unwritten.limit(segmentUsed * Disk.BLOCK_SIZE).position(segmentWritten * Disk.BLOCK_SIZE);
+        diskDevice.writeDataBlocks(unwritten, segmentBlocks, numBlocks);
+        segmentWritten = segmentUsed;
+    }
+
+    /**
+     * Takes the lowest clean segment as the new head of the log
+     */
+    private void startSegment() throws IOException {
+        int next = cleanSegments.nextSetBit(0);
+        if (next == -1) {
+            throw new IOException("LogStructuredFileSystem::startSegment: no clean segment");
+        }
+        cleanSegments.clear(next);
+        currentSegment = next;
+        segmentUsed = 0;
+        segmentWritten = 0;
+    }
+
+    /**
+     * Reads <code>whichBlock</code>, from memory if it is in the part of
+     * the current segment that has not been written yet
+     */
+    private void readBlock(int whichBlock, ByteBuffer block) throws IOException {
+        int offset = whichBlock - currentSegment * SEGMENT_BLOCKS;
+        if (offset >= segmentWritten && offset < segmentUsed) {
+            ByteBuffer pending = segmentBuffer.duplicate();
+            pending.limit((offset + 1) * Disk.BLOCK_SIZE).position(offset * Disk.BLOCK_SIZE);
+            block.put(pending);
+        } else {
+            diskDevice.readDataBlock(whichBlock, block);
+        }
+    }
+
+    private void checkOpen(int fileDescriptor, String operation) throws IOException {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES
+                || !openFiles.get(fileDescriptor) || inodes[fileDescriptor] == null) {
+            throw new IOException("LogStructuredFileSystem::" + operation + ": Invalid file descriptor");
+        }
+    }
+}
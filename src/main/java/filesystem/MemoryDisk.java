@@ -0,0 +1,148 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A <code>BlockDevice</code> held entirely in memory, laid out exactly as
+ * <code>Disk</code> lays out its raw file: block groups that each hold
+ * their free block list slice, their inodes and then their data blocks.
+ * Nothing survives <code>close</code>, so it
+ * suits tests, scratch volumes and benchmarks that should measure the
+ * file system rather than the device.
+ *
+ * Every access uses absolute positions in the backing buffer, so
+ * concurrent callers never disturb each other's buffer state.
+ */
+public class MemoryDisk implements BlockDevice {
+    public static final long DEVICE_SIZE = Disk.DISK_SIZE;
+
+    private boolean isDirect;
+    private ByteBuffer storage;
+    private INodeTable inodeTable;
+
+    public MemoryDisk() {
+        this(false);
+    }
+
+    /**
+     * @param isDirect If true the device is kept outside the Java heap
+     */
+    public MemoryDisk(boolean isDirect) {
+        this.isDirect = isDirect;
+    }
+
+    public boolean isDirect() {
+        return isDirect;
+    }
+
+    /***
+     * Replaces the contents of the device with an empty free block list,
+     * empty inodes and zeroed data blocks
+     *
+     * @throws IOException Never thrown, declared for <code>BlockDevice</code>
+     */
+    public void format() throws IOException {
+        storage = isDirect ? ByteBuffer.allocateDirect((int) DEVICE_SIZE)
+                           : ByteBuffer.allocate((int) DEVICE_SIZE);
+        ByteBuffer[] inodeSlices = new ByteBuffer[BlockGroups.NUM_GROUPS];
+        for (int group = 0; group < BlockGroups.NUM_GROUPS; group++) {
+            inodeSlices[group] = storage.slice((int) Disk.groupOffset(group) + Disk.GROUP_FREE_LIST_BYTES,
+                                               Disk.GROUP_INODE_BYTES);
+        }
+        inodeTable = new INodeTable(inodeSlices);
+    }
+
+    public INodeTable getINodeTable() {
+        return inodeTable;
+    }
+
+    /***
+     * Does nothing: there is no stable storage behind the device
+     */
+    public void sync() throws IOException {
+    }
+
+    /***
+     * Releases the memory holding the device
+     */
+    public void close() throws IOException {
+        storage = null;
+        inodeTable = null;
+    }
+
+    public void readFreeBlockList(byte[] freeList) throws IOException {
+        for (int group = 0; group < BlockGroups.NUM_GROUPS; group++) {
+            storage.get((int) Disk.groupOffset(group), freeList,
+                        group * Disk.GROUP_FREE_LIST_BYTES, Disk.GROUP_FREE_LIST_BYTES);
+        }
+    }
+
+    public void writeFreeBlockList(byte[] freeBlockList) throws IOException, IllegalArgumentException {
+        if (freeBlockList.length != Disk.BYTES_IN_FREE_SPACE_LIST) {
+            throw new IllegalArgumentException("MemoryDisk::writeFreeBlockList:  " +
+                    "is " + freeBlockList.length +
+                    "bytes long  instead of " +
+                    Disk.BYTES_IN_FREE_SPACE_LIST +
+                    " bytes long");
+        }
+
+        for (int group = 0; group < BlockGroups.NUM_GROUPS; group++) {
+            storage.put((int) Disk.groupOffset(group), freeBlockList,
+                        group * Disk.GROUP_FREE_LIST_BYTES, Disk.GROUP_FREE_LIST_BYTES);
+        }
+    }
+
+    public void writeInode(INode inode, int whichInode) throws IOException {
+        inodeTable.write(whichInode, inode);
+    }
+
+    public void readInode(int whichInode, INode inode) throws IOException {
+        inodeTable.read(whichInode, inode);
+    }
+
+    public void readDataBlock(int whichBlock, ByteBuffer blockData) throws IOException, IllegalArgumentException {
+        int offset = blockOffset("MemoryDisk::readDataBlock", whichBlock);
+
+        Disk.checkRemaining("MemoryDisk::readDataBlock", blockData, 1);
+
+        blockData.put(blockData.position(), storage, offset, Disk.BLOCK_SIZE);
+        blockData.position(blockData.position() + Disk.BLOCK_SIZE);
+    }
+
+    public void writeDataBlock(ByteBuffer blockData, int whichBlock) throws IOException, IllegalArgumentException {
+        int offset = blockOffset("MemoryDisk::writeDataBlock", whichBlock);
+
+        Disk.checkRemaining("MemoryDisk::writeDataBlock", blockData, 1);
+
+        storage.put(offset, blockData, blockData.position(), Disk.BLOCK_SIZE);
+        blockData.position(blockData.position() + Disk.BLOCK_SIZE);
+    }
+
+    /***
+     * Writes each run of consecutive blocks within a group to
+     * <code>target</code> straight from the device's buffer, without
+     * copying it
+     */
+    public void transferDataBlocks(int[] whichBlocks, int numBlocks, WritableByteChannel target)
+            throws IOException {
+        for (int i = 0; i < numBlocks; ) {
+            int offset = blockOffset("MemoryDisk::transferDataBlocks", whichBlocks[i]);
+            int run = Disk.contiguousRun(whichBlocks, i, numBlocks);
+            blockOffset("MemoryDisk::transferDataBlocks", whichBlocks[i] + run - 1);
+
+            ByteBuffer blocks = storage.slice(offset, run * Disk.BLOCK_SIZE);
+            while (blocks.hasRemaining()) {
+                target.write(blocks);
+            }
+            i += run;
+        }
+    }
+
+    private static int blockOffset(String operation, int whichBlock) throws IllegalArgumentException {
+        Disk.checkBlock(operation, whichBlock);
+        return (int) Disk.dataBlockOffset(whichBlock);
+    }
+}
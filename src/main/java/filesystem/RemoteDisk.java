@@ -0,0 +1,485 @@
+package filesystem;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A <code>BlockDevice</code> served by a <code>BlockServer</code>, so
+ * several processes can share one volume.
+ *
+ * Writes are pipelined: they are queued and sent in batches without
+ * waiting for their replies, which are collected by the next read or
+ * <code>sync</code>. A failed write is therefore reported by a later call.
+ * Multi-block reads send every request before reading the first reply.
+ *
+ * The inode table returned by <code>getINodeTable</code> is a local copy,
+ * loaded when the client connects and after <code>format</code>, and
+ * kept up to date with this client's own writes and reads. Inodes written
+ * by other clients are fetched by <code>refreshINodeTable</code>, which
+ * <code>FileSystem</code> calls before resolving a path, and by
+ * <code>sync</code>.
+ *
+ * Clients changing the free block list, inodes or directories take the
+ * server's metadata lock with <code>lockMetadata</code>, which also
+ * fetches the inodes written by the previous holder. The queued writes
+ * are sent and applied before <code>unlockMetadata</code> releases it.
+ */
+public class RemoteDisk implements BlockDevice {
+    /**
+     * Most writes sent before their replies are collected, so the replies
+     * always fit in the socket buffers
+     */
+    public final static int MAX_UNACKNOWLEDGED = 256;
+
+    /**
+     * Inodes requested at a time while loading the inode table
+     */
+    private final static int INODE_BATCH = 64;
+
+    private SocketChannel connection;
+    private ByteBuffer requests;
+    private ByteBuffer replies;
+    private int unacknowledged;
+    private IOException writeFailure;
+    private INodeTable inodeTable;
+
+    /**
+     * The server's inode version the local table reflects, and whether
+     * other clients' inodes were copied in since the last refresh
+     */
+    private long inodeVersion;
+    private boolean isTableChanged;
+
+    private INode scratchINode;
+    private int[] oneBlock;
+
+    /**
+     * Connects to a block server and loads its inode table
+     *
+     * @param address - address of the server, see <code>BlockServer.getAddress</code>
+     * @throws IOException If the server cannot be reached
+     */
+    public RemoteDisk(InetSocketAddress address) throws IOException {
+        connection = SocketChannel.open(address);
+        connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        requests = ByteBuffer.allocateDirect(BlockServer.BUFFER_SIZE);
+        replies = ByteBuffer.allocateDirect(4 + INode.ENCODED_SIZE);
+        inodeTable = new INodeTable(ByteBuffer.allocateDirect(INodeTable.TABLE_SIZE));
+        scratchINode = new INode();
+        oneBlock = new int[1];
+
+        loadINodeTable();
+    }
+
+    /***
+     * Formats the served device
+     *
+     * @throws IOException If the server fails to format it
+     */
+    public synchronized void format() throws IOException {
+        reserve(4);
+        requests.putInt(BlockServer.FORMAT);
+        awaitReplies();
+        readStatus();
+
+        loadINodeTable();
+        reportFailure();
+    }
+
+    public INodeTable getINodeTable() {
+        return inodeTable;
+    }
+
+    /***
+     * Copies the inodes other clients wrote since the last refresh into
+     * the local inode table, with one round trip
+     */
+    public synchronized boolean refreshINodeTable() throws IOException {
+        requestChanges(inodeVersion);
+        awaitReplies();
+        receiveChanges();
+        reportFailure();
+
+        boolean isChanged = isTableChanged;
+        isTableChanged = false;
+        return isChanged;
+    }
+
+    /***
+     * Waits for the server's metadata lock and copies the inodes other
+     * clients wrote into the local inode table, with one round trip
+     *
+     * @throws IOException If a queued write failed or the lock is already held
+     */
+    public synchronized boolean lockMetadata() throws IOException {
+        reserve(4);
+        requests.putInt(BlockServer.LOCK_METADATA);
+        requestChanges(inodeVersion);
+        awaitReplies();
+
+        IOException failure = null;
+        try {
+            readStatus();
+        } catch (RemoteException e) {
+            failure = e;
+        }
+        receiveChanges();
+        if (failure != null) {
+            throw failure;
+        }
+        reportFailure();
+
+        boolean isChanged = isTableChanged;
+        isTableChanged = false;
+        return isChanged;
+    }
+
+    /***
+     * Sends the queued writes followed by the release of the server's
+     * metadata lock, and waits until the server has applied them all
+     *
+     * @throws IOException If a queued write failed or the lock is not held
+     */
+    public synchronized void unlockMetadata() throws IOException {
+        reserve(4);
+        requests.putInt(BlockServer.UNLOCK_METADATA);
+        awaitReplies();
+        readStatus();
+        reportFailure();
+    }
+
+    /***
+     * Sends the queued writes, forces them to stable storage on the server
+     * and fetches the inodes other clients wrote
+     *
+     * @throws IOException If a queued write or the sync failed
+     */
+    public synchronized void sync() throws IOException {
+        reserve(4);
+        requests.putInt(BlockServer.SYNC);
+        requestChanges(inodeVersion);
+        awaitReplies();
+        readStatus();
+        receiveChanges();
+        reportFailure();
+    }
+
+    /***
+     * Sends the queued writes and disconnects. The served device stays open.
+     *
+     * @throws IOException If a queued write failed
+     */
+    public synchronized void close() throws IOException {
+        if (connection != null) {
+            try {
+                awaitReplies();
+                reportFailure();
+            } finally {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    public synchronized void readFreeBlockList(byte[] freeList) throws IOException {
+        reserve(4);
+        requests.putInt(BlockServer.READ_FREE_LIST);
+        awaitReplies();
+        readStatus();
+        receive(ByteBuffer.wrap(freeList, 0, Disk.BYTES_IN_FREE_SPACE_LIST));
+        reportFailure();
+    }
+
+    public synchronized void writeFreeBlockList(byte[] freeBlockList) throws IOException, IllegalArgumentException {
+        if (freeBlockList.length != Disk.BYTES_IN_FREE_SPACE_LIST) {
+            throw new IllegalArgumentException("RemoteDisk::writeFreeBlockList:  " +
+                    "is " + freeBlockList.length +
+                    "bytes long  instead of " +
+                    Disk.BYTES_IN_FREE_SPACE_LIST +
+                    " bytes long");
+        }
+
+        reserve(4 + Disk.BYTES_IN_FREE_SPACE_LIST);
+        requests.putInt(BlockServer.WRITE_FREE_LIST).put(freeBlockList);
+        replyLater();
+    }
+
+    public synchronized void writeInode(INode inode, int whichInode) throws IOException {
+        inodeTable.write(whichInode, inode);
+
+        reserve(8 + INode.ENCODED_SIZE);
+        requests.putInt(BlockServer.WRITE_INODE).putInt(whichInode);
+        inode.writeTo(requests, requests.position());
+        requests.position(requests.position() + INode.ENCODED_SIZE);
+        replyLater();
+    }
+
+    public synchronized void readInode(int whichInode, INode inode) throws IOException {
+        reserve(8);
+        requests.putInt(BlockServer.READ_INODE).putInt(whichInode);
+        awaitReplies();
+        receiveINode(whichInode, inode);
+        reportFailure();
+    }
+
+    public synchronized void readDataBlock(int whichBlock, ByteBuffer blockData)
+            throws IOException, IllegalArgumentException {
+        oneBlock[0] = whichBlock;
+        readDataBlocks(oneBlock, 1, blockData);
+    }
+
+    public synchronized void writeDataBlock(ByteBuffer blockData, int whichBlock)
+            throws IOException, IllegalArgumentException {
+        oneBlock[0] = whichBlock;
+        writeDataBlocks(blockData, oneBlock, 1);
+    }
+
+    /***
+     * Reads the blocks with one request per <code>MAX_REQUEST_BLOCKS</code>
+     * blocks, all sent before any reply is read. The blocks are received
+     * straight into <code>blockData</code>.
+     */
+    public synchronized void readDataBlocks(int[] whichBlocks, int numBlocks, ByteBuffer blockData)
+            throws IOException, IllegalArgumentException {
+        Disk.checkRemaining("RemoteDisk::readDataBlocks", blockData, numBlocks);
+
+        for (int first = 0; first < numBlocks; first += BlockServer.MAX_REQUEST_BLOCKS) {
+            int count = Math.min(BlockServer.MAX_REQUEST_BLOCKS, numBlocks - first);
+            reserve(8 + 4 * count);
+            requests.putInt(BlockServer.READ_BLOCKS).putInt(count);
+            for (int i = first; i < first + count; i++) {
+                requests.putInt(whichBlocks[i]);
+            }
+        }
+        awaitReplies();
+
+        IOException failure = null;
+        int limit = blockData.limit();
+        for (int first = 0; first < numBlocks; first += BlockServer.MAX_REQUEST_BLOCKS) {
+            int count = Math.min(BlockServer.MAX_REQUEST_BLOCKS, numBlocks - first);
+            try {
+                readStatus();
+                blockData.limit(blockData.position() + count * Disk.BLOCK_SIZE);
+                receive(blockData);
+                blockData.limit(limit);
+            } catch (RemoteException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                blockData.position(blockData.position() + count * Disk.BLOCK_SIZE);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        reportFailure();
+    }
+
+    /***
+     * Queues the blocks with one request per <code>MAX_REQUEST_BLOCKS</code>
+     * blocks. Blocks that do not fit in the request buffer are sent
+     * straight from <code>blockData</code> with a gathering write.
+     */
+    public synchronized void writeDataBlocks(ByteBuffer blockData, int[] whichBlocks, int numBlocks)
+            throws IOException, IllegalArgumentException {
+        Disk.checkRemaining("RemoteDisk::writeDataBlocks", blockData, numBlocks);
+
+        for (int first = 0; first < numBlocks; first += BlockServer.MAX_REQUEST_BLOCKS) {
+            int count = Math.min(BlockServer.MAX_REQUEST_BLOCKS, numBlocks - first);
+            int header = 8 + 4 * count;
+            int payload = count * Disk.BLOCK_SIZE;
+
+            reserve(header);
+            requests.putInt(BlockServer.WRITE_BLOCKS).putInt(count);
+            for (int i = first; i < first + count; i++) {
+                requests.putInt(whichBlocks[i]);
+            }
+
+            ByteBuffer blocks = blockData.duplicate();
+            blocks.limit(blocks.position() + payload);
+            if (requests.remaining() >= payload) {
+                requests.put(blocks);
+            } else {
+                requests.flip();
+                ByteBuffer[] gathered = {requests, blocks};
+                while (blocks.hasRemaining()) {
+                    connection.write(gathered);
+                }
+                requests.clear();
+            }
+            blockData.position(blockData.position() + payload);
+            replyLater();
+        }
+    }
+
+    /**
+     * Requests every inode, <code>INODE_BATCH</code> at a time, into the
+     * local inode table. The server's inode version is fetched first, so
+     * inodes written while the table loads are fetched again later.
+     */
+    private void loadINodeTable() throws IOException {
+        requestChanges(Long.MAX_VALUE);
+        awaitReplies();
+        receiveChanges();
+
+        for (int first = 0; first < Disk.NUM_INODES; first += INODE_BATCH) {
+            for (int whichInode = first; whichInode < first + INODE_BATCH; whichInode++) {
+                reserve(8);
+                requests.putInt(BlockServer.READ_INODE).putInt(whichInode);
+            }
+            awaitReplies();
+            for (int whichInode = first; whichInode < first + INODE_BATCH; whichInode++) {
+                receiveINode(whichInode, scratchINode);
+            }
+        }
+    }
+
+    private void requestChanges(long since) throws IOException {
+        reserve(12);
+        requests.putInt(BlockServer.INODE_CHANGES).putLong(since);
+    }
+
+    /**
+     * Reads the reply to <code>INODE_CHANGES</code> and copies the inodes
+     * it carries into the local inode table
+     */
+    private void receiveChanges() throws IOException {
+        readStatus();
+        replies.clear().limit(12);
+        receive(replies);
+        inodeVersion = replies.getLong(0);
+        int count = replies.getInt(8);
+
+        for (int i = 0; i < count; i++) {
+            replies.clear().limit(4 + INode.ENCODED_SIZE);
+            receive(replies);
+            scratchINode.readFrom(replies, 4);
+            inodeTable.write(replies.getInt(0), scratchINode);
+            isTableChanged = true;
+        }
+    }
+
+    private void receiveINode(int whichInode, INode inode) throws IOException {
+        readStatus();
+        replies.clear().limit(INode.ENCODED_SIZE);
+        receive(replies);
+        inode.readFrom(replies, 0);
+        inodeTable.write(whichInode, inode);
+    }
+
+    /**
+     * Makes room for <code>bytes</code> bytes of requests, sending the
+     * queued ones if needed
+     */
+    private void reserve(int bytes) throws IOException {
+        if (requests.remaining() < bytes) {
+            send();
+        }
+    }
+
+    private void send() throws IOException {
+        checkConnected();
+        requests.flip();
+        while (requests.hasRemaining()) {
+            connection.write(requests);
+        }
+        requests.clear();
+    }
+
+    /**
+     * Counts a queued write whose reply is collected later
+     */
+    private void replyLater() throws IOException {
+        if (++unacknowledged >= MAX_UNACKNOWLEDGED) {
+            awaitReplies();
+            reportFailure();
+        }
+    }
+
+    /**
+     * Sends the queued requests and collects the replies of the queued
+     * writes, leaving the replies of the newest requests to be read. The
+     * first failed write is kept for <code>reportFailure</code>.
+     */
+    private void awaitReplies() throws IOException {
+        send();
+        while (unacknowledged > 0) {
+            unacknowledged--;
+            try {
+                readStatus();
+            } catch (RemoteException e) {
+                if (writeFailure == null) {
+                    writeFailure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports a queued write that failed, once every reply read so far
+     * has been consumed
+     *
+     * @throws IOException The first failure of a queued write
+     */
+    private void reportFailure() throws IOException {
+        if (writeFailure != null) {
+            IOException failure = writeFailure;
+            writeFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads the status of the next reply
+     *
+     * @throws RemoteException If the request failed on the server
+     */
+    private void readStatus() throws IOException {
+        replies.clear().limit(4);
+        receive(replies);
+        if (replies.getInt(0) == BlockServer.OK) {
+            return;
+        }
+
+        replies.clear().limit(4);
+        receive(replies);
+        byte[] message = new byte[replies.getInt(0)];
+        receive(ByteBuffer.wrap(message));
+        throw new RemoteException(new String(message, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads from the server until <code>target</code> is full
+     */
+    private void receive(ByteBuffer target) throws IOException {
+        checkConnected();
+        while (target.hasRemaining()) {
+            if (connection.read(target) < 0) {
+                throw new IOException("RemoteDisk::receive: the server closed the connection");
+            }
+        }
+    }
+
+    private void checkConnected() throws IOException {
+        if (connection == null) {
+            throw new IOException("RemoteDisk::checkConnected: the disk is closed");
+        }
+    }
+
+    /**
+     * A request that reached the server and failed there. The connection
+     * is still usable.
+     */
+    private static class RemoteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RemoteException(String message) {
+            super(message);
+        }
+    }
+}
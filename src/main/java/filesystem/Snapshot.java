@@ -0,0 +1,68 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A point-in-time, read-only view of the files in a <code>FileSystem</code>.
+ *
+ * The snapshot keeps its own copy of every inode and holds a reference on
+ * each data block those inodes point to, so later writes to the live files
+ * copy the shared blocks instead of modifying them in place.
+ */
+public class Snapshot {
+    private FileSystem fileSystem;
+    private Map<String, INode> files;
+    private boolean isReleased;
+
+    Snapshot(FileSystem fileSystem, Map<String, INode> files) {
+        this.fileSystem = fileSystem;
+        this.files = files;
+        this.isReleased = false;
+    }
+
+    /**
+     * Returns the names of the files captured by this snapshot
+     * @return Returns the names of the files captured by this snapshot
+     */
+    public Set<String> getFileNames() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    /**
+     * Reads the contents <code>fileName</code> had when the snapshot was taken
+     *
+     * @param fileName - name of the file to read
+     * @return Returns the contents of the file
+     * @throws IOException If the file is not part of the snapshot, the snapshot
+     *                     has been released or the disk cannot be read
+     */
+    public String read(String fileName) throws IOException {
+        if (isReleased) {
+            throw new IOException("Snapshot::read: snapshot has been released");
+        }
+
+        INode inode = files.get(fileName.trim());
+        if (inode == null) {
+            throw new IOException("Snapshot::read: " + fileName + " is not in the snapshot");
+        }
+
+        return fileSystem.readContents(inode);
+    }
+
+    /**
+     * Drops the snapshot's references on its data blocks. Blocks that are no
+     * longer referenced by any file are returned to the free block list.
+     *
+     * @throws IOException If the free block list cannot be updated
+     */
+    public void release() throws IOException {
+        if (!isReleased) {
+            isReleased = true;
+            fileSystem.releaseSnapshot(files.values());
+        }
+    }
+}
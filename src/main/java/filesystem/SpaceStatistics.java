@@ -0,0 +1,431 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+
+/**
+ * How the space of a volume is laid out, computed in one pass over the
+ * free block list and the inode table: the free extents and their sizes,
+ * how many fragments each file is split into, the bytes lost in partly
+ * used and preallocated blocks, and how many inodes are in use.
+ *
+ * Computing the statistics reads no data blocks and creates no objects
+ * per inode, so they are cheap enough to poll every few seconds. The
+ * main method prints them for a disk file or a <code>BlockServer</code>:
+ *
+ * <pre>
+ * java filesystem.SpaceStatistics [--disk RawDevice.dsk | --remote PORT]
+ *      [--files] [--interval SECONDS]
+ * </pre>
+ */
+public class SpaceStatistics {
+    /**
+     * Free extents are counted in buckets by length: bucket <code>k</code>
+     * holds the extents of 2^k up to 2^(k+1) - 1 blocks
+     */
+    public final static int NUM_EXTENT_BUCKETS = Integer.numberOfTrailingZeros(Disk.NUM_BLOCKS) + 1;
+
+    private int freeBlocks;
+    private int freeExtents;
+    private int largestFreeExtent;
+    private long[] extentCounts;
+    private long[] extentBlocks;
+    private int[] groupFreeBlocks;
+
+    private int files;
+    private int directories;
+    private long directoryBlocks;
+    private long allocatedBlocks;
+    private long holes;
+    private long preallocatedBlocks;
+    private long wastedBytes;
+    private long fragments;
+    private int fragmentedFiles;
+    private int maxFragments;
+
+    /**
+     * Fragments and wasted bytes of each inode, indexed by inode number
+     */
+    private int[] fileFragments;
+    private int[] fileWastedBytes;
+
+    private SpaceStatistics() {
+        extentCounts = new long[NUM_EXTENT_BUCKETS];
+        extentBlocks = new long[NUM_EXTENT_BUCKETS];
+        groupFreeBlocks = new int[BlockGroups.NUM_GROUPS];
+        fileFragments = new int[Disk.NUM_INODES];
+        fileWastedBytes = new int[Disk.NUM_INODES];
+    }
+
+    /**
+     * Computes the statistics of a device. Callers that change the device
+     * from other threads must keep them out while this runs, as
+     * <code>FileSystem.getSpaceStatistics</code> does.
+     *
+     * @param device - formatted device to inspect
+     * @throws IOException If the free block list cannot be read
+     */
+    public static SpaceStatistics of(BlockDevice device) throws IOException {
+        return of(device.readFreeBlockList(), device.getINodeTable());
+    }
+
+    /**
+     * Computes the statistics of a free block list and an inode table
+     *
+     * @param freeList - the free block list of the disk
+     * @param inodes - the inode table of the disk
+     */
+    public static SpaceStatistics of(byte[] freeList, INodeTable inodes) {
+        SpaceStatistics statistics = new SpaceStatistics();
+        statistics.countFreeExtents(freeList);
+        statistics.countFiles(inodes.newView());
+        return statistics;
+    }
+
+    private void countFreeExtents(byte[] freeList) {
+        int runStart = -1;
+        for (int whichBlock = 0; whichBlock <= Disk.NUM_BLOCKS; whichBlock++) {
+            boolean isFree = whichBlock < Disk.NUM_BLOCKS
+                    && (freeList[whichBlock / 8] & (1 << (whichBlock % 8))) == 0;
+            if (isFree && runStart == -1) {
+                runStart = whichBlock;
+            } else if (!isFree && runStart != -1) {
+                int length = whichBlock - runStart;
+                int bucket = 31 - Integer.numberOfLeadingZeros(length);
+                extentCounts[bucket]++;
+                extentBlocks[bucket] += length;
+                freeExtents++;
+                freeBlocks += length;
+                largestFreeExtent = Math.max(largestFreeExtent, length);
+                runStart = -1;
+            }
+        }
+
+        for (int group = 0; group < BlockGroups.NUM_GROUPS; group++) {
+            groupFreeBlocks[group] = BlockGroups.freeBlocks(freeList, group);
+        }
+    }
+
+    /**
+     * A fragment is a run of a file's blocks that follow each other on
+     * disk. A hole, or a block that does not follow the one before it,
+     * starts a new fragment. Directories are hash buckets whose size is
+     * their number of entries, so their blocks are only counted.
+     */
+    private void countFiles(INodeView view) {
+        for (int whichInode = 0; whichInode < Disk.NUM_INODES; whichInode++) {
+            view.at(whichInode);
+            if (view.isFree()) {
+                continue;
+            }
+            if (view.isDirectory()) {
+                directories++;
+                for (int bucket = 0; bucket < INode.NUM_BLOCK_POINTERS; bucket++) {
+                    if (view.getBlockPointer(bucket) != -1) {
+                        directoryBlocks++;
+                    }
+                }
+                continue;
+            }
+            files++;
+
+            int size = view.getSize();
+            int sizeBlocks = (size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+            int previous = -1;
+            int numFragments = 0;
+            int wasted = 0;
+            for (int blockIndex = 0; blockIndex < INode.NUM_BLOCK_POINTERS; blockIndex++) {
+                int whichBlock = view.getBlockPointer(blockIndex);
+                if (whichBlock == -1) {
+                    if (blockIndex < sizeBlocks) {
+                        holes++;
+                    }
+                    previous = -1;
+                    continue;
+                }
+
+                allocatedBlocks++;
+                if (previous == -1 || whichBlock != previous + 1) {
+                    numFragments++;
+                }
+                previous = whichBlock;
+
+                if (blockIndex >= sizeBlocks) {
+                    preallocatedBlocks++;
+                }
+                int used = Math.max(0, Math.min(Disk.BLOCK_SIZE, size - blockIndex * Disk.BLOCK_SIZE));
+                wasted += Disk.BLOCK_SIZE - used;
+            }
+
+            fileFragments[whichInode] = numFragments;
+            fileWastedBytes[whichInode] = wasted;
+            fragments += numFragments;
+            wastedBytes += wasted;
+            maxFragments = Math.max(maxFragments, numFragments);
+            if (numFragments > 1) {
+                fragmentedFiles++;
+            }
+        }
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public int getFreeExtents() {
+        return freeExtents;
+    }
+
+    public int getLargestFreeExtent() {
+        return largestFreeExtent;
+    }
+
+    /**
+     * Returns how scattered the free space is: 0 when it is one extent,
+     * approaching 1 as the largest extent becomes a small part of it
+     */
+    public double getFreeSpaceFragmentation() {
+        return freeBlocks == 0 ? 0 : 1 - (double) largestFreeExtent / freeBlocks;
+    }
+
+    /**
+     * Returns the number of free extents in length bucket <code>bucket</code>
+     *
+     * @param bucket - bucket between 0 and <code>NUM_EXTENT_BUCKETS - 1</code>
+     */
+    public long getFreeExtentCount(int bucket) {
+        return extentCounts[bucket];
+    }
+
+    /**
+     * Returns the free blocks held by the extents of length bucket <code>bucket</code>
+     */
+    public long getFreeExtentBlocks(int bucket) {
+        return extentBlocks[bucket];
+    }
+
+    public int getGroupFreeBlocks(int group) {
+        return groupFreeBlocks[group];
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public int getDirectories() {
+        return directories;
+    }
+
+    /**
+     * Returns the fraction of the inodes in use by files and directories
+     */
+    public double getINodeUtilization() {
+        return (double) (files + directories) / Disk.NUM_INODES;
+    }
+
+    /**
+     * Returns the blocks holding directory entries
+     */
+    public long getDirectoryBlocks() {
+        return directoryBlocks;
+    }
+
+    /**
+     * Returns the blocks that files point to. A block shared by a clone
+     * is counted once for each file.
+     */
+    public long getAllocatedBlocks() {
+        return allocatedBlocks;
+    }
+
+    /**
+     * Returns the unallocated blocks inside files, which read as zeros
+     */
+    public long getHoles() {
+        return holes;
+    }
+
+    /**
+     * Returns the blocks allocated past the end of their files
+     */
+    public long getPreallocatedBlocks() {
+        return preallocatedBlocks;
+    }
+
+    /**
+     * Returns the bytes of allocated blocks that hold no file data: the
+     * unused end of each file's last block and every preallocated block
+     */
+    public long getWastedBytes() {
+        return wastedBytes;
+    }
+
+    /**
+     * Returns the fraction of the allocated bytes that hold no file data
+     */
+    public double getInternalFragmentation() {
+        return allocatedBlocks == 0 ? 0 : (double) wastedBytes / (allocatedBlocks * Disk.BLOCK_SIZE);
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    /**
+     * Returns the number of files in more than one fragment
+     */
+    public int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    public int getMaxFragments() {
+        return maxFragments;
+    }
+
+    /**
+     * Returns the number of fragments of inode <code>whichInode</code>,
+     * 0 if it is free, a directory or has no blocks
+     */
+    public int getFragments(int whichInode) {
+        return fileFragments[whichInode];
+    }
+
+    /**
+     * Returns the bytes of inode <code>whichInode</code>'s blocks that
+     * hold no file data
+     */
+    public int getWastedBytes(int whichInode) {
+        return fileWastedBytes[whichInode];
+    }
+
+    /**
+     * Prints the statistics as a report
+     *
+     * @param out Where the report is printed
+     */
+    public void print(PrintStream out) {
+        out.println(String.format(Locale.ROOT, "blocks  %d free of %d (%.1f%%) in %d extents, largest %d, " +
+                        "fragmentation %.3f",
+                freeBlocks, Disk.NUM_BLOCKS, 100.0 * freeBlocks / Disk.NUM_BLOCKS, freeExtents,
+                largestFreeExtent, getFreeSpaceFragmentation()));
+        out.println(String.format(Locale.ROOT, "inodes  %d files, %d directories in %d blocks, " +
+                        "%.1f%% of %d in use",
+                files, directories, directoryBlocks, 100 * getINodeUtilization(), Disk.NUM_INODES));
+        out.println(String.format(Locale.ROOT, "files   %d blocks in %d fragments, %d fragmented, " +
+                        "at most %d fragments",
+                allocatedBlocks, fragments, fragmentedFiles, maxFragments));
+        out.println(String.format(Locale.ROOT, "waste   %d bytes (%.1f%% of allocated), %d preallocated blocks, " +
+                        "%d holes",
+                wastedBytes, 100 * getInternalFragmentation(), preallocatedBlocks, holes));
+
+        out.println(String.format(Locale.ROOT, "%-13s %8s %8s", "free extent", "count", "blocks"));
+        for (int bucket = 0; bucket < NUM_EXTENT_BUCKETS; bucket++) {
+            if (extentCounts[bucket] > 0) {
+                int low = 1 << bucket;
+                String range = low == 1 ? "1" : low + "-" + (2 * low - 1);
+                out.println(String.format(Locale.ROOT, "%-13s %8d %8d", range, extentCounts[bucket],
+                        extentBlocks[bucket]));
+            }
+        }
+
+        StringBuilder groups = new StringBuilder("group free");
+        for (int group = 0; group < BlockGroups.NUM_GROUPS; group++) {
+            groups.append(' ').append(groupFreeBlocks[group]);
+        }
+        out.println(groups);
+    }
+
+    /**
+     * Prints one line per file and directory: inode, size, blocks,
+     * fragments, wasted bytes and name
+     *
+     * @param out Where the report is printed
+     * @param inodes - the inode table the statistics were computed from
+     */
+    public void printFiles(PrintStream out, INodeTable inodes) {
+        out.println(String.format(Locale.ROOT, "%6s %8s %6s %9s %7s  %s",
+                "inode", "size", "blocks", "fragments", "wasted", "name"));
+        INode inode = new INode();
+        for (int whichInode = 0; whichInode < Disk.NUM_INODES; whichInode++) {
+            inodes.read(whichInode, inode);
+            if (inode.isFree()) {
+                continue;
+            }
+            int blocks = 0;
+            for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                if (inode.getBlockPointer(i) != -1) {
+                    blocks++;
+                }
+            }
+            out.println(String.format(Locale.ROOT, "%6d %8d %6d %9d %7d  %s", whichInode, inode.getSize(),
+                    blocks, fileFragments[whichInode], fileWastedBytes[whichInode],
+                    inode.getFileName().trim()));
+        }
+    }
+
+    public static void main(String[] args) {
+        String diskFileName = Disk.RAW_DISK_NAME;
+        int port = -1;
+        boolean isListingFiles = false;
+        long intervalMillis = 0;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.equals("--files")) {
+                    isListingFiles = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("SpaceStatistics: " + option + " needs a value");
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--disk": diskFileName = value; break;
+                    case "--remote": port = Integer.parseInt(value); break;
+                    case "--interval": intervalMillis = (long) (Double.parseDouble(value) * 1000); break;
+                    default:
+                        throw new IllegalArgumentException("SpaceStatistics: unknown option " + option);
+                }
+            }
+
+            // Connected once; between polls the inode table is brought up to date
+            BlockDevice device;
+            if (port != -1) {
+                device = new RemoteDisk(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            } else {
+                Disk disk = new Disk(diskFileName);
+                disk.openReadOnly();
+                device = disk;
+            }
+            try {
+                while (true) {
+                    SpaceStatistics statistics = of(device);
+                    statistics.print(System.out);
+                    if (isListingFiles) {
+                        statistics.printFiles(System.out, device.getINodeTable());
+                    }
+
+                    if (intervalMillis <= 0) {
+                        break;
+                    }
+                    System.out.println();
+                    Thread.sleep(intervalMillis);
+                    device.refreshINodeTable();
+                }
+            } finally {
+                device.close();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * A <code>Disk</code> whose data blocks are striped RAID-0 style across
+ * several ordinary files. The free block list and inodes stay in the
+ * metadata file, at the start of each group as <code>Disk</code> lays
+ * them out, with holes where a <code>Disk</code> would keep the data
+ * blocks; data block <code>b</code> lives in stripe
+ * <code>b / stripeUnit</code>, and stripes are dealt round robin to the
+ * devices. Multi-block reads and writes issue one task per device so the
+ * devices are driven in parallel.
+ */
+public class StripedDisk extends Disk {
+  public static final int DEFAULT_STRIPE_UNIT = 8;
+
+  private static String DEVICE_MODE = "rw";
+
+  private String[] deviceFileNames;
+  private int stripeUnit;
+  private RandomAccessFile[] deviceFiles;
+  private FileChannel[] devices;
+  private ExecutorService ioThreads;
+
+  public StripedDisk(String metadataFileName, String[] deviceFileNames) {
+    this(metadataFileName, deviceFileNames, DEFAULT_STRIPE_UNIT);
+  }
+
+  /**
+   * @param metadataFileName File holding the free block list and inodes
+   * @param deviceFileNames Files the data blocks are striped across
+   * @param stripeUnit Number of consecutive blocks placed on one device
+   *                   before moving to the next
+   * @throws IllegalArgumentException If no devices are given or the stripe
+   *                                  unit is not positive
+   */
+  public StripedDisk(String metadataFileName, String[] deviceFileNames, int stripeUnit)
+          throws IllegalArgumentException {
+    super(metadataFileName);
+
+    if (deviceFileNames.length == 0) {
+      throw new IllegalArgumentException("StripedDisk::StripedDisk:  " +
+                                         "at least one device is required");
+    }
+    if (stripeUnit <= 0) {
+      throw new IllegalArgumentException("StripedDisk::StripedDisk:  " +
+                                         "stripe unit is " + stripeUnit +
+                                         " blocks, it must be positive");
+    }
+
+    this.deviceFileNames = deviceFileNames.clone();
+    this.stripeUnit = stripeUnit;
+  }
+
+  public int getNumDevices() {
+    return deviceFileNames.length;
+  }
+
+  public int getStripeUnit() {
+    return stripeUnit;
+  }
+
+  /***
+   * Creates each device file, zero filled and large enough to hold its
+   * share of the stripes
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  protected void formatDataBlocks() throws IOException {
+    closeDevices();
+
+    int numStripes = (NUM_BLOCKS + stripeUnit - 1) / stripeUnit;
+    int stripesPerDevice = (numStripes + deviceFileNames.length - 1) / deviceFileNames.length;
+    long deviceLength = (long) stripesPerDevice * stripeUnit * BLOCK_SIZE;
+
+    deviceFiles = new RandomAccessFile[deviceFileNames.length];
+    devices = new FileChannel[deviceFileNames.length];
+
+    for (int i= 0; i < deviceFileNames.length; i++) {
+      deviceFiles[i] = new RandomAccessFile(deviceFileNames[i], DEVICE_MODE);
+      deviceFiles[i].setLength(0);
+      deviceFiles[i].setLength(deviceLength);
+      devices[i] = deviceFiles[i].getChannel();
+    }
+
+    ioThreads = Executors.newFixedThreadPool(deviceFileNames.length, runnable -> {
+      Thread thread = new Thread(runnable, "StripedDisk-io");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void readDataBlock(int whichBlock, ByteBuffer blockData) throws IOException, IllegalArgumentException {
+    checkBlock("StripedDisk::readDataBlock", whichBlock);
+    checkRemaining("StripedDisk::readDataBlock", blockData, 1);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    int limit = blockData.limit();
+    blockData.limit(blockData.position() + BLOCK_SIZE);
+    readFully(devices[deviceOf(whichBlock)], blockData, deviceOffsetOf(whichBlock));
+    blockData.limit(limit);
+
+    commitBlockEvent(event, "readDataBlock", whichBlock);
+  }
+
+  @Override
+  public void writeDataBlock(ByteBuffer blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    checkBlock("StripedDisk::writeDataBlock", whichBlock);
+    checkRemaining("StripedDisk::writeDataBlock", blockData, 1);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    int limit = blockData.limit();
+    blockData.limit(blockData.position() + BLOCK_SIZE);
+    writeFully(devices[deviceOf(whichBlock)], blockData, deviceOffsetOf(whichBlock));
+    blockData.limit(limit);
+
+    commitBlockEvent(event, "writeDataBlock", whichBlock);
+  }
+
+  @Override
+  public void readDataBlocks(int[] whichBlocks, int numBlocks, ByteBuffer blockData)
+          throws IOException, IllegalArgumentException {
+    checkBlocks("StripedDisk::readDataBlocks", whichBlocks, numBlocks);
+    checkRemaining("StripedDisk::readDataBlocks", blockData, numBlocks);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    int start = blockData.position();
+    runPerDevice(whichBlocks, numBlocks, blockData, (device, index, block) ->
+      readFully(devices[device], block, deviceOffsetOf(whichBlocks[index])));
+    blockData.position(start + numBlocks * BLOCK_SIZE);
+
+    commitBlockEvent(event, "readDataBlocks", whichBlocks, numBlocks);
+  }
+
+  @Override
+  public void writeDataBlocks(ByteBuffer blockData, int[] whichBlocks, int numBlocks)
+          throws IOException, IllegalArgumentException {
+    checkBlocks("StripedDisk::writeDataBlocks", whichBlocks, numBlocks);
+    checkRemaining("StripedDisk::writeDataBlocks", blockData, numBlocks);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    int start = blockData.position();
+    runPerDevice(whichBlocks, numBlocks, blockData, (device, index, block) ->
+      writeFully(devices[device], block, deviceOffsetOf(whichBlocks[index])));
+    blockData.position(start + numBlocks * BLOCK_SIZE);
+
+    commitBlockEvent(event, "writeDataBlocks", whichBlocks, numBlocks);
+  }
+
+  /***
+   * Sends the blocks straight from their devices, with one
+   * <code>transferTo</code> per run of consecutive blocks within a stripe
+   */
+  @Override
+  public void transferDataBlocks(int[] whichBlocks, int numBlocks, WritableByteChannel target)
+          throws IOException {
+    checkBlocks("StripedDisk::transferDataBlocks", whichBlocks, numBlocks);
+    DiskIOEvent event = new DiskIOEvent();
+    event.begin();
+
+    for (int i= 0; i < numBlocks; ) {
+      int whichBlock = whichBlocks[i];
+      int run = Math.min(runLength(whichBlocks, i, numBlocks), stripeUnit - whichBlock % stripeUnit);
+      transferFully(devices[deviceOf(whichBlock)], deviceOffsetOf(whichBlock), (long) run * BLOCK_SIZE, target);
+      i += run;
+    }
+
+    commitBlockEvent(event, "transferDataBlocks", whichBlocks, numBlocks);
+  }
+
+  @Override
+  public void sync() throws IOException {
+    super.sync();
+    for (FileChannel device : devices) {
+      device.force(false);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    closeDevices();
+  }
+
+  /**
+   * Returns the device holding <code>whichBlock</code>
+   */
+  int deviceOf(int whichBlock) {
+    return (whichBlock / stripeUnit) % deviceFileNames.length;
+  }
+
+  /**
+   * Returns the byte offset of <code>whichBlock</code> within its device
+   */
+  long deviceOffsetOf(int whichBlock) {
+    int stripe = whichBlock / stripeUnit;
+    long deviceBlock = (long) (stripe / deviceFileNames.length) * stripeUnit + (whichBlock % stripeUnit);
+    return deviceBlock * BLOCK_SIZE;
+  }
+
+  private interface BlockIO {
+    void run(int device, int index, ByteBuffer block) throws IOException;
+  }
+
+  /**
+   * Returns a view of block <code>index</code> of the blocks starting at
+   * <code>start</code> in <code>blockData</code>
+   */
+  private static ByteBuffer blockView(ByteBuffer blockData, int start, int index) {
+    ByteBuffer block = blockData.duplicate();
+    block.limit(start + (index + 1) * BLOCK_SIZE);
+    block.position(start + index * BLOCK_SIZE);
+    return block;
+  }
+
+  /**
+   * Splits the first <code>numBlocks</code> of <code>whichBlocks</code> by
+   * device and runs <code>io</code> for each device's blocks on its own
+   * thread. A request touching only one device runs in the caller's thread.
+   */
+  private void runPerDevice(int[] whichBlocks, int numBlocks, ByteBuffer blockData, BlockIO io)
+          throws IOException {
+    int start = blockData.position();
+    List<List<Integer>> perDevice = new ArrayList<>();
+    for (int i= 0; i < deviceFileNames.length; i++) {
+      perDevice.add(new ArrayList<>());
+    }
+    int devicesUsed = 0;
+    for (int i= 0; i < numBlocks; i++) {
+      List<Integer> indexes = perDevice.get(deviceOf(whichBlocks[i]));
+      if (indexes.isEmpty()) {
+        devicesUsed++;
+      }
+      indexes.add(i);
+    }
+
+    if (devicesUsed <= 1) {
+      for (int i= 0; i < numBlocks; i++) {
+        io.run(deviceOf(whichBlocks[i]), i, blockView(blockData, start, i));
+      }
+      return;
+    }
+
+    List<Future<Void>> pending = new ArrayList<>();
+    for (int device= 0; device < deviceFileNames.length; device++) {
+      List<Integer> indexes = perDevice.get(device);
+      if (indexes.isEmpty()) {
+        continue;
+      }
+      int whichDevice = device;
+      pending.add(ioThreads.submit(() -> {
+        for (int index : indexes) {
+          io.run(whichDevice, index, blockView(blockData, start, index));
+        }
+        return null;
+      }));
+    }
+
+    IOException failure = null;
+    for (Future<Void> future : pending) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof IOException
+                  ? (IOException) e.getCause()
+                  : new IOException("StripedDisk::runPerDevice:  " + e.getCause(), e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("StripedDisk::runPerDevice:  interrupted", e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void closeDevices() throws IOException {
+    if (ioThreads != null) {
+      ioThreads.shutdown();
+      ioThreads = null;
+    }
+    if (deviceFiles != null) {
+      for (RandomAccessFile deviceFile : deviceFiles) {
+        deviceFile.close();
+      }
+      deviceFiles = null;
+      devices = null;
+    }
+  }
+}
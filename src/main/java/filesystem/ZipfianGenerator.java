@@ -0,0 +1,51 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Picks item numbers 0..n-1 with Zipfian popularity: item <code>i</code>
+ * is chosen with probability proportional to <code>1 / (i + 1)^s</code>.
+ * An exponent of 0 gives a uniform choice; values near 1 model typical
+ * skewed file popularity.
+ */
+public class ZipfianGenerator {
+    private double[] cumulative;
+
+    /**
+     * @param numItems Number of items to choose from
+     * @param exponent Skew of the distribution, 0 for uniform
+     * @throws IllegalArgumentException If there are no items or the exponent is negative
+     */
+    public ZipfianGenerator(int numItems, double exponent) throws IllegalArgumentException {
+        if (numItems <= 0 || exponent < 0) {
+            throw new IllegalArgumentException("ZipfianGenerator::ZipfianGenerator: " +
+                    numItems + " items with exponent " + exponent);
+        }
+
+        cumulative = new double[numItems];
+        double total = 0;
+        for (int i = 0; i < numItems; i++) {
+            total += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < numItems; i++) {
+            cumulative[i] /= total;
+        }
+    }
+
+    /**
+     * Returns the next item number
+     *
+     * @param random Source of randomness, typically one per thread
+     * @return Returns an item number between 0 and n-1
+     */
+    public int next(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return Math.min(index, cumulative.length - 1);
+    }
+}